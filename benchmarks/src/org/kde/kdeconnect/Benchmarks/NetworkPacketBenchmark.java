@@ -0,0 +1,115 @@
+package org.kde.kdeconnect.Benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.kde.kdeconnect.Helpers.StringsHelper;
+import org.kde.kdeconnect.NetworkPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the String based serialize()/unserialize() round trip with the streaming codec,
+ * for packets shaped like the ones we send most often. unserializeEnvelope is what a packet
+ * costs when nothing ever reads its body.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkPacketBenchmark {
+
+    @Param({"mousepad", "mpris", "notification"})
+    public String shape;
+
+    private NetworkPacket packet;
+    private byte[] serialized;
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream(8192);
+
+    @Setup
+    public void setup() throws JSONException {
+        switch (shape) {
+            case "mousepad":
+                packet = new NetworkPacket("kdeconnect.mousepad.request");
+                packet.set("dx", 3.5);
+                packet.set("dy", -2.0);
+                break;
+            case "mpris":
+                packet = new NetworkPacket("kdeconnect.mpris");
+                packet.set("player", "VLC media player");
+                packet.set("nowPlaying", "Some Artist - Some Title");
+                packet.set("title", "Some Title");
+                packet.set("artist", "Some Artist");
+                packet.set("album", "Some Album");
+                packet.set("albumArtUrl", "file:///home/user/.cache/vlc/art/artistalbum/Some Artist/Some Album/art.jpg");
+                packet.set("isPlaying", true);
+                packet.set("pos", 123456);
+                packet.set("length", 234567);
+                packet.set("volume", 100);
+                packet.set("canPause", true);
+                packet.set("canPlay", true);
+                packet.set("canGoNext", true);
+                packet.set("canGoPrevious", true);
+                packet.set("canSeek", true);
+                break;
+            case "notification":
+                packet = new NetworkPacket("kdeconnect.notification");
+                packet.set("id", "0|org.telegram.messenger|-1234567|null|10123");
+                packet.set("appName", "Telegram");
+                packet.set("ticker", "Alice: Are we still on for tonight? \uD83D\uDE00 Let me know / call me");
+                packet.set("title", "Alice");
+                packet.set("text", "Are we still on for tonight? \uD83D\uDE00 Let me know / call me\n\"See you\"");
+                packet.set("isClearable", true);
+                packet.set("requestReplyId", "5c1b1e1a-6f7e-4b6d-9f3a-2b8c6e0f1d2a");
+                JSONArray actions = new JSONArray();
+                actions.put("Reply");
+                actions.put("Mark as read");
+                packet.set("actions", actions);
+                break;
+            default:
+                throw new IllegalArgumentException(shape);
+        }
+        serialized = packet.serialize().getBytes(StringsHelper.UTF8);
+    }
+
+    @Benchmark
+    public byte[] serializeString() throws JSONException {
+        return packet.serialize().getBytes(StringsHelper.UTF8);
+    }
+
+    @Benchmark
+    public int serializeStream() throws IOException {
+        sink.reset();
+        packet.serialize(sink);
+        return sink.size();
+    }
+
+    @Benchmark
+    public NetworkPacket unserializeString() throws JSONException {
+        return NetworkPacket.unserialize(new String(serialized, StringsHelper.UTF8));
+    }
+
+    @Benchmark
+    public NetworkPacket unserializeBytes() throws JSONException {
+        return NetworkPacket.unserialize(serialized, 0, serialized.length);
+    }
+
+    @Benchmark
+    public NetworkPacket unserializeEnvelope() throws JSONException {
+        return NetworkPacket.unserializeLazily(serialized, 0, serialized.length);
+    }
+}
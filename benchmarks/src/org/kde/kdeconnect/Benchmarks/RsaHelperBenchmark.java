@@ -0,0 +1,70 @@
+package org.kde.kdeconnect.Benchmarks;
+
+import android.content.Context;
+
+import org.json.JSONException;
+import org.kde.kdeconnect.Helpers.SecurityHelpers.RsaHelper;
+import org.kde.kdeconnect.NetworkPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting and decrypting packets with RsaHelper, what devices that don't support TLS get for
+ * every packet. The cost grows with the number of 128 char chunks, so "bytes" is the size of the
+ * body.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RsaHelperBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int bytes;
+
+    private PublicKey publicKey;
+    private PrivateKey privateKey;
+    private NetworkPacket packet;
+    private NetworkPacket encrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        Context context = new Context() {};
+        RsaHelper.initialiseRsaKeys(context);
+        publicKey = RsaHelper.getPublicKey(context);
+        privateKey = RsaHelper.getPrivateKey(context);
+
+        char[] text = new char[bytes];
+        Arrays.fill(text, 'a');
+        packet = new NetworkPacket("kdeconnect.clipboard");
+        packet.set("content", new String(text));
+        encrypted = RsaHelper.encrypt(packet, publicKey);
+    }
+
+    @Benchmark
+    public NetworkPacket encrypt() throws GeneralSecurityException, JSONException {
+        return RsaHelper.encrypt(packet, publicKey);
+    }
+
+    @Benchmark
+    public NetworkPacket decrypt() throws GeneralSecurityException, JSONException {
+        return RsaHelper.decrypt(encrypted, privateKey);
+    }
+}
@@ -0,0 +1,107 @@
+package org.kde.kdeconnect.Benchmarks;
+
+import android.content.Context;
+import android.util.Base64;
+
+import org.kde.kdeconnect.Helpers.SecurityHelpers.RsaHelper;
+import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Handshakes per second between two SslHelper sockets over loopback, like the ones LanLink does
+ * for every connection and payload. "uncached" drops the device's SSLContext before each
+ * handshake, which is what every handshake cost before contexts were cached: a new KeyStore,
+ * key and trust managers, and no session to resume. "cached" reuses the context and resumes
+ * the previous session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SslHandshakeBenchmark {
+
+    private static final String DEVICE_ID = "benchmark_peer";
+
+    @Param({"uncached", "cached"})
+    public String contexts;
+
+    private Context context;
+    private ServerSocket server;
+    private Thread serverThread;
+
+    @Setup
+    public void setup() throws Exception {
+        //SslHelper only asks for TLSv1, which recent JDKs disable by default
+        Security.setProperty("jdk.tls.disabledAlgorithms", "");
+
+        context = new Context() {};
+        RsaHelper.initialiseRsaKeys(context);
+        SslHelper.initialiseCertificate(context);
+
+        //We talk to ourselves, so the paired device's certificate is our own
+        context.getSharedPreferences(DEVICE_ID, Context.MODE_PRIVATE).edit()
+                .putString("certificate", Base64.encodeToString(SslHelper.certificate.getEncoded(), 0))
+                .apply();
+
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (Socket socket = server.accept()) {
+                    socket.setTcpNoDelay(true); //Otherwise we mostly measure delayed ACKs
+                    SSLSocket sslSocket = SslHelper.convertToSslSocket(context, socket, DEVICE_ID, true, false);
+                    sslSocket.startHandshake();
+                    sslSocket.getOutputStream().write('\n'); //Lets the client know we are done
+                    sslSocket.close();
+                } catch (IOException e) {
+                    //Closed by tearDown, or a failed handshake the client will report
+                }
+            }
+        });
+        serverThread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.close();
+        serverThread.join();
+    }
+
+    @Benchmark
+    public boolean handshake() throws IOException {
+        if (contexts.equals("uncached")) {
+            SslHelper.invalidateSslContext(DEVICE_ID);
+        }
+        try (Socket socket = new Socket(server.getInetAddress(), server.getLocalPort())) {
+            socket.setTcpNoDelay(true);
+            SSLSocket sslSocket = SslHelper.convertToSslSocket(context, socket, DEVICE_ID, true, true);
+            sslSocket.startHandshake();
+            if (sslSocket.getInputStream().read() != '\n') {
+                throw new IOException("Handshake failed");
+            }
+            sslSocket.close();
+            return sslSocket.getSession().isValid();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.kde.kdeconnect.Helpers;
+
+import org.kde.kdeconnect.NetworkPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the packet SMSPlugin answers conversation requests with, for conversations of
+ * different sizes. In this package because the Message constructor is package private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SMSHelperBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int messageCount;
+
+    private final ArrayList<SMSHelper.Message> messages = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < messageCount; i++) {
+            HashMap<String, String> messageInfo = new HashMap<>();
+            messageInfo.put(SMSHelper.Message.ADDRESS, "+1555000" + (i % 100));
+            messageInfo.put(SMSHelper.Message.BODY, "Message number " + i + ", long enough to look like a real one");
+            messageInfo.put(SMSHelper.Message.DATE, Long.toString(1500000000000L + i * 60000L));
+            messageInfo.put(SMSHelper.Message.TYPE, Integer.toString(1 + i % 2));
+            messageInfo.put(SMSHelper.Message.READ, "1");
+            messageInfo.put(SMSHelper.Message.THREAD_ID, Integer.toString(i % 100));
+            messageInfo.put(SMSHelper.Message.U_ID, Integer.toString(i));
+            messages.add(new SMSHelper.Message(messageInfo));
+        }
+    }
+
+    @Benchmark
+    public NetworkPacket constructBulkMessagePacket() {
+        return SMSHelper.constructBulkMessagePacket("kdeconnect.sms.messages", messages);
+    }
+
+    @Benchmark
+    public String constructAndSerialize() {
+        return SMSHelper.constructBulkMessagePacket("kdeconnect.sms.messages", messages).serialize();
+    }
+}
@@ -0,0 +1,47 @@
+package org.kde.kdeconnect.Plugins.MousePadPlugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What each acceleration profile costs per touch event, which MousePadActivity pays for every
+ * move while the finger is on the screen. In this package because MouseDelta is package private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointerAccelerationBenchmark {
+
+    @Param({"noacceleration", "weak", "medium", "stronger"})
+    public String profileName;
+
+    private PointerAccelerationProfile profile;
+    private final PointerAccelerationProfile.MouseDelta delta = new PointerAccelerationProfile.MouseDelta();
+    private long eventTime = 0;
+
+    @Setup
+    public void setup() {
+        profile = PointerAccelerationProfileFactory.getProfileWithName(profileName);
+    }
+
+    @Benchmark
+    public float touchMoved() {
+        eventTime += 8; //A touch event every 8ms, like a 120Hz screen
+        profile.touchMoved(3.5f, -2.0f, eventTime);
+        return profile.commitAcceleratedMouseDelta(delta).x;
+    }
+}
@@ -0,0 +1,33 @@
+package org.kde.kdeconnect.Plugins.MprisPlugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing album art urls into disk cache keys, done for every lookup in the cache. In this
+ * package because urlToDiskCacheKey is package private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlbumArtCacheBenchmark {
+
+    private final String url = "file:///home/user/.cache/vlc/art/artistalbum/Some Artist/Some Album/art.jpg";
+
+    @Benchmark
+    public String urlToDiskCacheKey() {
+        return AlbumArtCache.urlToDiskCacheKey(url);
+    }
+}
@@ -0,0 +1,18 @@
+package android.content;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Stand-in for android.content.ContentResolver. There is no content to query.
+ */
+public class ContentResolver {
+
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    public void registerContentObserver(Uri uri, boolean notifyForDescendants, ContentObserver observer) {
+    }
+}
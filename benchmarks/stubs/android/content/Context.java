@@ -0,0 +1,57 @@
+package android.content;
+
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Stand-in for android.content.Context. Offers SharedPreferences kept in memory, a temporary
+ * cache dir, and the few services the benchmarked classes ask for.
+ */
+public abstract class Context {
+
+    public static final int MODE_PRIVATE = 0;
+    public static final String CONNECTIVITY_SERVICE = "connectivity";
+
+    private final HashMap<String, SharedPreferences> preferences = new HashMap<>();
+    private File cacheDir;
+
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences prefs = preferences.get(name);
+        if (prefs == null) {
+            prefs = new SharedPreferences();
+            preferences.put(name, prefs);
+        }
+        return prefs;
+    }
+
+    public synchronized File getCacheDir() {
+        if (cacheDir == null) {
+            cacheDir = new File(System.getProperty("java.io.tmpdir"), "kdeconnect-benchmarks");
+            cacheDir.mkdirs();
+        }
+        return cacheDir;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public String getPackageName() {
+        return "org.kde.kdeconnect_tp";
+    }
+
+    public PackageManager getPackageManager() {
+        return new PackageManager();
+    }
+
+    public ContentResolver getContentResolver() {
+        return new ContentResolver();
+    }
+
+    public Object getSystemService(String name) {
+        return CONNECTIVITY_SERVICE.equals(name) ? new ConnectivityManager() : null;
+    }
+}
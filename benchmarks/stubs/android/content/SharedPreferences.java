@@ -0,0 +1,54 @@
+package android.content;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stand-in for android.content.SharedPreferences, kept in memory. A class instead of an
+ * interface so the stub Context doesn't need an implementation of its own.
+ */
+public class SharedPreferences {
+
+    public class Editor {
+        public Editor putString(String key, String value) {
+            values.put(key, value);
+            return this;
+        }
+
+        public Editor putBoolean(String key, boolean value) {
+            values.put(key, value);
+            return this;
+        }
+
+        public Editor remove(String key) {
+            values.remove(key);
+            return this;
+        }
+
+        public void apply() {
+        }
+
+        public boolean commit() {
+            return true;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    public String getString(String key, String defValue) {
+        Object value = values.get(key);
+        return (value instanceof String) ? (String) value : defValue;
+    }
+
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = values.get(key);
+        return (value instanceof Boolean) ? (Boolean) value : defValue;
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+}
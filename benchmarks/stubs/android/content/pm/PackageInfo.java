@@ -0,0 +1,8 @@
+package android.content.pm;
+
+/**
+ * Stand-in for android.content.pm.PackageInfo.
+ */
+public class PackageInfo {
+    public int versionCode = 1;
+}
@@ -0,0 +1,14 @@
+package android.content.pm;
+
+/**
+ * Stand-in for android.content.pm.PackageManager.
+ */
+public class PackageManager {
+
+    public static class NameNotFoundException extends Exception {
+    }
+
+    public PackageInfo getPackageInfo(String packageName, int flags) throws NameNotFoundException {
+        return new PackageInfo();
+    }
+}
@@ -0,0 +1,7 @@
+package android.database;
+
+/**
+ * Stand-in for android.database.ContentObserver.
+ */
+public abstract class ContentObserver {
+}
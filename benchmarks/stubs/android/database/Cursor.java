@@ -0,0 +1,24 @@
+package android.database;
+
+import java.io.Closeable;
+
+/**
+ * Stand-in for android.database.Cursor.
+ */
+public interface Cursor extends Closeable {
+
+    boolean moveToFirst();
+
+    boolean moveToNext();
+
+    int getColumnCount();
+
+    int getColumnIndexOrThrow(String columnName);
+
+    String getColumnName(int columnIndex);
+
+    String getString(int columnIndex);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,7 @@
+package android.graphics;
+
+/**
+ * Stand-in for android.graphics.Bitmap.
+ */
+public class Bitmap {
+}
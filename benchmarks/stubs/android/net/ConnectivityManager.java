@@ -0,0 +1,11 @@
+package android.net;
+
+/**
+ * Stand-in for android.net.ConnectivityManager.
+ */
+public class ConnectivityManager {
+
+    public boolean isActiveNetworkMetered() {
+        return false;
+    }
+}
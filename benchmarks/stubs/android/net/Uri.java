@@ -0,0 +1,22 @@
+package android.net;
+
+/**
+ * Stand-in for android.net.Uri, only keeps the string.
+ */
+public class Uri {
+
+    private final String uri;
+
+    private Uri(String uri) {
+        this.uri = uri;
+    }
+
+    public static Uri parse(String uri) {
+        return new Uri(uri);
+    }
+
+    @Override
+    public String toString() {
+        return uri;
+    }
+}
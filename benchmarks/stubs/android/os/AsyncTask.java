@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * Stand-in for android.os.AsyncTask that runs the task right away, in the calling thread.
+ */
+public abstract class AsyncTask<Params, Progress, Result> {
+
+    protected abstract Result doInBackground(Params... params);
+
+    protected void onPostExecute(Result result) {
+    }
+
+    @SafeVarargs
+    public final AsyncTask<Params, Progress, Result> execute(Params... params) {
+        onPostExecute(doInBackground(params));
+        return this;
+    }
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * Stand-in for android.os.Build, pretending to be a recent Android version.
+ */
+public class Build {
+
+    public static class VERSION {
+        public static final int SDK_INT = 28;
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN = 16;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+    }
+}
@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * Stand-in for android.os.Looper. Nothing is ever looped.
+ */
+public class Looper {
+
+    private static final ThreadLocal<Looper> loopers = new ThreadLocal<>();
+
+    public static void prepare() {
+        loopers.set(new Looper());
+    }
+
+    public static Looper myLooper() {
+        return loopers.get();
+    }
+
+    public static void loop() {
+    }
+}
@@ -0,0 +1,24 @@
+package android.provider;
+
+import android.net.Uri;
+
+/**
+ * Stand-in for android.provider.Telephony, with the column names SMSHelper uses.
+ */
+public final class Telephony {
+
+    public static final class Sms {
+        public static final Uri CONTENT_URI = Uri.parse("content://sms");
+        public static final String _ID = "_id";
+        public static final String ADDRESS = "address";
+        public static final String BODY = "body";
+        public static final String DATE = "date";
+        public static final String TYPE = "type";
+        public static final String READ = "read";
+        public static final String THREAD_ID = "thread_id";
+    }
+
+    public static final class MmsSms {
+        public static final Uri CONTENT_CONVERSATIONS_URI = Uri.parse("content://mms-sms/conversations");
+    }
+}
@@ -0,0 +1,7 @@
+package android.support.annotation;
+
+/**
+ * Stand-in for the support library annotation.
+ */
+public @interface Nullable {
+}
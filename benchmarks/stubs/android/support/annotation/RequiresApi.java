@@ -0,0 +1,8 @@
+package android.support.annotation;
+
+/**
+ * Stand-in for the support library annotation.
+ */
+public @interface RequiresApi {
+    int value();
+}
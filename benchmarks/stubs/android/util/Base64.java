@@ -0,0 +1,25 @@
+package android.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stand-in for android.util.Base64 on top of java.util.Base64. Only the DEFAULT and NO_WRAP
+ * flags are supported.
+ */
+public class Base64 {
+
+    public static final int DEFAULT = 0;
+    public static final int NO_WRAP = 2;
+
+    public static String encodeToString(byte[] input, int flags) {
+        if ((flags & NO_WRAP) != 0) {
+            return java.util.Base64.getEncoder().encodeToString(input);
+        }
+        //Android wraps lines at 76 characters and ends the output with a newline
+        return new String(java.util.Base64.getMimeEncoder(76, new byte[]{'\n'}).encode(input), StandardCharsets.US_ASCII) + "\n";
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(str);
+    }
+}
@@ -0,0 +1,21 @@
+package org.kde.kdeconnect.Helpers;
+
+import android.content.Context;
+
+/**
+ * Stand-in for DeviceHelper, which needs SharedPreferences and the Device class.
+ */
+public class DeviceHelper {
+
+    public static String getDeviceType(Context context) {
+        return "phone";
+    }
+
+    public static String getDeviceName(Context context) {
+        return "Benchmark";
+    }
+
+    public static String getDeviceId(Context context) {
+        return "benchmark_device_id";
+    }
+}
@@ -0,0 +1,15 @@
+package org.kde.kdeconnect.Plugins.MprisPlugin;
+
+/**
+ * Stand-in for MprisPlugin, which needs the whole plugin machinery. AlbumArtCache only asks it
+ * for album art and tells it when some was fetched.
+ */
+public class MprisPlugin {
+
+    public boolean askTransferAlbumArt(String url, String playerName) {
+        return false;
+    }
+
+    public void fetchedAlbumArt(String url) {
+    }
+}
@@ -0,0 +1,197 @@
+package org.kde.kdeconnect.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Writes org.kde.kdeconnect.Plugins.PluginRegistry, with a PluginFactory.PluginInfo for every
+ * class annotated with @PluginMetadata and a switch that creates them without reflection.
+ * <p>
+ * The annotation lives in the app, so it's looked up by name. Resource ids and packet types
+ * are constants, they end up in the table as literals.
+ */
+public class PluginMetadataProcessor extends AbstractProcessor {
+
+    private static final String PACKAGE = "org.kde.kdeconnect.Plugins";
+    private static final String ANNOTATION = PACKAGE + ".PluginMetadata";
+    private static final String PLUGIN = PACKAGE + ".Plugin";
+    private static final String REGISTRY = "PluginRegistry";
+
+    private boolean generated = false;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(ANNOTATION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (generated || annotations.isEmpty()) {
+            return false;
+        }
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+        TypeElement plugin = processingEnv.getElementUtils().getTypeElement(PLUGIN);
+        if (annotation == null || plugin == null) {
+            return false;
+        }
+
+        Map<String, TypeElement> plugins = new TreeMap<>(); //Sorted by key, so the output is stable
+        boolean valid = true;
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            TypeElement type = (TypeElement) element;
+            if (!isInstantiablePlugin(type, plugin)) {
+                error(type, "@PluginMetadata plugins have to be public, non abstract subclasses of Plugin with a public no-arg constructor");
+                valid = false;
+                continue;
+            }
+            String pluginKey = type.getSimpleName().toString();
+            if (plugins.containsKey(pluginKey)) {
+                error(type, "Another plugin is already called " + pluginKey + ", plugin keys have to be unique");
+                valid = false;
+                continue;
+            }
+            plugins.put(pluginKey, type);
+        }
+        if (!valid) {
+            return true;
+        }
+
+        try {
+            write(plugins, annotation);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + REGISTRY + ": " + e);
+        }
+        generated = true;
+        return true;
+    }
+
+    private boolean isInstantiablePlugin(TypeElement type, TypeElement plugin) {
+        if (type.getKind() != ElementKind.CLASS
+                || !type.getModifiers().contains(Modifier.PUBLIC)
+                || type.getModifiers().contains(Modifier.ABSTRACT)
+                || (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC))
+                || !processingEnv.getTypeUtils().isSubtype(type.asType(), plugin.asType())) {
+            return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void write(Map<String, TypeElement> plugins, TypeElement annotation) throws IOException {
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(PACKAGE + "." + REGISTRY,
+                plugins.values().toArray(new Element[0]));
+        try (Writer out = file.openWriter()) {
+            out.write("//Generated by " + getClass().getSimpleName() + " from the @PluginMetadata annotations, don't edit\n");
+            out.write("package " + PACKAGE + ";\n\n");
+            out.write("final class " + REGISTRY + " {\n\n");
+
+            out.write("    static final PluginFactory.PluginInfo[] PLUGINS = {\n");
+            for (Map.Entry<String, TypeElement> plugin : plugins.entrySet()) {
+                Map<String, Object> values = getValues(plugin.getValue(), annotation);
+                out.write("            new PluginFactory.PluginInfo(" + stringLiteral(plugin.getKey())
+                        + ", " + intLiteral(values.get("displayName"))
+                        + ", " + intLiteral(values.get("description"))
+                        + ", " + intLiteral(values.get("icon")) + ",\n");
+                out.write("                    " + values.get("enabledByDefault")
+                        + ", " + values.get("hasSettings")
+                        + ", " + values.get("listensToUnpairedDevices")
+                        + ", " + values.get("loadsEagerly") + ",\n");
+                out.write("                    " + stringArray(values.get("supportedPacketTypes")) + ",\n");
+                out.write("                    " + stringArray(values.get("outgoingPacketTypes")) + "),\n");
+            }
+            out.write("    };\n\n");
+
+            out.write("    static Plugin instantiate(String pluginKey) {\n");
+            out.write("        switch (pluginKey) {\n");
+            for (Map.Entry<String, TypeElement> plugin : plugins.entrySet()) {
+                out.write("            case " + stringLiteral(plugin.getKey()) + ":\n");
+                out.write("                return new " + plugin.getValue().getQualifiedName() + "();\n");
+            }
+            out.write("            default:\n");
+            out.write("                return null;\n");
+            out.write("        }\n");
+            out.write("    }\n\n");
+
+            out.write("    private " + REGISTRY + "() {\n");
+            out.write("    }\n");
+            out.write("}\n");
+        }
+    }
+
+    private Map<String, Object> getValues(TypeElement type, TypeElement annotation) {
+        Map<String, Object> values = new TreeMap<>();
+        for (AnnotationMirror mirror : type.getAnnotationMirrors()) {
+            if (!mirror.getAnnotationType().asElement().equals(annotation)) {
+                continue;
+            }
+            Map<? extends ExecutableElement, ? extends AnnotationValue> withDefaults =
+                    processingEnv.getElementUtils().getElementValuesWithDefaults(mirror);
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : withDefaults.entrySet()) {
+                values.put(value.getKey().getSimpleName().toString(), value.getValue().getValue());
+            }
+        }
+        return values;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private static String intLiteral(Object value) {
+        return String.format("0x%08x", (Integer) value);
+    }
+
+    private static String stringArray(Object value) {
+        @SuppressWarnings("unchecked")
+        List<? extends AnnotationValue> items = (List<? extends AnnotationValue>) value;
+        List<String> literals = new ArrayList<>();
+        for (AnnotationValue item : items) {
+            literals.add(stringLiteral((String) item.getValue()));
+        }
+        return "new String[]{" + String.join(", ", literals) + "}";
+    }
+
+    private static String stringLiteral(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -25,6 +25,7 @@ import android.content.Context;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.NetworkPacket;
 
+import java.io.IOException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
@@ -42,6 +43,9 @@ public abstract class BaseLink {
     private final String deviceId;
     private final ArrayList<PacketReceiver> receivers = new ArrayList<>();
     protected PrivateKey privateKey;
+    private final OutboundPacketQueue outboundQueue = new OutboundPacketQueue(this);
+    protected final LinkMetrics metrics = new LinkMetrics();
+    private volatile boolean paired = false;
 
     protected BaseLink(Context context, String deviceId, BaseLinkProvider linkProvider) {
         this.context = context;        
@@ -61,10 +65,23 @@ public abstract class BaseLink {
         privateKey = key;
     }
 
+    //Kept up to date by the Device, so the link can refuse to buffer data for unpaired devices
+    public void setPaired(boolean paired) {
+        this.paired = paired;
+    }
+
+    public boolean isPaired() {
+        return paired;
+    }
+
     public BaseLinkProvider getLinkProvider() {
         return linkProvider;
     }
 
+    public LinkMetrics getMetrics() {
+        return metrics;
+    }
+
     //The daemon will periodically destroy unpaired links if this returns false
     public boolean linkShouldBeKeptAlive() {
         return false;
@@ -92,4 +109,46 @@ public abstract class BaseLink {
     public abstract boolean sendPacket(NetworkPacket np, Device.SendPacketStatusCallback callback);
     @Deprecated
     public abstract boolean sendPacketEncrypted(NetworkPacket np, Device.SendPacketStatusCallback callback, PublicKey key);
+
+    //Queues the packet to be sent by this link's writer thread, returns false if the queue is full. Key can be null.
+    public boolean enqueuePacket(NetworkPacket np, Device.SendPacketStatusCallback callback, PublicKey key) {
+        return outboundQueue.offer(np, callback, key);
+    }
+
+    //Like enqueuePacket, but waits for room in the queue and for the packet to be sent. Do not call from main thread
+    public boolean enqueuePacketBlocking(NetworkPacket np, Device.SendPacketStatusCallback callback, PublicKey key) {
+        return outboundQueue.sendAndWait(np, callback, key);
+    }
+
+    /**
+     * Called from the writer thread for each queued packet. Links that can buffer their writes
+     * should write the packet without flushing and return true: the callback will be notified
+     * after flushQueuedPackets() succeeds. Returning false means the link already notified (or
+     * will notify) the callback itself. Failures can be reported by throwing.
+     *
+     * The default implementation simply sends the packet synchronously.
+     */
+    @SuppressWarnings("deprecation")
+    protected boolean writeQueuedPacket(NetworkPacket np, Device.SendPacketStatusCallback callback, PublicKey key) throws Exception {
+        if (key != null) {
+            sendPacketEncrypted(np, callback, key);
+        } else {
+            sendPacket(np, callback);
+        }
+        return false;
+    }
+
+    /**
+     * Called from the writer thread after each batch, for links that send data in the background
+     * between packets (eg: multiplexed payload chunks). Should write a small amount of it and
+     * return whether there is more, in which case the writer will call it again without waiting
+     * for new packets. Errors should be handled by the link.
+     */
+    protected boolean writeQueuedChunks() {
+        return false;
+    }
+
+    //Called from the writer thread after each batch of packets written with writeQueuedPacket
+    protected void flushQueuedPackets() throws IOException {
+    }
 }
@@ -60,6 +60,11 @@ public abstract class BaseLinkProvider {
     public abstract void onStop();
     public abstract void onNetworkChange();
 
+    //What the provider measures on its own (eg: handshakes), for the debug screen. Null if nothing
+    public String getMetricsReport() {
+        return null;
+    }
+
     //public abstract int getPriority();
     public abstract String getName();
 
@@ -24,68 +24,85 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Build;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.kde.kdeconnect.Backends.BaseLink;
 import org.kde.kdeconnect.Backends.BasePairingHandler;
+import org.kde.kdeconnect.Backends.FrameDecoder;
+import org.kde.kdeconnect.Backends.PayloadMultiplexer;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.RsaHelper;
+import org.kde.kdeconnect.Helpers.TransferHelper;
 import org.kde.kdeconnect.NetworkPacket;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.Reader;
-import java.nio.charset.Charset;
 import java.security.PublicKey;
 import java.util.UUID;
 
 public class BluetoothLink extends BaseLink {
-    private final BluetoothSocket socket;
+    private final BluetoothSocket socket; //Null in tests, where only the streams are used
+    private final InputStream input;
+    private final OutputStream writer; //Buffered, so the writer thread can flush once per batch
     private final BluetoothLinkProvider linkProvider;
 
+    //Payloads up to 1MB go through the RFCOMM connection we already have, instead of a new one each
+    private final PayloadMultiplexer multiplexer = new PayloadMultiplexer();
+    private final PayloadMultiplexer.Receiver incoming = new PayloadMultiplexer.Receiver(); //A link only ever has one connection
+    private final Object writeLock = new Object();
+
     private boolean continueAccepting = true;
 
+    private static final int PAYLOAD_ACCEPT_TIMEOUT_MS = 30 * 1000; //Connecting can take a while if it needs an SDP lookup
+
     private final Thread receivingThread = new Thread(new Runnable() {
         @Override
         public void run() {
-            StringBuilder sb = new StringBuilder();
             try {
-                Reader reader = new InputStreamReader(socket.getInputStream(), "UTF-8");
-                char[] buf = new char[512];
-                while (continueAccepting) {
-                    while (sb.indexOf("\n") == -1 && continueAccepting) {
-                        int charsRead;
-                        if ((charsRead = reader.read(buf)) > 0) {
-                            sb.append(buf, 0, charsRead);
-                        }
+                final FrameDecoder decoder = new FrameDecoder();
+                FrameDecoder.Listener listener = new FrameDecoder.Listener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        processMessage(decoder, buffer, offset, length);
                     }
 
-                    int endIndex = sb.indexOf("\n");
-                    if (endIndex != -1) {
-                        String message = sb.substring(0, endIndex + 1);
-                        sb.delete(0, endIndex + 1);
-                        processMessage(message);
+                    @Override
+                    public void onRawData(byte[] buffer, int offset, int length) {
+                        NetworkPacket completed = incoming.chunkDataReceived(buffer, offset, length);
+                        if (completed != null) {
+                            packageReceived(completed);
+                        }
+                    }
+                };
+                while (continueAccepting) {
+                    if (!decoder.readFrom(input, listener)) {
+                        throw new IOException("End of stream");
                     }
                 }
             } catch (IOException e) {
-                Log.e("BluetoothLink/receiving", "Connection to " + socket.getRemoteDevice().getAddress() + " likely broken.", e);
+                Log.e("BluetoothLink/receiving", "Connection to " + getDeviceId() + " likely broken.", e);
                 disconnect();
             }
         }
 
-        private void processMessage(String message) {
+        private void processMessage(FrameDecoder decoder, byte[] buffer, int offset, int length) {
             NetworkPacket np;
             try {
-                np = NetworkPacket.unserialize(message);
+                np = NetworkPacket.unserialize(buffer, offset, length);
             } catch (JSONException e) {
                 Log.e("BluetoothLink/receiving", "Unable to parse message.", e);
                 return;
             }
+            metrics.packetReceived(np.getType(), length + 1);
+
+            if (np.getType().equals(PayloadMultiplexer.PACKET_TYPE_PAYLOAD_CHUNK)) {
+                decoder.expectRawBytes(incoming.chunkReceived(np));
+                return;
+            }
 
             if (np.getType().equals(NetworkPacket.PACKET_TYPE_ENCRYPTED)) {
                 try {
@@ -95,6 +112,11 @@ public class BluetoothLink extends BaseLink {
                 }
             }
 
+            if (np.hasPayloadTransferInfo() && incoming.isMultiplexed(np)) {
+                incoming.addIncoming(np, isPaired()); //Delivered once its chunks have arrived
+                return;
+            }
+
             if (np.hasPayloadTransferInfo()) {
                 BluetoothSocket transferSocket = null;
                 try {
@@ -117,12 +139,24 @@ public class BluetoothLink extends BaseLink {
         }
     });
 
-    public BluetoothLink(Context context, BluetoothSocket socket, String deviceId, BluetoothLinkProvider linkProvider) {
+    public BluetoothLink(Context context, BluetoothSocket socket, String deviceId, BluetoothLinkProvider linkProvider) throws IOException {
+        this(context, socket, socket.getInputStream(), socket.getOutputStream(), deviceId, linkProvider);
+    }
+
+    //Tests can pass any pair of connected streams and a null socket, as long as no payload is bigger than what is multiplexed
+    public BluetoothLink(Context context, BluetoothSocket socket, InputStream input, OutputStream output, String deviceId, BluetoothLinkProvider linkProvider) {
         super(context, deviceId, linkProvider);
         this.socket = socket;
+        this.input = input;
+        this.writer = new BufferedOutputStream(output, 16 * 1024);
         this.linkProvider = linkProvider;
     }
 
+    //Enables multiplexed payloads if the other end announced them in its identity packet
+    public void setTransferCapabilities(NetworkPacket identityPacket) {
+        multiplexer.setSupportedByPeer(identityPacket.getBoolean(PayloadMultiplexer.CAPABILITY));
+    }
+
     public void startListening() {
         this.receivingThread.start();
     }
@@ -138,23 +172,152 @@ public class BluetoothLink extends BaseLink {
     }
 
     public void disconnect() {
-        if (socket == null) {
-            return;
-        }
         continueAccepting = false;
         try {
-            socket.close();
+            if (socket != null) {
+                socket.close();
+            } else {
+                input.close();
+                writer.close();
+            }
         } catch (IOException e) {
         }
         linkProvider.disconnectedLink(this, getDeviceId(), socket);
     }
 
-    private void sendMessage(NetworkPacket np) throws JSONException, IOException {
-        byte[] message = np.serialize().getBytes(Charset.forName("UTF-8"));
-        OutputStream socket = this.socket.getOutputStream();
-        Log.i("BluetoothLink", "Beginning to send message");
-        socket.write(message);
-        Log.i("BluetoothLink", "Finished sending message");
+    private void writePacket(NetworkPacket np, boolean flush) throws IOException {
+        synchronized (writeLock) {
+            int bytes = np.serialize(writer);
+            metrics.packetSent(np.getType(), bytes);
+            if (flush) {
+                writer.flush();
+            }
+        }
+    }
+
+    //Called from the writer thread. Packets are written without flushing, and small payloads follow in chunks
+    @Override
+    protected boolean writeQueuedPacket(NetworkPacket np, Device.SendPacketStatusCallback callback, PublicKey key) throws Exception {
+        if (key == null && multiplexer.shouldMultiplex(np)) {
+            multiplexer.addOutgoing(np, callback);
+            try {
+                writePacket(np, false);
+            } catch (Exception e) {
+                //The caller notifies the callback, the multiplexer must not do it again
+                multiplexer.removeOutgoing(np);
+                np.getPayload().close();
+                throw e;
+            }
+            return false;
+        }
+        if (!np.hasPayload()) {
+            if (key != null) {
+                np = RsaHelper.encrypt(np, key);
+            }
+            writePacket(np, false);
+            return true;
+        }
+        //Big payloads still get their own connection. The other end only connects to it once the batch is
+        //flushed, and the transfer happens in a different thread so it doesn't hold back the packets queued after it
+        final BluetoothServerSocket serverSocket = preparePayload(np);
+        try {
+            if (key != null) {
+                np = RsaHelper.encrypt(np, key);
+            }
+            writePacket(np, false);
+        } catch (Exception e) {
+            closeQuietly(serverSocket);
+            np.getPayload().close();
+            throw e;
+        }
+        final NetworkPacket payloadPacket = np;
+        new Thread(() -> {
+            try {
+                sendPayload(serverSocket, payloadPacket, callback);
+                callback.onSuccess();
+            } catch (Exception e) {
+                callback.onFailure(e);
+            }
+        }).start();
+        return false;
+    }
+
+    //Opens the server socket the other end will connect to, to get the payload of the packet
+    private BluetoothServerSocket preparePayload(NetworkPacket np) throws Exception {
+        UUID transferUuid = UUID.randomUUID();
+        BluetoothServerSocket serverSocket = BluetoothAdapter.getDefaultAdapter()
+                .listenUsingRfcommWithServiceRecord("KDE Connect Transfer", transferUuid);
+        JSONObject payloadTransferInfo = new JSONObject();
+        payloadTransferInfo.put("uuid", transferUuid.toString());
+        np.setPayloadTransferInfo(payloadTransferInfo);
+        return serverSocket;
+    }
+
+    //Blocking, waits for the other end to connect and sends the payload. Closes the server socket and the payload
+    private void sendPayload(BluetoothServerSocket serverSocket, NetworkPacket np, final Device.SendPacketStatusCallback callback) throws IOException {
+        BluetoothSocket transferSocket = null;
+        try {
+            transferSocket = serverSocket.accept(PAYLOAD_ACCEPT_TIMEOUT_MS);
+            closeQuietly(serverSocket);
+
+            //Progress is reported every now and then, not after every buffer
+            final long size = np.getPayloadSize();
+            InputStream stream = np.getPayload().getInputStream();
+            long startedAt = System.nanoTime();
+            long progress = TransferHelper.copy(stream, null, transferSocket.getOutputStream(), null, size > 0 ? size : -1, transferred -> {
+                if (size > 0) {
+                    callback.onProgressChanged((int) (100 * transferred / size));
+                }
+            });
+            metrics.payloadSent(progress, System.nanoTime() - startedAt);
+        } finally {
+            closeQuietly(serverSocket);
+            np.getPayload().close();
+            if (transferSocket != null) {
+                try {
+                    transferSocket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(BluetoothServerSocket serverSocket) {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    protected boolean writeQueuedChunks() {
+        synchronized (writeLock) {
+            if (!multiplexer.hasOutgoing()) {
+                return false;
+            }
+            try {
+                multiplexer.writeNextChunk(writer);
+            } catch (IOException e) {
+                disconnect();
+                multiplexer.outgoingFailed(e);
+                return false;
+            }
+            return multiplexer.hasOutgoing();
+        }
+    }
+
+    @Override
+    protected void flushQueuedPackets() throws IOException {
+        synchronized (writeLock) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                disconnect();
+                multiplexer.outgoingFailed(e);
+                throw e;
+            }
+            multiplexer.outgoingFlushed();
+        }
     }
 
     @Override
@@ -178,57 +341,25 @@ public class BluetoothLink extends BaseLink {
         try {
             BluetoothServerSocket serverSocket = null;
             if (np.hasPayload()) {
-                UUID transferUuid = UUID.randomUUID();
-                serverSocket = BluetoothAdapter.getDefaultAdapter()
-                        .listenUsingRfcommWithServiceRecord("KDE Connect Transfer", transferUuid);
-                JSONObject payloadTransferInfo = new JSONObject();
-                payloadTransferInfo.put("uuid", transferUuid.toString());
-                np.setPayloadTransferInfo(payloadTransferInfo);
+                serverSocket = preparePayload(np);
             }
 
             if (key != null) {
                 try {
                     np = RsaHelper.encrypt(np, key);
                 } catch (Exception e) {
+                    if (serverSocket != null) {
+                        closeQuietly(serverSocket);
+                    }
                     callback.onFailure(e);
                     return false;
                 }
             }
 
-            sendMessage(np);
+            writePacket(np, true);
 
             if (serverSocket != null) {
-                BluetoothSocket transferSocket = serverSocket.accept();
-                try {
-                    serverSocket.close();
-
-                    int idealBufferLength = 4096;
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
-                            && transferSocket.getMaxReceivePacketSize() > 0) {
-                        idealBufferLength = transferSocket.getMaxReceivePacketSize();
-                    }
-                    byte[] buffer = new byte[idealBufferLength];
-                    int bytesRead;
-                    long progress = 0;
-                    InputStream stream = np.getPayload().getInputStream();
-                    while ((bytesRead = stream.read(buffer)) != -1) {
-                        progress += bytesRead;
-                        transferSocket.getOutputStream().write(buffer, 0, bytesRead);
-                        if (np.getPayloadSize() > 0) {
-                            callback.onProgressChanged((int) (100 * progress / np.getPayloadSize()));
-                        }
-                    }
-                    transferSocket.getOutputStream().flush();
-                    stream.close();
-                } catch (Exception e) {
-                    callback.onFailure(e);
-                    return false;
-                } finally {
-                    try {
-                        transferSocket.close();
-                    } catch (IOException ignored) {
-                    }
-                }
+                sendPayload(serverSocket, np, callback);
             }
 
             callback.onSuccess();
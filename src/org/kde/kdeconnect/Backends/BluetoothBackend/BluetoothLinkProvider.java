@@ -34,6 +34,7 @@ import android.os.Parcelable;
 import android.util.Log;
 
 import org.kde.kdeconnect.Backends.BaseLinkProvider;
+import org.kde.kdeconnect.Backends.PayloadMultiplexer;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.NetworkPacket;
 
@@ -61,6 +62,12 @@ public class BluetoothLinkProvider extends BaseLinkProvider {
     private ServerRunnable serverRunnable;
     private ClientRunnable clientRunnable;
 
+    private NetworkPacket createIdentityPacket() {
+        NetworkPacket np = NetworkPacket.createIdentityPacket(context);
+        np.set(PayloadMultiplexer.CAPABILITY, true);
+        return np;
+    }
+
     private void addLink(NetworkPacket identityPacket, BluetoothLink link) {
         String deviceId = identityPacket.getString("deviceId");
         Log.i("BluetoothLinkProvider", "addLink to " + deviceId);
@@ -186,7 +193,7 @@ public class BluetoothLinkProvider extends BaseLinkProvider {
 
             Log.i("BTLinkProvider/Server", "Received connection from " + socket.getRemoteDevice().getAddress());
 
-            NetworkPacket np = NetworkPacket.createIdentityPacket(context);
+            NetworkPacket np = createIdentityPacket();
             byte[] message = np.serialize().getBytes("UTF-8");
             outputStream.write(message);
 
@@ -213,6 +220,7 @@ public class BluetoothLinkProvider extends BaseLinkProvider {
 
             BluetoothLink link = new BluetoothLink(context, socket,
                     identityPacket.getString("deviceId"), BluetoothLinkProvider.this);
+            link.setTransferCapabilities(identityPacket);
 
             addLink(identityPacket, link);
         }
@@ -360,8 +368,9 @@ public class BluetoothLinkProvider extends BaseLinkProvider {
 
                 final BluetoothLink link = new BluetoothLink(context, socket,
                         identityPacket.getString("deviceId"), BluetoothLinkProvider.this);
+                link.setTransferCapabilities(identityPacket);
 
-                NetworkPacket np2 = NetworkPacket.createIdentityPacket(context);
+                NetworkPacket np2 = createIdentityPacket();
                 link.sendPacket(np2, new Device.SendPacketStatusCallback() {
                     @Override
                     public void onSuccess() {
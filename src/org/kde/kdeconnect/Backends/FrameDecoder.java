@@ -0,0 +1,121 @@
+package org.kde.kdeconnect.Backends;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits what a link reads from its stream in newline terminated frames (one serialized packet
+ * each), handing them to a {@link Listener} straight from its buffer. Every byte is looked at
+ * once, however many reads a frame arrives in.
+ * <p>
+ * A frame can't be longer than the maximum size given to the constructor, so the other end
+ * can't make us buffer an endless line. Raw bytes that follow a frame (eg: the data of a
+ * multiplexed payload chunk) can be asked for with {@link #expectRawBytes(int)}, and are
+ * delivered as they arrive without being buffered.
+ * <p>
+ * Not thread safe, it's meant to be used by the thread reading the link.
+ */
+public class FrameDecoder {
+
+    //Much bigger than any packet we send or expect (eg: every contact of the phone as vCards)
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    public interface Listener {
+        //The buffer is reused after this returns, copy whatever has to be kept
+        void onFrame(byte[] buffer, int offset, int length);
+
+        //Bytes requested with expectRawBytes(), possibly split in several calls. Same buffer rules as onFrame
+        void onRawData(byte[] buffer, int offset, int length);
+    }
+
+    private final int maxFrameSize;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int start = 0; //Beginning of the frame being read
+    private int end = 0; //End of the data read so far
+    private int scanned = 0; //We already know there is no newline in [start, scanned)
+    private int rawRemaining = 0; //Raw bytes still to be delivered before the next frame
+
+    public FrameDecoder() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public FrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    //The next length bytes after the current frame are raw data and not frames. Call from Listener.onFrame()
+    public void expectRawBytes(int length) {
+        rawRemaining += length;
+    }
+
+    /**
+     * Reads once from the stream and delivers every frame (and raw data) that is complete.
+     * Returns false at the end of the stream. Throws if a frame is longer than the maximum size,
+     * after which the stream can't be read anymore.
+     */
+    public boolean readFrom(InputStream stream, Listener listener) throws IOException {
+        makeRoom();
+        int read = stream.read(buffer, end, buffer.length - end);
+        if (read == -1) {
+            return false;
+        }
+        end += read;
+        deliver(listener);
+        return true;
+    }
+
+    private void makeRoom() throws IOException {
+        if (end < buffer.length) {
+            return;
+        }
+        int pending = end - start;
+        if (pending >= maxFrameSize + 1) { //+1 for the newline
+            throw new IOException("Packet bigger than " + maxFrameSize + " bytes");
+        }
+        //Move the partial frame to the front, grow if it's already there
+        byte[] target = (start == 0) ? new byte[(int) Math.min(buffer.length * 2L, maxFrameSize + 1L)] : buffer;
+        System.arraycopy(buffer, start, target, 0, pending);
+        buffer = target;
+        scanned -= start;
+        start = 0;
+        end = pending;
+    }
+
+    private void deliver(Listener listener) {
+        while (start < end) {
+            if (rawRemaining > 0) {
+                int length = Math.min(rawRemaining, end - start);
+                int rawStart = start;
+                rawRemaining -= length;
+                start += length;
+                scanned = start;
+                listener.onRawData(buffer, rawStart, length);
+                continue;
+            }
+            int newline = -1;
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline == -1) {
+                scanned = end;
+                break;
+            }
+            int frameStart = start;
+            start = newline + 1;
+            scanned = start;
+            if (newline == frameStart || (newline == frameStart + 1 && buffer[frameStart] == '\r')) {
+                continue;
+            }
+            listener.onFrame(buffer, frameStart, newline - frameStart);
+        }
+        if (start == end) {
+            //Everything consumed, the next read starts from the beginning again
+            start = end = scanned = 0;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when {@link LanLinkProvider} broadcasts its identity, from a single thread.
+ * <p>
+ * A network change usually comes with several events (connectivity, wifi state, supplicant,
+ * screen on...), so triggers received within {@link #COALESCE_WINDOW_MS} of each other result
+ * in a single broadcast. If nobody answers, the broadcast is repeated after 2, 4, 8... seconds,
+ * until {@link #MAX_RETRY_DELAY_MS}, and then we wait for the next trigger.
+ * <p>
+ * It also keeps the addresses the custom devices resolve to, and the addresses we recently
+ * failed to connect to.
+ */
+class DiscoveryScheduler {
+
+    private static final long COALESCE_WINDOW_MS = 500;
+    private static final long FIRST_RETRY_DELAY_MS = 2 * 1000;
+    private static final long MAX_RETRY_DELAY_MS = 64 * 1000;
+    private static final long RESOLVED_ADDRESS_TTL_MS = 10 * 60 * 1000;
+    private static final long BLACKLIST_MS = 5 * 1000;
+
+    private final Runnable broadcast;
+    private final ScheduledThreadPoolExecutor executor;
+
+    private ScheduledFuture<?> pending = null; //Next broadcast, if there's one
+    private boolean pendingIsRetry = false;
+    private int generation = 0; //Lets a broadcast that was replaced know it shouldn't run
+    private long retryDelay = 0; //0 means we don't retry
+
+    //Only used from the scheduler thread
+    private final HashMap<String, InetAddress> resolvedAddresses = new HashMap<>(); //Null for failed lookups
+    private String resolvedList = null;
+    private long resolvedAt = 0;
+    private volatile boolean retryFailedLookups = false;
+
+    private final HashSet<InetAddress> blacklist = new HashSet<>();
+
+    DiscoveryScheduler(Runnable broadcast) {
+        this.broadcast = broadcast;
+        executor = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "KDE/DiscoveryScheduler"));
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    //Something changed (network, screen, user refreshing...) and we should let others know we are here
+    synchronized void trigger() {
+        retryDelay = FIRST_RETRY_DELAY_MS;
+        retryFailedLookups = true; //Maybe they failed because we had no network
+        if (pending != null) {
+            if (!pendingIsRetry) {
+                return; //Coalesced with the one that's coming
+            }
+            pending.cancel(false);
+        }
+        schedule(COALESCE_WINDOW_MS, false);
+    }
+
+    //Someone connected to us or we connected to someone, no need to insist
+    synchronized void answered() {
+        retryDelay = 0;
+        if (pending != null && pendingIsRetry) {
+            pending.cancel(false);
+            pending = null;
+            generation++;
+        }
+    }
+
+    synchronized void stop() {
+        retryDelay = 0;
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        generation++;
+    }
+
+    //Called with the lock held
+    private void schedule(long delay, boolean retry) {
+        final int scheduledGeneration = ++generation;
+        pendingIsRetry = retry;
+        pending = executor.schedule(() -> run(scheduledGeneration), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void run(int scheduledGeneration) {
+        synchronized (this) {
+            if (scheduledGeneration != generation) {
+                return;
+            }
+            pending = null;
+        }
+
+        try {
+            broadcast.run();
+        } catch (Exception e) {
+            Log.e("KDE/DiscoveryScheduler", "Broadcast failed");
+            e.printStackTrace();
+        }
+
+        synchronized (this) {
+            if (pending != null || retryDelay == 0) {
+                return; //Triggered again while broadcasting, or nobody wants us to retry
+            }
+            schedule(retryDelay, true);
+            retryDelay *= 2;
+            if (retryDelay > MAX_RETRY_DELAY_MS) {
+                retryDelay = 0; //That was the last one
+            }
+        }
+    }
+
+    /**
+     * Resolves the given names, reusing what they resolved to the last time for a while. Names
+     * that can't be resolved are skipped, and looked up again after the next trigger. Has to be
+     * called from the broadcast, since it's the only thing running in the scheduler thread.
+     */
+    List<InetAddress> resolve(List<String> names) {
+        long now = System.currentTimeMillis();
+        String list = names.toString();
+        if (!list.equals(resolvedList) || now - resolvedAt > RESOLVED_ADDRESS_TTL_MS) {
+            resolvedAddresses.clear();
+            resolvedList = list;
+            resolvedAt = now;
+        } else if (retryFailedLookups) {
+            resolvedAddresses.values().removeAll(Collections.singleton(null));
+        }
+        retryFailedLookups = false;
+
+        ArrayList<InetAddress> addresses = new ArrayList<>(names.size());
+        for (String name : names) {
+            InetAddress address;
+            if (resolvedAddresses.containsKey(name)) {
+                address = resolvedAddresses.get(name);
+            } else {
+                try {
+                    address = InetAddress.getByName(name);
+                } catch (Exception e) {
+                    Log.e("KDE/DiscoveryScheduler", "Could not resolve " + name);
+                    address = null;
+                }
+                resolvedAddresses.put(name, address);
+            }
+            if (address != null) {
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Ignores connection failures with the address for a while, so we don't keep triggering
+     * broadcasts because of it. Returns false if it was already blacklisted.
+     */
+    boolean blacklist(final InetAddress address) {
+        synchronized (blacklist) {
+            if (!blacklist.add(address)) {
+                return false;
+            }
+        }
+        executor.schedule(() -> {
+            synchronized (blacklist) {
+                blacklist.remove(address);
+            }
+        }, BLACKLIST_MS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+}
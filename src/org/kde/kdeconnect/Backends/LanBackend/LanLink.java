@@ -23,25 +23,28 @@ package org.kde.kdeconnect.Backends.LanBackend;
 import android.content.Context;
 import android.util.Log;
 
-import org.json.JSONObject;
 import org.kde.kdeconnect.Backends.BaseLink;
 import org.kde.kdeconnect.Backends.BasePairingHandler;
+import org.kde.kdeconnect.Backends.FrameDecoder;
+import org.kde.kdeconnect.Backends.PayloadMultiplexer;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.RsaHelper;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
-import org.kde.kdeconnect.Helpers.StringsHelper;
+import org.kde.kdeconnect.Helpers.SerialExecutor;
+import org.kde.kdeconnect.Helpers.TransferHelper;
 import org.kde.kdeconnect.NetworkPacket;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.PublicKey;
 
 import javax.net.ssl.SSLSocket;
@@ -62,24 +65,140 @@ public class LanLink extends BaseLink {
                                                   // potentially ask for pairing.
 
     private volatile Socket socket = null;
+    private volatile NioConnection connection = null; //Used instead of socket when the provider runs in NIO mode
+    private volatile OutputStream writer = null; //Buffered, so the writer thread can flush once per batch
+    private SerialExecutor receiveExecutor = null; //Keeps packets from the NIO loop in order, off the loop thread
+    private final PayloadMultiplexer multiplexer = new PayloadMultiplexer();
+    private final PayloadChannelPool payloadChannels = new PayloadChannelPool();
+    private final Object writeLock = new Object();
 
     private final LinkDisconnectedCallback callback;
 
     @Override
     public void disconnect() {
+        NioConnection currentConnection = connection;
+        if (currentConnection != null) {
+            Log.i("LanLink/Disconnect","connection:"+ currentConnection.hashCode());
+            currentConnection.close();
+            payloadChannels.closeAll();
+            return;
+        }
         Log.i("LanLink/Disconnect","socket:"+ socket.hashCode());
         try {
             socket.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        payloadChannels.closeAll();
+    }
+
+    private boolean isConnected() {
+        return socket != null || connection != null;
+    }
+
+    private boolean isSecure() {
+        NioConnection currentConnection = connection;
+        return (currentConnection != null) ? currentConnection.isSecure() : (socket instanceof SSLSocket);
+    }
+
+    InetAddress getRemoteAddress() {
+        NioConnection currentConnection = connection;
+        return (currentConnection != null) ? currentConnection.getRemoteAddress() : ((InetSocketAddress) socket.getRemoteSocketAddress()).getAddress();
+    }
+
+    //NIO version of reset(Socket, ConnectionStarted): packets are read by the provider's event loop instead of a thread of our own
+    public void reset(final NioConnection newConnection, ConnectionStarted connectionSource) {
+
+        Socket oldSocket;
+        NioConnection oldConnection;
+        synchronized (writeLock) {
+            oldSocket = socket;
+            oldConnection = connection;
+            socket = null;
+            connection = newConnection;
+            writer = newConnection.getOutputStream(); //Only sends on flush, no need to buffer
+            multiplexer.outgoingFailed(new IOException("Connection replaced")); //The other end dropped what it had of them
+            payloadChannels.closeAll();
+            if (receiveExecutor == null) {
+                receiveExecutor = new SerialExecutor(newConnection.getEventLoop().getWorkers());
+            }
+        }
+
+        this.connectionSource = connectionSource;
+
+        if (oldSocket != null) {
+            try { oldSocket.close(); } catch (IOException ignored) { }
+        }
+        if (oldConnection != null) {
+            oldConnection.close();
+        }
+
+        final SerialExecutor executor = receiveExecutor;
+        final PayloadMultiplexer.Receiver incoming = new PayloadMultiplexer.Receiver();
+        newConnection.setListener(new NioConnection.Listener() {
+            @Override
+            public void onConnected(NioConnection c) {
+            }
+
+            @Override
+            public void onFrame(NioConnection c, byte[] buffer, int offset, int length) {
+                try {
+                    final NetworkPacket np = NetworkPacket.unserializeLazily(buffer, offset, length);
+                    metrics.packetReceived(np.getType(), length + 1);
+                    if (np.getType().equals(PayloadMultiplexer.PACKET_TYPE_PAYLOAD_CHUNK)) {
+                        c.expectRawBytes(incoming.chunkReceived(np));
+                    } else if (incoming.isMultiplexed(np)) {
+                        incoming.addIncoming(np, isPaired());
+                    } else {
+                        executor.execute(() -> receivedNetworkPacket(np));
+                    }
+                } catch (Exception e) {
+                    Log.e("LanLink", "Could not parse packet from " + getDeviceId(), e);
+                }
+            }
+
+            @Override
+            public void onRawData(NioConnection c, byte[] buffer, int offset, int length) {
+                final NetworkPacket completed = incoming.chunkDataReceived(buffer, offset, length);
+                if (completed != null) {
+                    executor.execute(() -> packageReceived(completed));
+                }
+            }
+
+            @Override
+            public void onHandshakeCompleted(NioConnection c) {
+                c.resumeFrames();
+            }
+
+            @Override
+            public void onClosed(NioConnection c, Exception reason) {
+                Log.i("LanLink", "Connection closed: " + c.hashCode() + ". Reason: " + (reason == null ? null : reason.getMessage()));
+                executor.execute(() -> {
+                    if (c == connection) {
+                        callback.linkDisconnected(LanLink.this);
+                    }
+                });
+            }
+        });
+        newConnection.resumeFrames();
     }
 
     //Returns the old socket
     public Socket reset(final Socket newSocket, ConnectionStarted connectionSource) throws IOException {
 
         Socket oldSocket = socket;
-        socket = newSocket;
+        NioConnection oldConnection = connection;
+        synchronized (writeLock) {
+            socket = newSocket;
+            connection = null;
+            writer = new BufferedOutputStream(newSocket.getOutputStream(), 16 * 1024);
+            multiplexer.outgoingFailed(new IOException("Connection replaced")); //The other end dropped what it had of them
+            payloadChannels.closeAll();
+        }
+
+        if (oldConnection != null) {
+            oldConnection.close();
+        }
 
         this.connectionSource = connectionSource;
 
@@ -91,22 +210,45 @@ public class LanLink extends BaseLink {
         //Create a thread to take care of incoming data for the new socket
         new Thread(() -> {
             try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(newSocket.getInputStream(), StringsHelper.UTF8));
+                InputStream stream = newSocket.getInputStream();
+                final FrameDecoder decoder = new FrameDecoder();
+                final PayloadMultiplexer.Receiver incoming = new PayloadMultiplexer.Receiver();
+                FrameDecoder.Listener listener = new FrameDecoder.Listener() {
+                    @Override
+                    public void onFrame(byte[] buffer, int offset, int length) {
+                        try {
+                            NetworkPacket np = NetworkPacket.unserializeLazily(buffer, offset, length);
+                            metrics.packetReceived(np.getType(), length + 1);
+                            if (np.getType().equals(PayloadMultiplexer.PACKET_TYPE_PAYLOAD_CHUNK)) {
+                                decoder.expectRawBytes(incoming.chunkReceived(np));
+                            } else if (incoming.isMultiplexed(np)) {
+                                incoming.addIncoming(np, isPaired());
+                            } else {
+                                receivedNetworkPacket(np);
+                            }
+                        } catch (Exception e) {
+                            Log.e("LanLink", "Could not parse packet from " + getDeviceId(), e);
+                        }
+                    }
+
+                    @Override
+                    public void onRawData(byte[] buffer, int offset, int length) {
+                        NetworkPacket completed = incoming.chunkDataReceived(buffer, offset, length);
+                        if (completed != null) {
+                            packageReceived(completed);
+                        }
+                    }
+                };
                 while (true) {
-                    String packet;
+                    boolean open;
                     try {
-                        packet = reader.readLine();
+                        open = decoder.readFrom(stream, listener);
                     } catch (SocketTimeoutException e) {
                         continue;
                     }
-                    if (packet == null) {
+                    if (!open) {
                         throw new IOException("End of stream");
                     }
-                    if (packet.isEmpty()) {
-                        continue;
-                    }
-                    NetworkPacket np = NetworkPacket.unserialize(packet);
-                    receivedNetworkPacket(np);
                 }
             } catch (Exception e) {
                 Log.i("LanLink", "Socket closed: " + newSocket.hashCode() + ". Reason: " + e.getMessage());
@@ -127,6 +269,12 @@ public class LanLink extends BaseLink {
         reset(socket, connectionSource);
     }
 
+    public LanLink(Context context, String deviceId, LanLinkProvider linkProvider, NioConnection connection, ConnectionStarted connectionSource) {
+        super(context, deviceId, linkProvider);
+        callback = linkProvider;
+        reset(connection, connectionSource);
+    }
+
 
     @Override
     public String getName() {
@@ -138,9 +286,77 @@ public class LanLink extends BaseLink {
         return new LanPairingHandler(device, callback);
     }
 
+    //Picks the channel the payload will be sent through (opening a server socket if there's no idle one), if the packet has one
+    private PayloadChannelPool.OutgoingChannel preparePayload(NetworkPacket np) throws Exception {
+        if (!np.hasPayload()) {
+            return null;
+        }
+        return payloadChannels.takeOutgoing(np);
+    }
+
+    //Writes the body of the network package to the main socket
+    private void writePacket(NetworkPacket np, boolean flush) throws IOException {
+        synchronized (writeLock) {
+            try {
+                int bytes = np.serialize(writer);
+                metrics.packetSent(np.getType(), bytes);
+                if (flush) {
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                disconnect(); //main socket is broken, disconnect
+                throw e;
+            }
+        }
+    }
+
+    //Blocking, waits for the other end to connect to the channel if it's a new one and sends the payload through it
+    private void sendPayload(PayloadChannelPool.OutgoingChannel channel, NetworkPacket np, Device.SendPacketStatusCallback callback) throws Exception {
+        boolean sent = false;
+        try {
+            if (channel.socket == null) {
+                //Wait a maximum of 10 seconds for the other end to establish a connection with our socket, close it afterwards
+                channel.server.setSoTimeout(10*1000);
+
+                Socket payloadSocket = channel.server.accept();
+
+                //Convert to SSL if needed
+                if (isSecure()) {
+                    payloadSocket = SslHelper.convertToSslSocket(context, payloadSocket, getDeviceId(), true, false);
+                }
+                channel.socket = payloadSocket;
+            }
+
+            final long size = np.getPayloadSize();
+            WritableByteChannel outputChannel = isSecure() ? null : channel.socket.getChannel();
+
+            Log.i("KDE/LanLink", "Beginning to send payload");
+            long startedAt = System.nanoTime();
+            long progress = TransferHelper.copy(np.getPayload().getInputStream(), np.getPayload().getChannel(),
+                    channel.socket.getOutputStream(), outputChannel, size, transferred -> {
+                        if (size > 0) {
+                            callback.onProgressChanged((int) ((100 * transferred) / size));
+                        }
+                    });
+            if (size > 0 && progress < size) {
+                throw new IOException("Payload ended after " + progress + " of " + size + " bytes");
+            }
+            metrics.payloadSent(progress, System.nanoTime() - startedAt);
+            Log.i("KDE/LanLink", "Finished sending payload ("+progress+" bytes written)");
+            sent = true;
+        } finally {
+            np.getPayload().close();
+            if (sent) {
+                payloadChannels.releaseOutgoing(channel); //Keeps it open for the next payload, if the other end can reuse it
+            } else {
+                payloadChannels.discardOutgoing(channel);
+            }
+        }
+    }
+
     //Blocking, do not call from main thread
     private boolean sendPacketInternal(NetworkPacket np, final Device.SendPacketStatusCallback callback, PublicKey key) {
-        if (socket == null) {
+        if (!isConnected()) {
             Log.e("KDE/sendPacket", "Not yet connected");
             callback.onFailure(new NotYetConnectedException());
             return false;
@@ -148,16 +364,8 @@ public class LanLink extends BaseLink {
 
         try {
 
-            //Prepare socket for the payload
-            final ServerSocket server;
-            if (np.hasPayload()) {
-                server = LanLinkProvider.openServerSocketOnFreePort(LanLinkProvider.PAYLOAD_TRANSFER_MIN_PORT);
-                JSONObject payloadTransferInfo = new JSONObject();
-                payloadTransferInfo.put("port", server.getLocalPort());
-                np.setPayloadTransferInfo(payloadTransferInfo);
-            } else {
-                server = null;
-            }
+            //Prepare channel for the payload
+            final PayloadChannelPool.OutgoingChannel payloadChannel = preparePayload(np);
 
             //Encrypt if key provided
             if (key != null) {
@@ -166,61 +374,11 @@ public class LanLink extends BaseLink {
 
             //Log.e("LanLink/sendPacket", np.getType());
 
-            //Send body of the network package
-            try {
-                OutputStream writer = socket.getOutputStream();
-                writer.write(np.serialize().getBytes(StringsHelper.UTF8));
-                writer.flush();
-            } catch (Exception e) {
-                disconnect(); //main socket is broken, disconnect
-                throw e;
-            }
+            writePacket(np, true);
 
             //Send payload
-            if (server != null) {
-                Socket payloadSocket = null;
-                OutputStream outputStream = null;
-                InputStream inputStream = null;
-                try {
-                    //Wait a maximum of 10 seconds for the other end to establish a connection with our socket, close it afterwards
-                    server.setSoTimeout(10*1000);
-
-                    payloadSocket = server.accept();
-
-                    //Convert to SSL if needed
-                    if (socket instanceof SSLSocket) {
-                        payloadSocket = SslHelper.convertToSslSocket(context, payloadSocket, getDeviceId(), true, false);
-                    }
-
-                    outputStream = payloadSocket.getOutputStream();
-                    inputStream = np.getPayload().getInputStream();
-
-                    Log.i("KDE/LanLink", "Beginning to send payload");
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    long size = np.getPayloadSize();
-                    long progress = 0;
-                    long timeSinceLastUpdate = -1;
-                    while ((bytesRead = inputStream.read(buffer)) != -1) {
-                        //Log.e("ok",""+bytesRead);
-                        progress += bytesRead;
-                        outputStream.write(buffer, 0, bytesRead);
-                        if (size > 0) {
-                            if (timeSinceLastUpdate + 500 < System.currentTimeMillis()) { //Report progress every half a second
-                                long percent = ((100 * progress) / size);
-                                callback.onProgressChanged((int) percent);
-                                timeSinceLastUpdate = System.currentTimeMillis();
-                            }
-                        }
-                    }
-                    outputStream.flush();
-                    Log.i("KDE/LanLink", "Finished sending payload ("+progress+" bytes written)");
-                } finally {
-                    try { server.close(); } catch (Exception e) { }
-                    try { payloadSocket.close(); } catch (Exception e) { }
-                    np.getPayload().close();
-                    try { outputStream.close(); } catch (Exception e) { }
-                }
+            if (payloadChannel != null) {
+                sendPayload(payloadChannel, np, callback);
             }
 
             callback.onSuccess();
@@ -238,6 +396,98 @@ public class LanLink extends BaseLink {
         }
     }
 
+    //Called from the writer thread. The packet is written without flushing, and its payload (if any)
+    //is sent from a different thread so a big transfer doesn't hold back the packets queued after it.
+    @Override
+    protected boolean writeQueuedPacket(NetworkPacket np, final Device.SendPacketStatusCallback callback, PublicKey key) throws Exception {
+        if (!isConnected()) {
+            Log.e("KDE/sendPacket", "Not yet connected");
+            throw new NotYetConnectedException();
+        }
+
+        if (key == null && multiplexer.shouldMultiplex(np)) {
+            //The payload follows in chunks, interleaved with the next packets
+            multiplexer.addOutgoing(np, callback);
+            try {
+                writePacket(np, false);
+            } catch (Exception e) {
+                //The caller notifies the callback, the multiplexer must not do it again
+                multiplexer.removeOutgoing(np);
+                np.getPayload().close();
+                throw e;
+            }
+            return false;
+        }
+
+        final PayloadChannelPool.OutgoingChannel payloadChannel = preparePayload(np);
+        if (payloadChannel == null) {
+            if (key != null) {
+                np = RsaHelper.encrypt(np, key);
+            }
+            writePacket(np, false);
+            return true;
+        }
+
+        try {
+            if (key != null) {
+                np = RsaHelper.encrypt(np, key);
+            }
+            writePacket(np, false);
+        } catch (Exception e) {
+            payloadChannels.discardOutgoing(payloadChannel);
+            np.getPayload().close();
+            throw e;
+        }
+
+        //The other end will only connect once the batch is flushed
+        final NetworkPacket payloadPacket = np;
+        new Thread(() -> {
+            try {
+                sendPayload(payloadChannel, payloadPacket, callback);
+                callback.onSuccess();
+            } catch (Exception e) {
+                callback.onFailure(e);
+            }
+        }).start();
+        return false;
+    }
+
+    @Override
+    protected boolean writeQueuedChunks() {
+        synchronized (writeLock) {
+            if (!multiplexer.hasOutgoing()) {
+                return false;
+            }
+            try {
+                multiplexer.writeNextChunk(writer);
+            } catch (IOException e) {
+                disconnect(); //main socket is broken, disconnect
+                multiplexer.outgoingFailed(e);
+                return false;
+            }
+            return multiplexer.hasOutgoing();
+        }
+    }
+
+    @Override
+    protected void flushQueuedPackets() throws IOException {
+        synchronized (writeLock) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                disconnect(); //main socket is broken, disconnect
+                multiplexer.outgoingFailed(e);
+                throw e;
+            }
+            multiplexer.outgoingFlushed();
+        }
+    }
+
+    //Enables the ways of sending payloads the other end announced in its identity packet
+    public void setTransferCapabilities(NetworkPacket identityPacket) {
+        multiplexer.setSupportedByPeer(identityPacket.getBoolean(PayloadMultiplexer.CAPABILITY));
+        payloadChannels.setSupportedByPeer(identityPacket.getBoolean(PayloadChannelPool.CAPABILITY));
+    }
 
     //Blocking, do not call from main thread
     @Override
@@ -262,17 +512,34 @@ public class LanLink extends BaseLink {
             }
         }
 
-        if (np.hasPayloadTransferInfo()) {
-            Socket payloadSocket = new Socket();
+        if (np.hasPayloadTransferInfo() && !np.getPayloadTransferInfo().has("port")) {
+            //Comes through a channel that is already open
             try {
+                InputStream payloadStream = payloadChannels.getIncomingStream(np, null);
+                if (payloadStream != null) {
+                    np.setPayload(new NetworkPacket.Payload(payloadStream, np.getPayloadSize()));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.e("KDE/LanLink", "Exception reading payload from channel");
+            }
+        } else if (np.hasPayloadTransferInfo()) {
+            Socket payloadSocket = null;
+            try {
+                //Backed by a channel so unencrypted payloads can be written to files without copies
+                payloadSocket = isSecure() ? new Socket() : SocketChannel.open().socket();
                 int tcpPort = np.getPayloadTransferInfo().getInt("port");
-                InetSocketAddress deviceAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
-                payloadSocket.connect(new InetSocketAddress(deviceAddress.getAddress(), tcpPort));
+                payloadSocket.connect(new InetSocketAddress(getRemoteAddress(), tcpPort));
                 // Use ssl if existing link is on ssl
-                if (socket instanceof SSLSocket) {
+                if (isSecure()) {
                     payloadSocket = SslHelper.convertToSslSocket(context, payloadSocket, getDeviceId(), true, true);
                 }
-                np.setPayload(new NetworkPacket.Payload(payloadSocket, np.getPayloadSize()));
+                if (payloadChannels.isPooled(np)) {
+                    //The sender will keep using this connection for its next payloads
+                    np.setPayload(new NetworkPacket.Payload(payloadChannels.getIncomingStream(np, payloadSocket), np.getPayloadSize()));
+                } else {
+                    np.setPayload(new NetworkPacket.Payload(payloadSocket, np.getPayloadSize()));
+                }
             } catch (Exception e) {
                 try { payloadSocket.close(); } catch(Exception ignored) { }
                 e.printStackTrace();
@@ -26,20 +26,23 @@ import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Log;
 
+import org.json.JSONException;
 import org.kde.kdeconnect.Backends.BaseLink;
 import org.kde.kdeconnect.Backends.BaseLinkProvider;
+import org.kde.kdeconnect.Backends.FrameDecoder;
+import org.kde.kdeconnect.Backends.PayloadMultiplexer;
 import org.kde.kdeconnect.BackgroundService;
 import org.kde.kdeconnect.Device;
 import org.kde.kdeconnect.Helpers.DeviceHelper;
+import org.kde.kdeconnect.Helpers.Histogram;
 import org.kde.kdeconnect.Helpers.NetworkHelper;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
+import org.kde.kdeconnect.Helpers.SerialExecutor;
 import org.kde.kdeconnect.Helpers.StringsHelper;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.UserInterface.CustomDevicesActivity;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -47,12 +50,21 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocket;
@@ -74,18 +86,45 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
     private final static int MAX_PORT = 1764;
     final static int PAYLOAD_TRANSFER_MIN_PORT = 1739;
 
+    //Experimental: one selector thread for every link and listener, see NioEventLoop
+    public static final String KEY_NIO_BACKEND_PREFERENCE = "lan_nio_backend";
+
     private final Context context;
+    private final boolean useNio;
+    private NioEventLoop nioLoop;
 
     private final HashMap<String, LanLink> visibleComputers = new HashMap<>();  //Links by device id
 
+    private static final int MAX_UDP_PACKET_SIZE = 64 * 1024; //Nothing bigger fits in a datagram
+    private static final int MAX_IDENTITY_PACKET_SIZE = MAX_UDP_PACKET_SIZE; //Same packet, when it comes through TCP
+    private static final long RECENT_BROADCAST_WINDOW_MS = 30 * 1000;
+    private static final int MAX_RECENT_BROADCASTS = 64; //Before pruning old entries
+    private final HashMap<String, Long> recentBroadcasts = new HashMap<>(); //Last time we acted on a broadcast of each deviceId@address
+
+    //Blocking handshakes run here, at most a few at a time and only one at a time per device
+    private static final int MAX_CONCURRENT_HANDSHAKES = 4;
+    private final ThreadPoolExecutor handshakeExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_HANDSHAKES, MAX_CONCURRENT_HANDSHAKES,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private final HashMap<String, SerialExecutor> handshakeQueues = new HashMap<>(); //By device id, only while it has handshakes queued
+
+    //How long handshakes wait for their turn, versus how long they take
+    private final Histogram handshakeQueueTimes = new Histogram();
+    private final Histogram handshakeTimes = new Histogram();
+
+    //See getIdentityBytes()
+    private final Object identityBytesLock = new Object();
+    private int identityBytesVersion = -1;
+    private byte[] identityBytes;
+    private byte[] identityBytesWithPort;
+    private int identityBytesPort;
+
     private ServerSocket tcpServer;
     private DatagramSocket udpServer;
     private DatagramSocket udpServerOldPort;
 
     private boolean listening = false;
 
-    // To prevent infinte loop between Android < IceCream because both device can only broadcast identity package but cannot connect via TCP
-    private final ArrayList<InetAddress> reverseConnectionBlackList = new ArrayList<>();
+    private final DiscoveryScheduler discovery = new DiscoveryScheduler(this::broadcastUdpPacket);
 
     @Override // SocketClosedCallback
     public void linkDisconnected(LanLink brokenLink) {
@@ -99,17 +138,44 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
 
         NetworkPacket networkPacket;
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String message = reader.readLine();
-            networkPacket = NetworkPacket.unserialize(message);
+            final NetworkPacket[] received = new NetworkPacket[1];
+            final JSONException[] error = new JSONException[1];
+            FrameDecoder decoder = new FrameDecoder(MAX_IDENTITY_PACKET_SIZE);
+            FrameDecoder.Listener listener = new FrameDecoder.Listener() {
+                @Override
+                public void onFrame(byte[] buffer, int offset, int length) {
+                    if (received[0] == null && error[0] == null) {
+                        try {
+                            received[0] = NetworkPacket.unserialize(buffer, offset, length);
+                        } catch (JSONException e) {
+                            error[0] = e;
+                        }
+                    }
+                }
+
+                @Override
+                public void onRawData(byte[] buffer, int offset, int length) {
+                }
+            };
+            while (received[0] == null) {
+                if (!decoder.readFrom(socket.getInputStream(), listener)) {
+                    throw new IOException("End of stream before the identity packet");
+                }
+                if (error[0] != null) {
+                    throw error[0]; //The first line has to be the identity, don't wait for more
+                }
+            }
+            networkPacket = received[0];
             //Log.e("TcpListener","Received TCP package: "+networkPacket.serialize());
         } catch (Exception e) {
             e.printStackTrace();
+            socket.close();
             return;
         }
 
         if (!networkPacket.getType().equals(NetworkPacket.PACKET_TYPE_IDENTITY)) {
             Log.e("KDE/LanLinkProvider", "Expecting an identity package instead of " + networkPacket.getType());
+            socket.close();
             return;
         }
 
@@ -124,27 +190,11 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
 
         try {
 
-            String message = new String(packet.getData(), StringsHelper.UTF8);
-            final NetworkPacket identityPacket = NetworkPacket.unserialize(message);
-            final String deviceId = identityPacket.getString("deviceId");
-            if (!identityPacket.getType().equals(NetworkPacket.PACKET_TYPE_IDENTITY)) {
-                Log.e("KDE/LanLinkProvider", "Expecting an UDP identity package");
-                return;
-            } else {
-                String myId = DeviceHelper.getDeviceId(context);
-                if (deviceId.equals(myId)) {
-                    //Ignore my own broadcast
-                    return;
-                }
-            }
-
-            if (identityPacket.getInt("protocolVersion") >= MIN_VERSION_WITH_NEW_PORT_SUPPORT && identityPacket.getInt("tcpPort") < MIN_PORT) {
-                Log.w("KDE/LanLinkProvider", "Ignoring a udp broadcast from legacy port because it comes from a device which knows about the new port.");
+            final NetworkPacket identityPacket = NetworkPacket.unserialize(packet.getData(), packet.getOffset(), packet.getLength());
+            if (!shouldConnectToBroadcast(identityPacket, address)) {
                 return;
             }
 
-            Log.i("KDE/LanLinkProvider", "Broadcast identity package received from " + identityPacket.getString("deviceName"));
-
             int tcpPort = identityPacket.getInt("tcpPort", MIN_PORT);
 
             SocketFactory socketFactory = SocketFactory.getDefault();
@@ -152,8 +202,7 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
             configureSocket(socket);
 
             OutputStream out = socket.getOutputStream();
-            NetworkPacket myIdentity = NetworkPacket.createIdentityPacket(context);
-            out.write(myIdentity.serialize().getBytes());
+            out.write(getIdentityBytes(-1));
             out.flush();
 
             identityPacketReceived(identityPacket, socket, LanLink.ConnectionStarted.Remotely);
@@ -161,20 +210,83 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
         } catch (Exception e) {
             Log.e("KDE/LanLinkProvider", "Cannot connect to " + address);
             e.printStackTrace();
-            if (!reverseConnectionBlackList.contains(address)) {
-                Log.w("KDE/LanLinkProvider", "Blacklisting " + address);
-                reverseConnectionBlackList.add(address);
-                new Timer().schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        reverseConnectionBlackList.remove(address);
-                    }
-                }, 5 * 1000);
+            connectionToBroadcastFailed(address);
+        }
+    }
+
+    private boolean shouldConnectToBroadcast(NetworkPacket identityPacket, InetAddress address) {
+        final String deviceId = identityPacket.getString("deviceId");
+        if (!identityPacket.getType().equals(NetworkPacket.PACKET_TYPE_IDENTITY)) {
+            Log.e("KDE/LanLinkProvider", "Expecting an UDP identity package");
+            return false;
+        } else {
+            String myId = DeviceHelper.getDeviceId(context);
+            if (deviceId.equals(myId)) {
+                //Ignore my own broadcast
+                return false;
+            }
+        }
+
+        if (identityPacket.getInt("protocolVersion") >= MIN_VERSION_WITH_NEW_PORT_SUPPORT && identityPacket.getInt("tcpPort") < MIN_PORT) {
+            Log.w("KDE/LanLinkProvider", "Ignoring a udp broadcast from legacy port because it comes from a device which knows about the new port.");
+            return false;
+        }
+
+        if (isRepeatedBroadcast(deviceId, address)) {
+            return false;
+        }
+
+        Log.i("KDE/LanLinkProvider", "Broadcast identity package received from " + identityPacket.getString("deviceName"));
+        return true;
+    }
 
-                // Try to cause a reverse connection
-                onNetworkChange();
+    /**
+     * Devices tend to send their identity several times in a row (on every network change, on
+     * every refresh...). If we are already linked to a device at that address, the link is alive
+     * (something came through it recently) and we already connected back to a broadcast of it
+     * recently, connecting back again would only replace a working connection.
+     */
+    private boolean isRepeatedBroadcast(String deviceId, InetAddress address) {
+        long now = System.currentTimeMillis();
+        String key = deviceId + "@" + address.getHostAddress();
+        Long lastActedOn;
+        synchronized (recentBroadcasts) {
+            lastActedOn = recentBroadcasts.get(key);
+        }
+        if (lastActedOn != null && now - lastActedOn <= RECENT_BROADCAST_WINDOW_MS) {
+            LanLink link;
+            synchronized (this) {
+                link = visibleComputers.get(deviceId);
+            }
+            if (link != null && address.equals(link.getRemoteAddress())
+                    && link.getMetrics().getMillisSinceLastPacketReceived() <= RECENT_BROADCAST_WINDOW_MS) {
+                Log.i("KDE/LanLinkProvider", "Ignoring repeated broadcast from " + deviceId + ", already linked");
+                return true;
+            }
+        }
+        //Only broadcasts we act on are recorded, so a device that keeps broadcasting isn't ignored forever
+        synchronized (recentBroadcasts) {
+            recentBroadcasts.put(key, now);
+            if (recentBroadcasts.size() > MAX_RECENT_BROADCASTS) {
+                Iterator<Long> it = recentBroadcasts.values().iterator();
+                while (it.hasNext()) {
+                    if (now - it.next() > RECENT_BROADCAST_WINDOW_MS) {
+                        it.remove();
+                    }
+                }
             }
         }
+        return false;
+    }
+
+    private void connectionToBroadcastFailed(final InetAddress address) {
+        // To prevent infinte loop between Android < IceCream because both device can only broadcast identity package but cannot connect via TCP
+        if (discovery.blacklist(address)) {
+            Log.w("KDE/LanLinkProvider", "Blacklisting " + address);
+
+            // Try to cause a reverse connection
+            onNetworkChange();
+        }
     }
 
     private void configureSocket(Socket socket) {
@@ -218,7 +330,7 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
 
                 if (isDeviceTrusted && !SslHelper.isCertificateStored(context, deviceId)) {
                     //Device paired with and old version, we can't use it as we lack the certificate
-                    BackgroundService.RunCommand(context, service -> {
+                    BackgroundService.RunCommandInBackground(context, service -> {
                         Device device = service.getDevice(deviceId);
                         if (device == null) return;
                         device.unpair();
@@ -240,7 +352,7 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
                     } catch (Exception e) {
                         Log.e("KDE/LanLinkProvider", "Handshake as " + mode + " failed with " + identityPacket.getString("deviceName"));
                         e.printStackTrace();
-                        BackgroundService.RunCommand(context, service -> {
+                        BackgroundService.RunCommandInBackground(context, service -> {
                             Device device = service.getDevice(deviceId);
                             if (device == null) return;
                             device.unpair();
@@ -248,11 +360,11 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
                     }
                 });
                 //Handshake is blocking, so do it on another thread and free this thread to keep receiving new connection
-                new Thread(() -> {
+                final long queuedAt = System.currentTimeMillis();
+                runHandshake(deviceId, () -> {
+                    long startedAt = System.currentTimeMillis();
                     try {
-                        synchronized (this) {
-                            sslsocket.startHandshake();
-                        }
+                        sslsocket.startHandshake();
                     } catch (Exception e) {
                         Log.e("KDE/LanLinkProvider", "Handshake failed with " + identityPacket.getString("deviceName"));
                         e.printStackTrace();
@@ -261,8 +373,10 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
                         //for (String cipher : ciphers) {
                         //    Log.i("SupportedCiphers","cipher: " + cipher);
                         //}
+                    } finally {
+                        handshakeFinished(identityPacket, startedAt - queuedAt, System.currentTimeMillis() - startedAt);
                     }
-                }).start();
+                });
             } else {
                 addLink(identityPacket, socket, connectionStarted);
             }
@@ -285,26 +399,386 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
      * @param connectionOrigin which side started this connection
      * @throws IOException if an exception is thrown by {@link LanLink#reset(Socket, LanLink.ConnectionStarted)}
      */
-    private void addLink(final NetworkPacket identityPacket, Socket socket, LanLink.ConnectionStarted connectionOrigin) throws IOException {
+    private synchronized void addLink(final NetworkPacket identityPacket, Socket socket, LanLink.ConnectionStarted connectionOrigin) throws IOException {
 
         String deviceId = identityPacket.getString("deviceId");
+        discovery.answered();
         LanLink currentLink = visibleComputers.get(deviceId);
         if (currentLink != null) {
             //Update old link
             Log.i("KDE/LanLinkProvider", "Reusing same link for device " + deviceId);
+            currentLink.setTransferCapabilities(identityPacket);
             final Socket oldSocket = currentLink.reset(socket, connectionOrigin);
             //Log.e("KDE/LanLinkProvider", "Replacing socket. old: "+ oldSocket.hashCode() + " - new: "+ socket.hashCode());
         } else {
             Log.i("KDE/LanLinkProvider", "Creating a new link for device " + deviceId);
             //Let's create the link
             LanLink link = new LanLink(context, deviceId, this, socket, connectionOrigin);
+            link.setTransferCapabilities(identityPacket);
+            visibleComputers.put(deviceId, link);
+            connectionAccepted(identityPacket, link);
+        }
+    }
+
+    private synchronized void addLink(final NetworkPacket identityPacket, NioConnection connection, LanLink.ConnectionStarted connectionOrigin) {
+
+        String deviceId = identityPacket.getString("deviceId");
+        discovery.answered();
+        LanLink currentLink = visibleComputers.get(deviceId);
+        if (currentLink != null) {
+            //Update old link
+            Log.i("KDE/LanLinkProvider", "Reusing same link for device " + deviceId);
+            currentLink.setTransferCapabilities(identityPacket);
+            currentLink.reset(connection, connectionOrigin);
+        } else {
+            Log.i("KDE/LanLinkProvider", "Creating a new link for device " + deviceId);
+            //Let's create the link
+            LanLink link = new LanLink(context, deviceId, this, connection, connectionOrigin);
+            link.setTransferCapabilities(identityPacket);
             visibleComputers.put(deviceId, link);
             connectionAccepted(identityPacket, link);
         }
     }
 
+    //Queues the handshake after the ones of the same device. The device id comes from the peer, so the queue is removed once empty
+    private void runHandshake(final String deviceId, final Runnable handshake) {
+        synchronized (handshakeQueues) {
+            SerialExecutor queue = handshakeQueues.get(deviceId);
+            if (queue == null) {
+                queue = new SerialExecutor(handshakeExecutor);
+                handshakeQueues.put(deviceId, queue);
+            }
+            final SerialExecutor thisQueue = queue;
+            queue.execute(() -> {
+                try {
+                    handshake.run();
+                } finally {
+                    synchronized (handshakeQueues) {
+                        //Only this task is left, anything queued later would have been added with the lock held
+                        if (thisQueue.getQueueSize() <= 1 && handshakeQueues.get(deviceId) == thisQueue) {
+                            handshakeQueues.remove(deviceId);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void handshakeFinished(NetworkPacket identityPacket, long queuedMillis, long tookMillis) {
+        handshakeQueueTimes.record(queuedMillis);
+        handshakeTimes.record(tookMillis);
+        Log.i("KDE/LanLinkProvider", "Handshake with " + identityPacket.getString("deviceName") + " took " + tookMillis + "ms, after waiting " + queuedMillis + "ms for its turn");
+    }
+
+    //Time handshakes spent waiting for a thread, and doing the actual handshake
+    @Override
+    public String getMetricsReport() {
+        return "  Handshake queued: " + handshakeQueueTimes.toString("ms") + "\n"
+                + "  Handshake: " + handshakeTimes.toString("ms") + "\n";
+    }
+
+    //Our identity as sent over LAN, which also announces the transfer features only LanLink supports
+    public NetworkPacket createIdentityPacket() {
+        NetworkPacket identity = NetworkPacket.createIdentityPacket(context);
+        identity.set(PayloadMultiplexer.CAPABILITY, true);
+        identity.set(PayloadChannelPool.CAPABILITY, true);
+        return identity;
+    }
+
+    /**
+     * Our identity, serialized and ready to be written, with the given tcpPort or without one if
+     * it's -1. Kept until the identity is invalidated or the port changes, since we send it on
+     * every broadcast and every connection. The bytes are shared, don't modify them.
+     */
+    private byte[] getIdentityBytes(int tcpPort) throws JSONException {
+        synchronized (identityBytesLock) {
+            int version = NetworkPacket.getIdentityPacketVersion();
+            if (version != identityBytesVersion) {
+                identityBytes = null;
+                identityBytesWithPort = null;
+                identityBytesVersion = version;
+            }
+            if (tcpPort == -1) {
+                if (identityBytes == null) {
+                    identityBytes = createIdentityPacket().serialize().getBytes(StringsHelper.UTF8);
+                }
+                return identityBytes;
+            }
+            if (identityBytesWithPort == null || identityBytesPort != tcpPort) {
+                NetworkPacket identity = createIdentityPacket();
+                identity.set("tcpPort", tcpPort);
+                identityBytesWithPort = identity.serialize().getBytes(StringsHelper.UTF8);
+                identityBytesPort = tcpPort;
+            }
+            return identityBytesWithPort;
+        }
+    }
+
     public LanLinkProvider(Context context) {
+        this(context, false);
+    }
+
+    public LanLinkProvider(Context context, boolean useNio) {
         this.context = context;
+        this.useNio = useNio;
+        handshakeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * NIO version of {@link #identityPacketReceived(NetworkPacket, Socket, LanLink.ConnectionStarted)}.
+     * Called from a worker thread, with the connection's frames paused.
+     */
+    private void nioIdentityPacketReceived(final NetworkPacket identityPacket, final NioConnection connection, final LanLink.ConnectionStarted connectionStarted) {
+
+        String myId = DeviceHelper.getDeviceId(context);
+        final String deviceId = identityPacket.getString("deviceId");
+        if (deviceId.equals(myId)) {
+            Log.e("KDE/LanLinkProvider", "Somehow I'm connected to myself, ignoring. This should not happen.");
+            connection.close();
+            return;
+        }
+
+        // If I'm the TCP server I will be the SSL client and viceversa.
+        final boolean clientMode = (connectionStarted == LanLink.ConnectionStarted.Locally);
+
+        try {
+            if (identityPacket.getInt("protocolVersion") >= MIN_VERSION_WITH_SSL_SUPPORT) {
+
+                SharedPreferences preferences = context.getSharedPreferences("trusted_devices", Context.MODE_PRIVATE);
+                boolean isDeviceTrusted = preferences.getBoolean(deviceId, false);
+
+                if (isDeviceTrusted && !SslHelper.isCertificateStored(context, deviceId)) {
+                    //Device paired with and old version, we can't use it as we lack the certificate
+                    BackgroundService.RunCommandInBackground(context, service -> {
+                        Device device = service.getDevice(deviceId);
+                        if (device == null) return;
+                        device.unpair();
+                        //Retry as unpaired
+                        nioIdentityPacketReceived(identityPacket, connection, connectionStarted);
+                    });
+                    return;
+                }
+
+                Log.i("KDE/LanLinkProvider", "Starting SSL handshake with " + identityPacket.getString("deviceName") + " trusted:" + isDeviceTrusted);
+
+                final long[] handshakeStartedAt = new long[1];
+                connection.setListener(new NioConnection.Listener() {
+                    @Override
+                    public void onConnected(NioConnection c) {
+                    }
+
+                    @Override
+                    public void onFrame(NioConnection c, byte[] buffer, int offset, int length) {
+                    }
+
+                    @Override
+                    public void onRawData(NioConnection c, byte[] buffer, int offset, int length) {
+                    }
+
+                    @Override
+                    public void onHandshakeCompleted(NioConnection c) {
+                        //Never waits for a thread, the handshake runs on the event loop
+                        handshakeFinished(identityPacket, 0, System.currentTimeMillis() - handshakeStartedAt[0]);
+                        c.getEventLoop().getWorkers().execute(() -> {
+                            String mode = clientMode ? "client" : "server";
+                            try {
+                                Certificate certificate = c.getSslSession().getPeerCertificates()[0];
+                                identityPacket.set("certificate", Base64.encodeToString(certificate.getEncoded(), 0));
+                                Log.i("KDE/LanLinkProvider", "Handshake as " + mode + " successful with " + identityPacket.getString("deviceName") + " secured with " + c.getSslSession().getCipherSuite());
+                                addLink(identityPacket, c, connectionStarted);
+                            } catch (Exception e) {
+                                Log.e("KDE/LanLinkProvider", "Handshake as " + mode + " failed with " + identityPacket.getString("deviceName"));
+                                e.printStackTrace();
+                                c.close();
+                                BackgroundService.RunCommandInBackground(context, service -> {
+                                    Device device = service.getDevice(deviceId);
+                                    if (device == null) return;
+                                    device.unpair();
+                                });
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onClosed(NioConnection c, Exception reason) {
+                        Log.e("KDE/LanLinkProvider", "Handshake failed with " + identityPacket.getString("deviceName"));
+                        if (reason != null) {
+                            reason.printStackTrace();
+                        }
+                    }
+                });
+                handshakeStartedAt[0] = System.currentTimeMillis();
+                connection.startTls(SslHelper.createSslEngine(context, deviceId, connection.getRemoteAddress(), isDeviceTrusted, clientMode));
+            } else {
+                addLink(identityPacket, connection, connectionStarted);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            connection.close();
+        }
+
+    }
+
+    //They received my UDP broadcast and are connecting to me. The first thing they send should be their identity.
+    private final NioConnection.Listener nioIncomingConnectionListener = new NioConnection.Listener() {
+        @Override
+        public void onConnected(NioConnection connection) {
+        }
+
+        @Override
+        public void onFrame(NioConnection connection, byte[] buffer, int offset, int length) {
+            connection.pauseFrames(); //The rest is for the link, or the TLS handshake
+            final NetworkPacket networkPacket;
+            try {
+                networkPacket = NetworkPacket.unserialize(buffer, offset, length);
+            } catch (Exception e) {
+                e.printStackTrace();
+                connection.close();
+                return;
+            }
+
+            if (!networkPacket.getType().equals(NetworkPacket.PACKET_TYPE_IDENTITY)) {
+                Log.e("KDE/LanLinkProvider", "Expecting an identity package instead of " + networkPacket.getType());
+                connection.close();
+                return;
+            }
+
+            Log.i("KDE/LanLinkProvider", "Identity package received from a TCP connection from " + networkPacket.getString("deviceName"));
+            connection.getEventLoop().getWorkers().execute(() -> nioIdentityPacketReceived(networkPacket, connection, LanLink.ConnectionStarted.Locally));
+        }
+
+        @Override
+        public void onRawData(NioConnection connection, byte[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void onHandshakeCompleted(NioConnection connection) {
+        }
+
+        @Override
+        public void onClosed(NioConnection connection, Exception reason) {
+        }
+    };
+
+    //I've received their broadcast and should connect to their TCP socket and send my identity.
+    private void nioUdpPacketReceived(NioEventLoop loop, byte[] data, int length, final InetAddress address) {
+        try {
+            final NetworkPacket identityPacket = NetworkPacket.unserialize(data, 0, length);
+            if (!shouldConnectToBroadcast(identityPacket, address)) {
+                return;
+            }
+
+            int tcpPort = identityPacket.getInt("tcpPort", MIN_PORT);
+
+            NioConnection.connect(loop, new InetSocketAddress(address, tcpPort), new NioConnection.Listener() {
+                private boolean connected = false;
+
+                @Override
+                public void onConnected(NioConnection connection) {
+                    connected = true;
+                    connection.pauseFrames(); //Until we know whether to start TLS
+                    connection.getEventLoop().getWorkers().execute(() -> {
+                        try {
+                            connection.sendPlain(getIdentityBytes(-1));
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            connection.close();
+                            return;
+                        }
+                        nioIdentityPacketReceived(identityPacket, connection, LanLink.ConnectionStarted.Remotely);
+                    });
+                }
+
+                @Override
+                public void onFrame(NioConnection connection, byte[] buffer, int offset, int length) {
+                }
+
+                @Override
+                public void onRawData(NioConnection connection, byte[] buffer, int offset, int length) {
+                }
+
+                @Override
+                public void onHandshakeCompleted(NioConnection connection) {
+                }
+
+                @Override
+                public void onClosed(NioConnection connection, Exception reason) {
+                    if (!connected) {
+                        Log.e("KDE/LanLinkProvider", "Cannot connect to " + address);
+                        connectionToBroadcastFailed(address);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            Log.e("KDE/LanLinkProvider", "Cannot connect to " + address);
+            e.printStackTrace();
+            connectionToBroadcastFailed(address);
+        }
+    }
+
+    private DatagramSocket setupNioUdpListener(int udpPort) {
+        final DatagramChannel channel;
+        try {
+            channel = DatagramChannel.open();
+            channel.socket().setReuseAddress(true);
+            channel.socket().setBroadcast(true);
+            channel.socket().bind(new InetSocketAddress(udpPort));
+        } catch (IOException e) {
+            Log.e("LanLinkProvider", "Error creating udp server");
+            e.printStackTrace();
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_UDP_PACKET_SIZE);
+        final NioEventLoop loop = nioLoop; //onStop clears the field while the loop is still closing its channels
+        loop.register(channel, SelectionKey.OP_READ, new NioEventLoop.Handler() {
+            @Override
+            public void onRegistered(SelectionKey key) {
+            }
+
+            @Override
+            public void onReady(SelectionKey key) throws IOException {
+                SocketAddress sender;
+                while ((sender = channel.receive(buffer)) != null) {
+                    nioUdpPacketReceived(loop, buffer.array(), buffer.position(), ((InetSocketAddress) sender).getAddress());
+                    buffer.clear();
+                }
+            }
+
+            @Override
+            public void onClosed(Exception reason) {
+                Log.w("UdpListener", "Stopping UDP listener");
+            }
+        });
+        return channel.socket();
+    }
+
+    private void setupNioTcpListener() {
+        try {
+            final ServerSocketChannel channel = openServerSocketChannelOnFreePort(MIN_PORT);
+            tcpServer = channel.socket();
+            final NioEventLoop loop = nioLoop; //onStop clears the field while the loop is still closing its channels
+            loop.register(channel, SelectionKey.OP_ACCEPT, new NioEventLoop.Handler() {
+                @Override
+                public void onRegistered(SelectionKey key) {
+                }
+
+                @Override
+                public void onReady(SelectionKey key) throws IOException {
+                    SocketChannel socketChannel;
+                    while ((socketChannel = channel.accept()) != null) {
+                        configureSocket(socketChannel.socket());
+                        NioConnection.accepted(loop, socketChannel, nioIncomingConnectionListener);
+                    }
+                }
+
+                @Override
+                public void onClosed(Exception reason) {
+                    Log.w("TcpListener", "Stopping TCP listener");
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
     private DatagramSocket setupUdpListener(int udpPort) {
@@ -319,11 +793,11 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
             return null;
         }
         new Thread(() -> {
+            //Reused for every datagram, we are done with each one before receiving the next
+            DatagramPacket packet = new DatagramPacket(new byte[MAX_UDP_PACKET_SIZE], MAX_UDP_PACKET_SIZE);
             while (listening) {
-                final int bufferSize = 1024 * 512;
-                byte[] data = new byte[bufferSize];
-                DatagramPacket packet = new DatagramPacket(data, bufferSize);
                 try {
+                    packet.setLength(MAX_UDP_PACKET_SIZE); //receive() shrinks it to the size of the last datagram
                     server.receive(packet);
                     udpPacketReceived(packet);
                 } catch (Exception e) {
@@ -375,6 +849,23 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
         throw new IOException("No ports available");
     }
 
+    static ServerSocketChannel openServerSocketChannelOnFreePort(int minPort) throws IOException {
+        int tcpPort = minPort;
+        while (tcpPort <= MAX_PORT) {
+            ServerSocketChannel candidateServer = ServerSocketChannel.open();
+            try {
+                candidateServer.socket().bind(new InetSocketAddress(tcpPort));
+                Log.i("KDE/LanLink", "Using port " + tcpPort);
+                return candidateServer;
+            } catch (IOException e) {
+                candidateServer.close();
+                tcpPort++;
+            }
+        }
+        Log.e("KDE/LanLink", "No ports available");
+        throw new IOException("No ports available");
+    }
+
     private void broadcastUdpPacket() {
 
         if (NetworkHelper.isOnMobileNetwork(context)) {
@@ -382,50 +873,45 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
             return;
         }
 
-        new Thread(() -> {
-
-            String deviceListPrefs = PreferenceManager.getDefaultSharedPreferences(context).getString(CustomDevicesActivity.KEY_CUSTOM_DEVLIST_PREFERENCE, "");
-            ArrayList<String> iplist = new ArrayList<>();
-            if (!deviceListPrefs.isEmpty()) {
-                iplist = CustomDevicesActivity.deserializeIpList(deviceListPrefs);
-            }
-            iplist.add("255.255.255.255"); //Default: broadcast.
+        //Runs in the DiscoveryScheduler thread
+        String deviceListPrefs = PreferenceManager.getDefaultSharedPreferences(context).getString(CustomDevicesActivity.KEY_CUSTOM_DEVLIST_PREFERENCE, "");
+        ArrayList<String> iplist = new ArrayList<>();
+        if (!deviceListPrefs.isEmpty()) {
+            iplist = CustomDevicesActivity.deserializeIpList(deviceListPrefs);
+        }
+        iplist.add("255.255.255.255"); //Default: broadcast.
+        List<InetAddress> addresses = discovery.resolve(iplist);
 
-            NetworkPacket identity = NetworkPacket.createIdentityPacket(context);
-            int port = (tcpServer == null || !tcpServer.isBound()) ? MIN_PORT : tcpServer.getLocalPort();
-            identity.set("tcpPort", port);
-            DatagramSocket socket = null;
-            byte[] bytes = null;
-            try {
-                socket = new DatagramSocket();
-                socket.setReuseAddress(true);
-                socket.setBroadcast(true);
-                bytes = identity.serialize().getBytes(StringsHelper.UTF8);
-            } catch (Exception e) {
-                e.printStackTrace();
-                Log.e("KDE/LanLinkProvider", "Failed to create DatagramSocket");
-            }
+        int port = (tcpServer == null || !tcpServer.isBound()) ? MIN_PORT : tcpServer.getLocalPort();
+        DatagramSocket socket = null;
+        byte[] bytes = null;
+        try {
+            socket = new DatagramSocket();
+            socket.setReuseAddress(true);
+            socket.setBroadcast(true);
+            bytes = getIdentityBytes(port);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.e("KDE/LanLinkProvider", "Failed to create DatagramSocket");
+        }
 
-            if (bytes != null) {
-                //Log.e("KDE/LanLinkProvider","Sending packet to "+iplist.size()+" ips");
-                for (String ipstr : iplist) {
-                    try {
-                        InetAddress client = InetAddress.getByName(ipstr);
-                        socket.send(new DatagramPacket(bytes, bytes.length, client, MIN_PORT));
-                        socket.send(new DatagramPacket(bytes, bytes.length, client, MIN_PORT_LEGACY));
-                        //Log.i("KDE/LanLinkProvider","Udp identity package sent to address "+client);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        Log.e("KDE/LanLinkProvider", "Sending udp identity package failed. Invalid address? (" + ipstr + ")");
-                    }
+        if (bytes != null) {
+            //Log.e("KDE/LanLinkProvider","Sending packet to "+addresses.size()+" ips");
+            for (InetAddress client : addresses) {
+                try {
+                    socket.send(new DatagramPacket(bytes, bytes.length, client, MIN_PORT));
+                    socket.send(new DatagramPacket(bytes, bytes.length, client, MIN_PORT_LEGACY));
+                    //Log.i("KDE/LanLinkProvider","Udp identity package sent to address "+client);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Log.e("KDE/LanLinkProvider", "Sending udp identity package failed. Invalid address? (" + client + ")");
                 }
             }
+        }
 
-            if (socket != null) {
-                socket.close();
-            }
-
-        }).start();
+        if (socket != null) {
+            socket.close();
+        }
     }
 
     @Override
@@ -435,6 +921,24 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
 
             listening = true;
 
+            if (useNio) {
+                if (nioLoop == null) {
+                    try {
+                        nioLoop = new NioEventLoop();
+                    } catch (IOException e) {
+                        Log.e("KDE/LanLinkProvider", "Could not create the NIO event loop", e);
+                        listening = false;
+                        return;
+                    }
+                    nioLoop.start();
+                }
+                udpServer = setupNioUdpListener(MIN_PORT);
+                udpServerOldPort = setupNioUdpListener(MIN_PORT_LEGACY);
+                setupNioTcpListener();
+                discovery.trigger();
+                return;
+            }
+
             udpServer = setupUdpListener(MIN_PORT);
             udpServerOldPort = setupUdpListener(MIN_PORT_LEGACY);
 
@@ -445,19 +949,20 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
             // than ICS because server is disabled on both
             setupTcpListener();
 
-            broadcastUdpPacket();
+            discovery.trigger();
         }
     }
 
     @Override
     public void onNetworkChange() {
-        broadcastUdpPacket();
+        discovery.trigger();
     }
 
     @Override
     public void onStop() {
         //Log.i("KDE/LanLinkProvider", "onStop");
         listening = false;
+        discovery.stop();
         try {
             tcpServer.close();
         } catch (Exception e) {
@@ -473,6 +978,11 @@ public class LanLinkProvider extends BaseLinkProvider implements LanLink.LinkDis
         } catch (Exception e) {
             e.printStackTrace();
         }
+        if (nioLoop != null) {
+            //Closes the listeners and every NIO connection, onStart creates a new loop
+            nioLoop.stop();
+            nioLoop = null;
+        }
     }
 
     @Override
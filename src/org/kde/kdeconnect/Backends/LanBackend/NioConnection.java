@@ -0,0 +1,565 @@
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import org.kde.kdeconnect.Backends.FrameDecoder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A non-blocking TCP connection driven by a {@link NioEventLoop}. Incoming data is split in
+ * newline terminated frames which are handed to the {@link Listener}, optionally going through
+ * an {@link SSLEngine} first.
+ * <p>
+ * Connections start in plain text, since the identity packet is not encrypted, and switch to TLS
+ * with {@link #startTls(SSLEngine)}. Frame delivery can be paused while the listener decides what
+ * to do with the connection (for example, between the identity packet and the start of the
+ * handshake), in which case incoming bytes are kept until {@link #resumeFrames()}.
+ * <p>
+ * Unless stated otherwise, methods are safe to call from any thread.
+ */
+public class NioConnection implements NioEventLoop.Handler {
+
+    public interface Listener {
+        //Only for outgoing connections, called once the TCP connection is established
+        void onConnected(NioConnection connection);
+
+        //The buffer is reused after this returns, copy whatever has to be kept
+        void onFrame(NioConnection connection, byte[] buffer, int offset, int length);
+
+        //Bytes requested with expectRawBytes(), possibly split in several calls. Same buffer rules as onFrame
+        void onRawData(NioConnection connection, byte[] buffer, int offset, int length);
+
+        //Frames are paused when this is called, call resumeFrames() to keep receiving them
+        void onHandshakeCompleted(NioConnection connection);
+
+        void onClosed(NioConnection connection, Exception reason);
+    }
+
+    private static final int MAX_UNSENT_BYTES = 1024 * 1024; //Writers block in flush() above this
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static class Outgoing {
+        final ByteBuffer data;
+        final int plainLength; //What this counts for towards MAX_UNSENT_BYTES
+
+        Outgoing(ByteBuffer data, int plainLength) {
+            this.data = data;
+            this.plainLength = plainLength;
+        }
+    }
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private volatile Listener listener;
+    private SelectionKey key;
+
+    //Everything below is only accessed from the loop thread, except where noted
+
+    //Plain text received so far. Frames are in [start, end), we know there's no newline in [start, scanned)
+    private byte[] inBuffer = new byte[8192];
+    private int start = 0;
+    private int end = 0;
+    private int scanned = 0;
+    private int rawRemaining = 0;
+    private boolean paused = false;
+
+    private volatile SSLEngine engine = null;
+    private boolean handshaking = false;
+    private boolean runningTasks = false;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private final ArrayDeque<ByteBuffer> pendingBeforeHandshake = new ArrayDeque<>();
+
+    private final ArrayDeque<Outgoing> outgoing = new ArrayDeque<>();
+    private final Object unsentLock = new Object();
+    private int unsentBytes = 0; //Guarded by unsentLock
+    private volatile boolean closed = false;
+
+    private NioConnection(NioEventLoop loop, SocketChannel channel, Listener listener) {
+        this.loop = loop;
+        this.channel = channel;
+        this.listener = listener;
+    }
+
+    //Takes over an accepted channel
+    public static NioConnection accepted(NioEventLoop loop, SocketChannel channel, Listener listener) {
+        NioConnection connection = new NioConnection(loop, channel, listener);
+        loop.register(channel, SelectionKey.OP_READ, connection);
+        return connection;
+    }
+
+    //Starts connecting to the given address, listener.onConnected() is called once done
+    public static NioConnection connect(NioEventLoop loop, InetSocketAddress address, Listener listener) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        NioConnection connection = new NioConnection(loop, channel, listener);
+        try {
+            channel.socket().setKeepAlive(true);
+            channel.socket().setTcpNoDelay(true);
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        loop.register(channel, SelectionKey.OP_CONNECT, connection);
+        return connection;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public NioEventLoop getEventLoop() {
+        return loop;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isSecure() {
+        return engine != null;
+    }
+
+    public SSLSession getSslSession() {
+        return engine.getSession();
+    }
+
+    public InetAddress getRemoteAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    //Stops delivering frames. Only call from the loop thread, eg: from Listener.onFrame()
+    public void pauseFrames() {
+        paused = true;
+    }
+
+    /**
+     * Makes the next length bytes be delivered to Listener.onRawData() as they are, instead of
+     * being split in frames. Only call from the loop thread, eg: from Listener.onFrame()
+     */
+    public void expectRawBytes(int length) {
+        rawRemaining += length;
+    }
+
+    public void resumeFrames() {
+        loop.execute(() -> {
+            paused = false;
+            if (!closed) {
+                deliverFrames();
+            }
+        });
+    }
+
+    /**
+     * Switches the connection to TLS. Anything received after the last delivered frame is fed
+     * to the engine, so this should be called while frames are paused.
+     */
+    public void startTls(final SSLEngine sslEngine) {
+        loop.execute(() -> {
+            if (closed) {
+                return;
+            }
+            try {
+                engine = sslEngine;
+                SSLSession session = engine.getSession();
+                netIn = ByteBuffer.allocate(Math.max(session.getPacketBufferSize(), end - start));
+                netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+                //Bytes that arrived after the identity packet are already part of the handshake
+                netIn.put(inBuffer, start, end - start);
+                start = end = scanned = 0;
+                paused = false;
+                handshaking = true;
+                engine.beginHandshake();
+                processTls();
+            } catch (Exception e) {
+                closeNow(e);
+            }
+        });
+    }
+
+    //Sends the bytes without going through TLS, for what has to be sent before startTls(). Doesn't block
+    public void sendPlain(byte[] data) {
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        loop.execute(() -> {
+            if (closed) {
+                return;
+            }
+            outgoing.add(new Outgoing(buffer, 0));
+            try {
+                writeOutgoing();
+            } catch (IOException e) {
+                closeNow(e);
+            }
+        });
+    }
+
+    /**
+     * Stream for the application data. Nothing is sent until flush(), which blocks while too
+     * much data is waiting to be written to the socket. Not thread safe.
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            private byte[] buffer = new byte[8192];
+            private int count = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                ensureCapacity(1);
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ensureCapacity(len);
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+
+            private void ensureCapacity(int extra) throws IOException {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                if (count + extra > buffer.length) {
+                    byte[] bigger = new byte[Math.max(buffer.length * 2, count + extra)];
+                    System.arraycopy(buffer, 0, bigger, 0, count);
+                    buffer = bigger;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (count == 0) {
+                    return;
+                }
+                final ByteBuffer data = ByteBuffer.allocate(count);
+                data.put(buffer, 0, count);
+                data.flip();
+                count = 0;
+                synchronized (unsentLock) {
+                    while (unsentBytes > MAX_UNSENT_BYTES && !closed && !loop.inEventLoop()) {
+                        try {
+                            unsentLock.wait();
+                        } catch (InterruptedException e) {
+                            throw new IOException("Interrupted");
+                        }
+                    }
+                    if (closed) {
+                        throw new IOException("Connection closed");
+                    }
+                    unsentBytes += data.remaining();
+                }
+                loop.execute(() -> sendApplicationData(data));
+            }
+
+            @Override
+            public void close() {
+                NioConnection.this.close();
+            }
+        };
+    }
+
+    public void close() {
+        loop.execute(() -> closeNow(null));
+    }
+
+    @Override
+    public void onRegistered(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            listener.onConnected(this);
+            return;
+        }
+        if (key.isWritable()) {
+            writeOutgoing();
+        }
+        if (key.isValid() && key.isReadable()) {
+            if (engine == null) {
+                readPlain();
+            } else {
+                int read = channel.read(netIn);
+                if (read == -1) {
+                    throw new EOFException("End of stream");
+                }
+                processTls();
+            }
+        }
+    }
+
+    @Override
+    public void onClosed(Exception reason) {
+        closeNow(reason);
+    }
+
+    private void closeNow(Exception reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try { channel.close(); } catch (IOException ignored) { }
+        synchronized (unsentLock) {
+            unsentLock.notifyAll();
+        }
+        outgoing.clear();
+        pendingBeforeHandshake.clear();
+        listener.onClosed(this, reason);
+    }
+
+    private void readPlain() throws IOException {
+        ensureInRoom(1024);
+        int read = channel.read(ByteBuffer.wrap(inBuffer, end, inBuffer.length - end));
+        if (read == -1) {
+            throw new EOFException("End of stream");
+        }
+        end += read;
+        deliverFrames();
+    }
+
+    //Makes sure there are at least minRoom bytes free after end, compacting or growing inBuffer
+    private void ensureInRoom(int minRoom) throws IOException {
+        if (inBuffer.length - end >= minRoom) {
+            return;
+        }
+        int pending = end - start;
+        if (pending > FrameDecoder.DEFAULT_MAX_FRAME_SIZE) {
+            //Same limit as the blocking links, see FrameDecoder
+            throw new IOException("Packet bigger than " + FrameDecoder.DEFAULT_MAX_FRAME_SIZE + " bytes");
+        }
+        byte[] target = (inBuffer.length - pending >= minRoom) ? inBuffer : new byte[Math.max(inBuffer.length * 2, pending + minRoom)];
+        System.arraycopy(inBuffer, start, target, 0, pending);
+        inBuffer = target;
+        scanned -= start;
+        start = 0;
+        end = pending;
+    }
+
+    private void deliverFrames() {
+        while (!paused && !closed) {
+            if (rawRemaining > 0 && start < end) {
+                int length = Math.min(rawRemaining, end - start);
+                int rawStart = start;
+                rawRemaining -= length;
+                start += length;
+                scanned = start;
+                try {
+                    listener.onRawData(this, inBuffer, rawStart, length);
+                } catch (Exception e) {
+                    Log.e("KDE/NioConnection", "Exception handling raw data", e);
+                }
+                continue;
+            }
+            if (rawRemaining > 0) {
+                start = end = scanned = 0;
+                return;
+            }
+            int newline = -1;
+            for (int i = scanned; i < end; i++) {
+                if (inBuffer[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline == -1) {
+                scanned = end;
+                if (start == end) {
+                    start = end = scanned = 0;
+                }
+                return;
+            }
+            int frameStart = start;
+            start = newline + 1;
+            scanned = start;
+            if (newline == frameStart || (newline == frameStart + 1 && inBuffer[frameStart] == '\r')) {
+                continue;
+            }
+            try {
+                listener.onFrame(this, inBuffer, frameStart, newline - frameStart);
+            } catch (Exception e) {
+                Log.e("KDE/NioConnection", "Exception handling frame", e);
+            }
+        }
+    }
+
+    private void sendApplicationData(ByteBuffer data) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (engine == null) {
+                outgoing.add(new Outgoing(data, data.remaining()));
+            } else if (handshaking) {
+                pendingBeforeHandshake.add(data);
+                return;
+            } else {
+                wrap(data);
+            }
+            writeOutgoing();
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    //Encrypts all of data, queueing the resulting records in outgoing
+    private void wrap(ByteBuffer data) throws IOException {
+        int plainLength = data.remaining();
+        while (true) {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(data, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = ByteBuffer.allocate(netOut.capacity() * 2);
+                continue;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("TLS session closed");
+            }
+            netOut.flip();
+            ByteBuffer record = ByteBuffer.allocate(netOut.remaining());
+            record.put(netOut);
+            record.flip();
+            //The whole plain length is accounted to the last record
+            outgoing.add(new Outgoing(record, data.hasRemaining() ? 0 : plainLength));
+            if (!data.hasRemaining()) {
+                break;
+            }
+        }
+    }
+
+    private void writeOutgoing() throws IOException {
+        int written = 0;
+        while (!outgoing.isEmpty()) {
+            Outgoing head = outgoing.peek();
+            channel.write(head.data);
+            if (head.data.hasRemaining()) {
+                break;
+            }
+            outgoing.poll();
+            written += head.plainLength;
+        }
+        if (key != null && key.isValid()) {
+            int ops = key.interestOps();
+            int wanted = outgoing.isEmpty() ? (ops & ~SelectionKey.OP_WRITE) : (ops | SelectionKey.OP_WRITE);
+            if (wanted != ops) {
+                key.interestOps(wanted);
+            }
+        }
+        if (written > 0) {
+            synchronized (unsentLock) {
+                unsentBytes -= written;
+                unsentLock.notifyAll();
+            }
+        }
+    }
+
+    //The engine's tasks (certificate checks, key exchange...) are slow, so they run in a worker
+    private void runDelegatedTasks() {
+        runningTasks = true;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            tasks.add(task);
+        }
+        loop.getWorkers().execute(() -> {
+            for (Runnable t : tasks) {
+                t.run();
+            }
+            loop.execute(() -> {
+                runningTasks = false;
+                try {
+                    processTls();
+                } catch (Exception e) {
+                    closeNow(e);
+                }
+            });
+        });
+    }
+
+    //Feeds whatever is in netIn to the engine, driving the handshake if needed, and delivers the resulting frames
+    private void processTls() throws IOException {
+        if (runningTasks) {
+            return; //Will be called again once they are done
+        }
+        while (!closed) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                break;
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY);
+            } else if (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING || status == SSLEngineResult.HandshakeStatus.FINISHED) {
+                if (handshaking) {
+                    handshaking = false;
+                    paused = true;
+                    while (!pendingBeforeHandshake.isEmpty()) {
+                        wrap(pendingBeforeHandshake.poll());
+                    }
+                    writeOutgoing();
+                    listener.onHandshakeCompleted(this);
+                }
+                if (!unwrap()) {
+                    break;
+                }
+            } else { //NEED_UNWRAP
+                handshaking = true;
+                if (!unwrap()) {
+                    break;
+                }
+            }
+        }
+        writeOutgoing();
+        deliverFrames();
+    }
+
+    //Returns false when more data from the network is needed to make progress
+    private boolean unwrap() throws IOException {
+        ensureInRoom(engine.getSession().getApplicationBufferSize());
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, ByteBuffer.wrap(inBuffer, end, inBuffer.length - end));
+        } finally {
+            netIn.compact();
+        }
+        end += result.bytesProduced();
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                if (netIn.position() == netIn.capacity()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(netIn.capacity() * 2);
+                    netIn.flip();
+                    bigger.put(netIn);
+                    netIn = bigger;
+                }
+                return false;
+            case BUFFER_OVERFLOW:
+                ensureInRoom(inBuffer.length);
+                return true;
+            case CLOSED:
+                throw new EOFException("TLS session closed");
+            default:
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0
+                        || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+                        || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread multiplexing non-blocking channels with a {@link Selector}. Used by
+ * {@link LanLinkProvider} in NIO mode to accept connections, receive UDP broadcasts and read
+ * from every {@link NioConnection}, instead of having one blocking thread for each of them.
+ * <p>
+ * Handlers are only ever called from the loop thread and must not block. Anything that could,
+ * like parsing certificates or delivering packets to plugins, goes to {@link #getWorkers()}.
+ */
+public class NioEventLoop {
+
+    public interface Handler {
+        void onRegistered(SelectionKey key);
+
+        //Called when the channel is ready for any of the operations in the key's interest set
+        void onReady(SelectionKey key) throws IOException;
+
+        //Called once when the channel has been closed because of an error in onReady, or because the loop stopped
+        void onClosed(Exception reason);
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    //Worker tasks never wait for each other, so a few threads are enough no matter how many connections there are
+    private static final int MAX_WORKERS = 4;
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private volatile Thread thread;
+    private volatile boolean running = false;
+
+    public NioEventLoop() throws IOException {
+        selector = Selector.open();
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "KDE/NioEventLoop");
+        thread.start();
+    }
+
+    //Closes every registered channel and stops the thread. A stopped loop can't be started again
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public ExecutorService getWorkers() {
+        return workers;
+    }
+
+    //Runs the task in the loop thread. If called from the loop thread, the task runs before the next select
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    //Registers the channel (which is switched to non-blocking mode) from the loop thread
+    public void register(final SelectableChannel channel, final int ops, final Handler handler) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, ops, handler);
+                handler.onRegistered(key);
+            } catch (Exception e) {
+                Log.e("KDE/NioEventLoop", "Could not register channel", e);
+                try { channel.close(); } catch (IOException ignored) { }
+                handler.onClosed(e);
+            }
+        });
+    }
+
+    private void run() {
+        while (running) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.e("KDE/NioEventLoop", "Exception running task", e);
+                }
+            }
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.e("KDE/NioEventLoop", "Select failed", e);
+                break;
+            }
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                SelectionKey key = selected.next();
+                selected.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.onReady(key);
+                    }
+                } catch (Exception e) {
+                    key.cancel();
+                    try { key.channel().close(); } catch (IOException ignored) { }
+                    handler.onClosed(e);
+                }
+            }
+        }
+
+        Log.i("KDE/NioEventLoop", "Stopping");
+        for (SelectionKey key : selector.keys()) {
+            try { key.channel().close(); } catch (IOException ignored) { }
+            ((Handler) key.attachment()).onClosed(null);
+        }
+        try { selector.close(); } catch (IOException ignored) { }
+        workers.shutdown();
+    }
+}
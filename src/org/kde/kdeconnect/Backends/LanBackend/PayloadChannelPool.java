@@ -0,0 +1,392 @@
+package org.kde.kdeconnect.Backends.LanBackend;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+import org.kde.kdeconnect.NetworkPacket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Keeps the connections used to transfer payloads to and from a device open for a while, so
+ * consecutive payloads (eg: a share with hundreds of photos) don't need a new TCP connection
+ * and TLS handshake each.
+ * <p>
+ * The sending side owns the channels, and tells the receiver which one to use with a
+ * "channelId" in the payloadTransferInfo. If there's also a "port", the receiver connects to it
+ * as usual and keeps the connection as that channel afterwards. Otherwise, the payload comes
+ * through the channel with that id, which is already open. The sender only uses a channel for
+ * one payload at a time, and the receiver reads the payloads of a channel in the order the
+ * packets arrived, each one once the previous one has been closed. Payloads closed before being
+ * completely read are skipped, so the next ones can still use the channel.
+ * <p>
+ * Only used when the other end announces {@link #CAPABILITY} in its identity packet.
+ */
+class PayloadChannelPool {
+
+    static final String CAPABILITY = "payloadChannels";
+
+    private static final int MAX_IDLE_CHANNELS = 4;
+    private static final long IDLE_TIMEOUT_MS = 30 * 1000;
+    private static final long INCOMING_IDLE_TIMEOUT_MS = 2 * IDLE_TIMEOUT_MS; //Let the sender close them first
+    private static final long TURN_TIMEOUT_MS = 60 * 1000; //How long a payload waits for the previous one on its channel
+    private static final long MAX_SKIPPED_BYTES = 8 * 1024 * 1024; //Closing a payload with more left than this breaks its channel
+
+    private static final Timer idleTimer = new Timer("KDE/PayloadChannelPool", true);
+
+    static class OutgoingChannel {
+        final long id; //-1 if the channel can't be reused
+        ServerSocket server; //Until the other end connects
+        Socket socket;
+        TimerTask idleTask;
+
+        OutgoingChannel(long id, ServerSocket server) {
+            this.id = id;
+            this.server = server;
+        }
+
+        void close() {
+            try { if (server != null) server.close(); } catch (IOException ignored) { }
+            try { if (socket != null) socket.close(); } catch (IOException ignored) { }
+        }
+    }
+
+    private class IncomingChannel {
+        final long id;
+        final Socket socket;
+        final InputStream inputStream;
+        long nextTurn = 0;
+        long currentTurn = 0;
+        final HashMap<Long, Long> skippedTurns = new HashMap<>(); //Closed before their turn, with how many bytes to skip
+        boolean broken = false;
+        TimerTask idleTask;
+
+        IncomingChannel(long id, Socket socket) throws IOException {
+            this.id = id;
+            this.socket = socket;
+            this.inputStream = socket.getInputStream();
+        }
+
+        //Called with the lock of the pool held
+        void breakChannel() {
+            broken = true;
+            try { socket.close(); } catch (IOException ignored) { }
+            if (incoming.get(id) == this) {
+                incoming.remove(id);
+            }
+            PayloadChannelPool.this.notifyAll();
+        }
+    }
+
+    //Reads one payload from an incoming channel. Closing it hands the channel over to the next payload
+    private class ChannelInputStream extends InputStream {
+        private final IncomingChannel channel;
+        private final long turn;
+        private long remaining;
+        private boolean closed = false;
+
+        ChannelInputStream(IncomingChannel channel, long turn, long size) {
+            this.channel = channel;
+            this.turn = turn;
+            this.remaining = size;
+        }
+
+        private void waitForTurn() throws IOException {
+            synchronized (PayloadChannelPool.this) {
+                long deadline = System.currentTimeMillis() + TURN_TIMEOUT_MS;
+                while (channel.currentTurn != turn && !channel.broken && !closed) {
+                    long timeLeft = deadline - System.currentTimeMillis();
+                    if (timeLeft <= 0) {
+                        Log.e("KDE/PayloadChannelPool", "Previous payload on channel " + channel.id + " was never closed");
+                        channel.breakChannel();
+                        break;
+                    }
+                    try {
+                        PayloadChannelPool.this.wait(timeLeft);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted waiting for channel " + channel.id);
+                    }
+                }
+                if (channel.broken || closed) {
+                    throw new IOException("Payload channel " + channel.id + " closed");
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            waitForTurn();
+            int read = channel.inputStream.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new IOException("Payload channel " + channel.id + " closed by the other end");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (PayloadChannelPool.this) {
+                if (channel.currentTurn != turn || channel.broken) {
+                    return 0;
+                }
+            }
+            return (int) Math.min(channel.inputStream.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            synchronized (PayloadChannelPool.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (channel.broken) {
+                    return;
+                }
+                if (remaining > MAX_SKIPPED_BYTES) {
+                    //Faster to open a new channel than to wait for all of it
+                    channel.breakChannel();
+                    return;
+                }
+                if (channel.currentTurn != turn) {
+                    //Not read at all, skipped once the payloads before it are done
+                    channel.skippedTurns.put(turn, remaining);
+                    return;
+                }
+                if (remaining == 0) {
+                    advanceTurn(channel);
+                    return;
+                }
+            }
+            //The rest of the payload might still be on its way, don't make whoever closed it wait for it
+            final long toSkip = remaining;
+            new Thread(() -> skipTurn(channel, toSkip)).start();
+        }
+    }
+
+    //Called with the lock held once the current payload of the channel is done. Hands the channel
+    //over to the next payload, skipping the ones that were closed before their turn
+    private void advanceTurn(final IncomingChannel channel) {
+        while (true) {
+            channel.currentTurn++;
+            notifyAll();
+            Long skipped = channel.skippedTurns.remove(channel.currentTurn);
+            if (skipped == null) {
+                if (channel.currentTurn == channel.nextTurn) {
+                    scheduleIdleClose(channel);
+                }
+                return;
+            }
+            if (skipped > 0) {
+                final long toSkip = skipped;
+                new Thread(() -> skipTurn(channel, toSkip)).start();
+                return;
+            }
+        }
+    }
+
+    //Reads and throws away what is left of the current payload of the channel
+    private void skipTurn(IncomingChannel channel, long toSkip) {
+        byte[] buffer = new byte[(int) Math.min(toSkip, 64 * 1024)];
+        try {
+            while (toSkip > 0) {
+                int read = channel.inputStream.read(buffer, 0, (int) Math.min(buffer.length, toSkip));
+                if (read == -1) {
+                    throw new IOException("Payload channel " + channel.id + " closed by the other end");
+                }
+                toSkip -= read;
+            }
+        } catch (IOException e) {
+            Log.e("KDE/PayloadChannelPool", "Could not skip payload on channel " + channel.id + ": " + e.getMessage());
+            synchronized (this) {
+                channel.breakChannel();
+            }
+            return;
+        }
+        synchronized (this) {
+            if (!channel.broken) {
+                advanceTurn(channel);
+            }
+        }
+    }
+
+    private volatile boolean supportedByPeer = false;
+
+    private long nextId = 1;
+    private final ArrayDeque<OutgoingChannel> idleOutgoing = new ArrayDeque<>();
+    private final HashMap<Long, IncomingChannel> incoming = new HashMap<>();
+
+    void setSupportedByPeer(boolean supported) {
+        supportedByPeer = supported;
+    }
+
+    /**
+     * Picks the channel the payload of the packet will be sent through and sets its
+     * payloadTransferInfo accordingly. Reuses an idle channel if there's one, otherwise opens a
+     * server socket for the other end to connect to.
+     */
+    OutgoingChannel takeOutgoing(NetworkPacket np) throws Exception {
+        JSONObject payloadTransferInfo = new JSONObject();
+        OutgoingChannel channel = null;
+        long id = -1;
+        if (supportedByPeer) {
+            while (true) {
+                synchronized (this) {
+                    channel = idleOutgoing.pollFirst();
+                    if (channel != null) {
+                        channel.idleTask.cancel();
+                        channel.idleTask = null;
+                    } else {
+                        id = nextId++;
+                    }
+                }
+                if (channel == null || isAlive(channel)) {
+                    break;
+                }
+                Log.i("KDE/PayloadChannelPool", "Payload channel " + channel.id + " was closed by the other end");
+                channel.close();
+            }
+        }
+        if (channel == null) {
+            //Opened as a channel, so the accepted sockets have one too and files can be sent without copies
+            ServerSocket server = LanLinkProvider.openServerSocketChannelOnFreePort(LanLinkProvider.PAYLOAD_TRANSFER_MIN_PORT).socket();
+            channel = new OutgoingChannel(id, server);
+            payloadTransferInfo.put("port", server.getLocalPort());
+        }
+        if (channel.id != -1) {
+            payloadTransferInfo.put("channelId", channel.id);
+        }
+        np.setPayloadTransferInfo(payloadTransferInfo);
+        return channel;
+    }
+
+    //The other end never writes to the channels, so anything but a timeout means it closed the connection
+    private static boolean isAlive(OutgoingChannel channel) {
+        try {
+            channel.socket.setSoTimeout(1);
+            channel.socket.getInputStream().read();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try { channel.socket.setSoTimeout(0); } catch (IOException ignored) { }
+        }
+    }
+
+    //To be called once the payload has been completely sent through the channel
+    void releaseOutgoing(final OutgoingChannel channel) {
+        if (channel.server != null) {
+            try { channel.server.close(); } catch (IOException ignored) { }
+            channel.server = null;
+        }
+        synchronized (this) {
+            if (channel.id != -1 && channel.socket != null && supportedByPeer && idleOutgoing.size() < MAX_IDLE_CHANNELS) {
+                channel.idleTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        synchronized (PayloadChannelPool.this) {
+                            if (!idleOutgoing.remove(channel)) {
+                                return; //Taken in the meantime
+                            }
+                        }
+                        channel.close();
+                    }
+                };
+                idleOutgoing.addLast(channel);
+                idleTimer.schedule(channel.idleTask, IDLE_TIMEOUT_MS);
+                return;
+            }
+        }
+        channel.close();
+    }
+
+    //To be called if sending the payload failed, the channel can't be trusted anymore
+    void discardOutgoing(OutgoingChannel channel) {
+        channel.close();
+    }
+
+    boolean isPooled(NetworkPacket np) {
+        return np.getPayloadTransferInfo().has("channelId");
+    }
+
+    /**
+     * Returns the stream to read the payload of the packet from. If the payloadTransferInfo has a
+     * port, socket has to be the new connection to it, otherwise it should be null. Returns null
+     * if the channel is unknown.
+     */
+    InputStream getIncomingStream(NetworkPacket np, Socket socket) throws IOException {
+        long id = np.getPayloadTransferInfo().optLong("channelId", -1);
+        synchronized (this) {
+            IncomingChannel channel;
+            if (socket != null) {
+                channel = new IncomingChannel(id, socket);
+                IncomingChannel old = incoming.put(id, channel);
+                if (old != null) {
+                    old.breakChannel(); //Should not happen, the sender only announces a port for new channels
+                }
+            } else {
+                channel = incoming.get(id);
+                if (channel == null) {
+                    Log.e("KDE/PayloadChannelPool", "Unknown payload channel " + id);
+                    return null;
+                }
+            }
+            if (channel.idleTask != null) {
+                channel.idleTask.cancel();
+                channel.idleTask = null;
+            }
+            return new ChannelInputStream(channel, channel.nextTurn++, np.getPayloadSize());
+        }
+    }
+
+    //Called with the lock held
+    private void scheduleIdleClose(final IncomingChannel channel) {
+        channel.idleTask = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (PayloadChannelPool.this) {
+                    if (channel.idleTask == this) {
+                        channel.breakChannel();
+                    }
+                }
+            }
+        };
+        idleTimer.schedule(channel.idleTask, INCOMING_IDLE_TIMEOUT_MS);
+    }
+
+    //Closes every channel, eg: when the connection is replaced and the other end may have lost its channels
+    void closeAll() {
+        OutgoingChannel[] outgoingChannels;
+        synchronized (this) {
+            outgoingChannels = idleOutgoing.toArray(new OutgoingChannel[0]);
+            idleOutgoing.clear();
+            for (IncomingChannel channel : incoming.values().toArray(new IncomingChannel[0])) {
+                channel.breakChannel();
+            }
+        }
+        for (OutgoingChannel channel : outgoingChannels) {
+            channel.idleTask.cancel();
+            channel.close();
+        }
+    }
+}
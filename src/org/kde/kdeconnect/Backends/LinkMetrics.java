@@ -0,0 +1,99 @@
+package org.kde.kdeconnect.Backends;
+
+import org.kde.kdeconnect.Helpers.Histogram;
+import org.kde.kdeconnect.Plugins.PluginFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What went through a {@link BaseLink}: packets and bytes per packet type in each direction, how
+ * long packets waited to be written, how full the queue was, and how fast payloads were sent.
+ * Always on, so everything is recorded with atomic increments only.
+ */
+public class LinkMetrics {
+
+    private static class TypeCounters {
+        final AtomicLong packetsIn = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong packetsOut = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+    }
+
+    private final ConcurrentHashMap<String, TypeCounters> types = new ConcurrentHashMap<>();
+    private final Histogram sendLatency = new Histogram(); //Microseconds from sendPacket() to the socket
+    private final Histogram queueDepth = new Histogram(); //Packets in the queue after queueing one more
+    private final Histogram payloadThroughput = new Histogram(); //KB/s of each payload sent
+    private final AtomicLong payloadBytesOut = new AtomicLong();
+    private final long createdAt = System.currentTimeMillis();
+    private volatile long lastPacketReceivedAt = createdAt;
+
+    //Types no plugin knows about are counted together, or a peer could add an entry for every type it makes up
+    private static final String OTHER_TYPES = "other";
+
+    private TypeCounters getCounters(String type) {
+        if (PluginFactory.getKnownPacketType(type) == null) {
+            type = OTHER_TYPES;
+        }
+        TypeCounters counters = types.get(type);
+        if (counters == null) {
+            counters = new TypeCounters();
+            TypeCounters existing = types.putIfAbsent(type, counters);
+            if (existing != null) {
+                counters = existing;
+            }
+        }
+        return counters;
+    }
+
+    public void packetReceived(String type, long bytes) {
+        TypeCounters counters = getCounters(type);
+        counters.packetsIn.incrementAndGet();
+        counters.bytesIn.addAndGet(bytes);
+        lastPacketReceivedAt = System.currentTimeMillis();
+    }
+
+    //Since the link was created if nothing was received yet
+    public long getMillisSinceLastPacketReceived() {
+        return System.currentTimeMillis() - lastPacketReceivedAt;
+    }
+
+    public void packetSent(String type, long bytes) {
+        TypeCounters counters = getCounters(type);
+        counters.packetsOut.incrementAndGet();
+        counters.bytesOut.addAndGet(bytes);
+    }
+
+    void packetWritten(long queuedAtNanos) {
+        sendLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - queuedAtNanos));
+    }
+
+    void packetQueued(int queueSize) {
+        queueDepth.record(queueSize);
+    }
+
+    public void payloadSent(long bytes, long nanos) {
+        payloadBytesOut.addAndGet(bytes);
+        if (bytes > 0 && nanos > 0) {
+            payloadThroughput.record(bytes * 1000000 / 1024 / TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 1000)));
+        }
+    }
+
+    public void dump(StringBuilder out) {
+        out.append("  Up for ").append((System.currentTimeMillis() - createdAt) / 1000).append("s\n");
+        out.append("  Send latency: ").append(sendLatency.toString("us")).append('\n');
+        out.append("  Queue depth: ").append(queueDepth.toString()).append('\n');
+        out.append("  Payloads sent: ").append(payloadBytesOut.get()).append(" bytes, ")
+                .append(payloadThroughput.toString("KB/s")).append('\n');
+        out.append("  Packets (in/out, bytes in/out):\n");
+        for (Map.Entry<String, TypeCounters> entry : new TreeMap<>(types).entrySet()) {
+            TypeCounters counters = entry.getValue();
+            out.append("    ").append(entry.getKey()).append(": ")
+                    .append(counters.packetsIn.get()).append('/').append(counters.packetsOut.get()).append(", ")
+                    .append(counters.bytesIn.get()).append('/').append(counters.bytesOut.get()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package org.kde.kdeconnect.Backends;
+
+import android.util.Log;
+
+import org.kde.kdeconnect.Device;
+import org.kde.kdeconnect.NetworkPacket;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of packets waiting to be sent through a {@link BaseLink}, drained by a single
+ * writer thread so packets never race each other on the socket.
+ * <p>
+ * Packets are split in lanes, and a lane is only drained when the ones before it are empty, so
+ * input events overtake status updates, which overtake file transfers. Within a lane packets
+ * keep the order they were queued in. The writer takes up to {@link #MAX_BATCH} packets at a
+ * time and asks the link to flush only once per batch. Between batches, the link gets a chance
+ * to write data of its own with {@link BaseLink#writeQueuedChunks()}.
+ * <p>
+ * The writer thread is started on demand and exits after being idle for a while.
+ */
+public class OutboundPacketQueue {
+
+    public enum Lane {
+        Interactive, // Mousepad, keyboard, presenter
+        State,       // Battery, MPRIS, volume, notifications... anything not listed elsewhere
+        Bulk;        // Share, contacts, SMS and any packet with a payload
+
+        public static Lane forPacket(NetworkPacket np) {
+            if (np.hasPayload()) {
+                return Bulk;
+            }
+            String type = np.getType();
+            if (type.startsWith("kdeconnect.mousepad") || type.startsWith("kdeconnect.presenter")) {
+                return Interactive;
+            }
+            if (type.startsWith("kdeconnect.share") || type.startsWith("kdeconnect.contacts") || type.startsWith("kdeconnect.sms")) {
+                return Bulk;
+            }
+            return State;
+        }
+    }
+
+    private static final int[] LANE_CAPACITY = {128, 256, 32};
+    private static final int MAX_BATCH = 32;
+    private static final long IDLE_TIMEOUT_MS = 30 * 1000;
+
+    private static class Entry {
+        final NetworkPacket np;
+        final Device.SendPacketStatusCallback callback;
+        final PublicKey key;
+        final long queuedAt = System.nanoTime();
+        boolean failed = false;
+
+        Entry(NetworkPacket np, Device.SendPacketStatusCallback callback, PublicKey key) {
+            this.np = np;
+            this.callback = callback;
+            this.key = key;
+        }
+    }
+
+    private final BaseLink link;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Entry>[] lanes;
+    private int size = 0;
+    private Thread writerThread = null;
+
+    @SuppressWarnings("unchecked")
+    OutboundPacketQueue(BaseLink link) {
+        this.link = link;
+        Lane[] values = Lane.values();
+        lanes = new ArrayDeque[values.length];
+        for (int i = 0; i < values.length; i++) {
+            lanes[i] = new ArrayDeque<>(LANE_CAPACITY[i]);
+        }
+    }
+
+    /**
+     * Queues a packet without blocking. Returns false if its lane is full, in which case the
+     * callback is not called.
+     */
+    boolean offer(NetworkPacket np, Device.SendPacketStatusCallback callback, PublicKey key) {
+        try {
+            return enqueue(new Entry(np, callback, key), false);
+        } catch (InterruptedException e) {
+            return false; //Can't happen when not blocking
+        }
+    }
+
+    /**
+     * Queues a packet, waiting for room in its lane if the peer is not keeping up, and then
+     * waits until it has been sent. Returns whether sending succeeded.
+     */
+    boolean sendAndWait(NetworkPacket np, final Device.SendPacketStatusCallback callback, PublicKey key) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean success = new AtomicBoolean(false);
+        Device.SendPacketStatusCallback waitingCallback = new Device.SendPacketStatusCallback() {
+            @Override
+            public void onSuccess() {
+                success.set(true);
+                done.countDown();
+                callback.onSuccess();
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                done.countDown();
+                callback.onFailure(e);
+            }
+
+            @Override
+            public void onProgressChanged(int percent) {
+                callback.onProgressChanged(percent);
+            }
+        };
+        try {
+            enqueue(new Entry(np, waitingCallback, key), true);
+            done.await();
+        } catch (InterruptedException e) {
+            Log.e("KDE/OutboundPacketQueue", "Interrupted while sending " + np.getType());
+            return false;
+        }
+        return success.get();
+    }
+
+    private boolean enqueue(Entry entry, boolean block) throws InterruptedException {
+        int laneIndex = Lane.forPacket(entry.np).ordinal();
+        ArrayDeque<Entry> lane = lanes[laneIndex];
+        int capacity = LANE_CAPACITY[laneIndex];
+        lock.lock();
+        try {
+            while (lane.size() >= capacity) {
+                if (!block) {
+                    Log.w("KDE/OutboundPacketQueue", "Queue full, not sending " + entry.np.getType() + " to " + link.getDeviceId());
+                    return false;
+                }
+                notFull.await();
+            }
+            lane.addLast(entry);
+            size++;
+            link.getMetrics().packetQueued(size);
+            if (writerThread == null) {
+                writerThread = new Thread(this::writeLoop, "KDE/OutboundPacketQueue " + link.getDeviceId());
+                writerThread.start();
+            } else {
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //If wait is false, returns right away with an empty batch when there's nothing queued
+    private boolean takeBatch(ArrayList<Entry> batch, boolean wait) throws InterruptedException {
+        lock.lock();
+        try {
+            if (size == 0 && !wait) {
+                return true;
+            }
+            long idleNanos = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+            while (size == 0) {
+                if (idleNanos <= 0) {
+                    writerThread = null;
+                    return false;
+                }
+                idleNanos = notEmpty.awaitNanos(idleNanos);
+            }
+            for (ArrayDeque<Entry> lane : lanes) {
+                while (batch.size() < MAX_BATCH && !lane.isEmpty()) {
+                    batch.add(lane.pollFirst());
+                    size--;
+                }
+            }
+            notFull.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        ArrayList<Entry> batch = new ArrayList<>(MAX_BATCH);
+        ArrayList<Entry> written = new ArrayList<>(MAX_BATCH);
+        boolean moreChunks = false;
+        try {
+            while (takeBatch(batch, !moreChunks)) {
+                for (Entry entry : batch) {
+                    try {
+                        if (link.writeQueuedPacket(entry.np, entry.callback, entry.key)) {
+                            written.add(entry);
+                        }
+                    } catch (Exception e) {
+                        entry.failed = true;
+                        entry.callback.onFailure(e);
+                    }
+                }
+                moreChunks = link.writeQueuedChunks();
+                try {
+                    link.flushQueuedPackets();
+                    for (Entry entry : batch) {
+                        if (!entry.failed) {
+                            link.getMetrics().packetWritten(entry.queuedAt);
+                        }
+                    }
+                    for (Entry entry : written) {
+                        entry.callback.onSuccess();
+                    }
+                } catch (IOException e) {
+                    for (Entry entry : written) {
+                        entry.callback.onFailure(e);
+                    }
+                }
+                batch.clear();
+                written.clear();
+            }
+        } catch (InterruptedException e) {
+            Log.e("KDE/OutboundPacketQueue", "Writer thread interrupted");
+            lock.lock();
+            try {
+                writerThread = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,296 @@
+package org.kde.kdeconnect.Backends;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+import org.kde.kdeconnect.Device;
+import org.kde.kdeconnect.NetworkPacket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Carries small payloads on the link's own connection, instead of making the other end open a
+ * new connection for each of them.
+ * <p>
+ * The packet is sent as usual, with a "multiplexId" in its payloadTransferInfo. Its payload then
+ * follows in chunks: a kdeconnect.payload.chunk packet with the id and the size of the chunk,
+ * followed by exactly that many raw bytes. Chunks of different payloads can be interleaved with
+ * each other and with regular packets, so a payload never holds back the packets queued after it.
+ * The receiver buffers the payload and delivers the packet once it's complete, with the payload
+ * already in memory. A chunk with the "cancelled" flag means the sender could not read the rest.
+ * <p>
+ * Only used when the other end announces {@link #CAPABILITY} in its identity packet. Incoming
+ * payloads are only accepted from paired devices, and the number of them (and the memory they
+ * use) is capped per connection: payloads over the limits are dropped, their chunks skipped.
+ * The sending side must only be used from the link's writer thread. The receiving side is a
+ * {@link Receiver}, one for each connection, only used from the thread reading that connection.
+ */
+public class PayloadMultiplexer {
+
+    public static final String PACKET_TYPE_PAYLOAD_CHUNK = "kdeconnect.payload.chunk";
+    public static final String CAPABILITY = "multiplexedPayloads";
+
+    public static final long MAX_MULTIPLEXED_PAYLOAD_SIZE = 1024 * 1024; //Bigger payloads still get their own connection
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_INCOMING_PAYLOADS = 16;
+    private static final long MAX_INCOMING_BYTES = 4 * 1024 * 1024;
+
+    private static class OutgoingPayload {
+        final long id;
+        final NetworkPacket np;
+        final Device.SendPacketStatusCallback callback;
+        final long size;
+        long sent = 0;
+        long lastProgressUpdate = -1;
+
+        OutgoingPayload(long id, NetworkPacket np, Device.SendPacketStatusCallback callback) {
+            this.id = id;
+            this.np = np;
+            this.callback = callback;
+            this.size = np.getPayloadSize();
+        }
+    }
+
+    private static class IncomingPayload {
+        final long id;
+        final NetworkPacket np;
+        final int size;
+        byte[] data = null; //Grows as the chunks arrive
+        int received = 0;
+
+        IncomingPayload(long id, NetworkPacket np) {
+            this.id = id;
+            this.np = np;
+            this.size = (int) np.getPayloadSize();
+        }
+    }
+
+    private volatile boolean supportedByPeer = false;
+
+    private long nextId = 1;
+    private final ArrayDeque<OutgoingPayload> outgoing = new ArrayDeque<>();
+    private final ArrayList<OutgoingPayload> finished = new ArrayList<>(); //Sent but not flushed yet
+    private final byte[] chunkBuffer = new byte[CHUNK_SIZE];
+
+    public void setSupportedByPeer(boolean supported) {
+        supportedByPeer = supported;
+    }
+
+    public boolean shouldMultiplex(NetworkPacket np) {
+        return supportedByPeer && np.hasPayload() && np.getPayloadSize() > 0 && np.getPayloadSize() <= MAX_MULTIPLEXED_PAYLOAD_SIZE;
+    }
+
+    //Sets the payloadTransferInfo of the packet. The packet itself has to be sent before the next chunk
+    public void addOutgoing(NetworkPacket np, Device.SendPacketStatusCallback callback) throws Exception {
+        OutgoingPayload payload = new OutgoingPayload(nextId++, np, callback);
+        JSONObject payloadTransferInfo = new JSONObject();
+        payloadTransferInfo.put("multiplexId", payload.id);
+        np.setPayloadTransferInfo(payloadTransferInfo);
+        outgoing.add(payload);
+    }
+
+    //Forgets the payload without notifying its callback, for when the packet itself could not be written
+    public void removeOutgoing(NetworkPacket np) {
+        Iterator<OutgoingPayload> it = outgoing.iterator();
+        while (it.hasNext()) {
+            if (it.next().np == np) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    public boolean hasOutgoing() {
+        return !outgoing.isEmpty();
+    }
+
+    /**
+     * Writes one chunk of the next payload, taking turns between payloads. The callbacks of the
+     * payloads that are completely written are notified in outgoingFlushed().
+     */
+    public void writeNextChunk(OutputStream out) throws IOException {
+        OutgoingPayload payload = outgoing.poll();
+        if (payload == null) {
+            return;
+        }
+
+        int read;
+        try {
+            InputStream stream = payload.np.getPayload().getInputStream();
+            int wanted = (int) Math.min(CHUNK_SIZE, payload.size - payload.sent);
+            read = stream.read(chunkBuffer, 0, wanted);
+        } catch (IOException e) {
+            Log.e("KDE/PayloadMultiplexer", "Exception reading payload " + payload.id, e);
+            read = -1;
+        }
+
+        NetworkPacket chunk = new NetworkPacket(PACKET_TYPE_PAYLOAD_CHUNK);
+        chunk.set("multiplexId", payload.id);
+        try {
+            if (read == -1) {
+                chunk.set("size", 0);
+                chunk.set("cancelled", true);
+                chunk.serialize(out);
+            } else {
+                chunk.set("size", read);
+                chunk.serialize(out);
+                out.write(chunkBuffer, 0, read);
+            }
+        } catch (IOException e) {
+            //Already taken out of the queue, so outgoingFailed() won't see it
+            payload.np.getPayload().close();
+            payload.callback.onFailure(e);
+            throw e;
+        }
+
+        if (read == -1) {
+            payload.np.getPayload().close();
+            payload.callback.onFailure(new IOException("Payload ended after " + payload.sent + " of " + payload.size + " bytes"));
+            return;
+        }
+        payload.sent += read;
+
+        if (payload.sent >= payload.size) {
+            payload.np.getPayload().close();
+            finished.add(payload);
+        } else {
+            if (payload.lastProgressUpdate + 500 < System.currentTimeMillis()) { //Report progress every half a second
+                payload.callback.onProgressChanged((int) ((100 * payload.sent) / payload.size));
+                payload.lastProgressUpdate = System.currentTimeMillis();
+            }
+            outgoing.add(payload);
+        }
+    }
+
+    //To be called once the chunks written so far have been flushed
+    public void outgoingFlushed() {
+        for (OutgoingPayload payload : finished) {
+            payload.callback.onSuccess();
+        }
+        finished.clear();
+    }
+
+    //To be called when the connection broke, fails every payload not delivered yet
+    public void outgoingFailed(IOException e) {
+        for (OutgoingPayload payload : finished) {
+            payload.callback.onFailure(e);
+        }
+        finished.clear();
+        for (OutgoingPayload payload : outgoing) {
+            payload.np.getPayload().close();
+            payload.callback.onFailure(e);
+        }
+        outgoing.clear();
+    }
+
+    //The receiving side for one connection. A new connection gets a new one, so nothing from the old one leaks into it
+    public static class Receiver {
+
+        private final HashMap<Long, IncomingPayload> incoming = new HashMap<>();
+        private IncomingPayload currentChunkTarget = null;
+        private long incomingBytes = 0; //Allocated for the payloads in incoming
+
+        public boolean isMultiplexed(NetworkPacket np) {
+            return np.getPayloadTransferInfo().has("multiplexId");
+        }
+
+        //Keeps the packet until its payload has arrived. Packets from unpaired devices are dropped
+        public void addIncoming(NetworkPacket np, boolean paired) {
+            long id = np.getPayloadTransferInfo().optLong("multiplexId");
+            long size = np.getPayloadSize();
+            if (!paired) {
+                Log.e("KDE/PayloadMultiplexer", "Payload " + id + " from an unpaired device, ignoring " + np.getType());
+                return;
+            }
+            if (size <= 0 || size > MAX_MULTIPLEXED_PAYLOAD_SIZE) {
+                Log.e("KDE/PayloadMultiplexer", "Payload " + id + " has an invalid size (" + size + "), ignoring " + np.getType());
+                return;
+            }
+            if (incoming.size() >= MAX_INCOMING_PAYLOADS && !incoming.containsKey(id)) {
+                Log.e("KDE/PayloadMultiplexer", "Too many payloads pending, ignoring " + np.getType());
+                return;
+            }
+            removeIncoming(id);
+            incoming.put(id, new IncomingPayload(id, np));
+        }
+
+        //Called with a chunk header, returns how many raw bytes follow it
+        public int chunkReceived(NetworkPacket chunk) {
+            long id = chunk.getLong("multiplexId");
+            int size = chunk.getInt("size", 0);
+            currentChunkTarget = incoming.get(id);
+            if (size < 0) {
+                //Nothing sensible can follow, the next frame is read as a packet
+                Log.e("KDE/PayloadMultiplexer", "Chunk of payload " + id + " has a negative size, ignoring it");
+                removeIncoming(id);
+                return 0;
+            }
+            if (chunk.getBoolean("cancelled")) {
+                Log.e("KDE/PayloadMultiplexer", "Payload " + id + " cancelled by the sender");
+                removeIncoming(id);
+            } else if (currentChunkTarget != null && currentChunkTarget.received + (long) size > currentChunkTarget.size) {
+                Log.e("KDE/PayloadMultiplexer", "Payload " + id + " is bigger than announced, ignoring it");
+                removeIncoming(id);
+            } else if (currentChunkTarget != null && !reserve(currentChunkTarget, currentChunkTarget.received + size)) {
+                Log.e("KDE/PayloadMultiplexer", "Too much payload data buffered, ignoring payload " + id);
+                removeIncoming(id);
+            }
+            return size;
+        }
+
+        //Makes room in the buffer of the payload for the given number of bytes, unless it would exceed the limit
+        private boolean reserve(IncomingPayload target, int needed) {
+            int capacity = (target.data == null) ? 0 : target.data.length;
+            if (needed <= capacity) {
+                return true;
+            }
+            int newCapacity = (int) Math.min(Math.max(needed, 2L * capacity), target.size);
+            if (incomingBytes + newCapacity - capacity > MAX_INCOMING_BYTES) {
+                return false;
+            }
+            byte[] data = new byte[newCapacity];
+            if (target.data != null) {
+                System.arraycopy(target.data, 0, data, 0, target.received);
+            }
+            target.data = data;
+            incomingBytes += newCapacity - capacity;
+            return true;
+        }
+
+        private void removeIncoming(long id) {
+            IncomingPayload removed = incoming.remove(id);
+            if (removed != null && removed.data != null) {
+                incomingBytes -= removed.data.length;
+            }
+            if (currentChunkTarget == removed) {
+                currentChunkTarget = null;
+            }
+        }
+
+        /**
+         * Called with (part of) the raw bytes of the last chunk. Returns the packet the payload
+         * belongs to if this completed it, null otherwise.
+         */
+        public NetworkPacket chunkDataReceived(byte[] buffer, int offset, int length) {
+            IncomingPayload target = currentChunkTarget;
+            if (target == null) {
+                return null; //Unknown or cancelled payload, skip the data
+            }
+            System.arraycopy(buffer, offset, target.data, target.received, length);
+            target.received += length;
+            if (target.received < target.size) {
+                return null;
+            }
+            byte[] data = target.data;
+            removeIncoming(target.id);
+            target.np.setPayload(new NetworkPacket.Payload(data));
+            return target.np;
+        }
+    }
+}
@@ -31,7 +31,10 @@ import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.text.TextUtils;
 import android.util.Log;
@@ -40,6 +43,7 @@ import org.kde.kdeconnect.Backends.BaseLink;
 import org.kde.kdeconnect.Backends.BaseLinkProvider;
 import org.kde.kdeconnect.Backends.LanBackend.LanLinkProvider;
 import org.kde.kdeconnect.Helpers.NotificationHelper;
+import org.kde.kdeconnect.Helpers.StartupTrace;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.RsaHelper;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
 import org.kde.kdeconnect.Plugins.Plugin;
@@ -48,10 +52,15 @@ import org.kde.kdeconnect_tp.R;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 //import org.kde.kdeconnect.Backends.BluetoothBackend.BluetoothLinkProvider;
 
@@ -70,10 +79,20 @@ public class BackgroundService extends Service {
 
     private final ConcurrentHashMap<String, DeviceListChangedCallback> deviceListChangedCallbacks = new ConcurrentHashMap<>();
 
-    private final ArrayList<BaseLinkProvider> linkProviders = new ArrayList<>();
+    //Providers are only added once started, by the startup pipeline. Changes are made holding the list's lock,
+    //so a provider started at the same time as addConnectionListener() is called gets the listener too
+    private final CopyOnWriteArrayList<BaseLinkProvider> linkProviders = new CopyOnWriteArrayList<>();
+    private final ArrayList<BaseLinkProvider.ConnectionReceiver> connectionReceivers = new ArrayList<>();
+    private boolean destroyed = false;
 
     private final ConcurrentHashMap<String, Device> devices = new ConcurrentHashMap<>();
 
+    //Connections from the network and commands wait for this, so they find the devices we already trust
+    private final CountDownLatch rememberedDevicesLoaded = new CountDownLatch(1);
+
+    private final StartupTrace startupTrace = new StartupTrace();
+    private final AtomicInteger startupChainsRunning = new AtomicInteger();
+
     private final HashSet<Object> discoveryModeAcquisitions = new HashSet<>();
 
     public static BackgroundService getInstance() {
@@ -168,12 +187,41 @@ public class BackgroundService extends Service {
     }
 
     private void registerLinkProviders() {
-        linkProviders.add(new LanLinkProvider(this));
-//        linkProviders.add(new LoopbackLinkProvider(this));
-//        linkProviders.add(new BluetoothLinkProvider(this));
+        boolean useNio = PreferenceManager.getDefaultSharedPreferences(this).getBoolean(LanLinkProvider.KEY_NIO_BACKEND_PREFERENCE, false);
+        startLinkProvider(new LanLinkProvider(this, useNio));
+//        startLinkProvider(new LoopbackLinkProvider(this));
+//        startLinkProvider(new BluetoothLinkProvider(this));
+    }
+
+    //Recreates the link providers, so they pick up changes in their settings
+    public void restartLinkProviders() {
+        synchronized (linkProviders) {
+            if (destroyed) {
+                return;
+            }
+            for (BaseLinkProvider a : linkProviders) {
+                a.onStop();
+            }
+            linkProviders.clear();
+            registerLinkProviders();
+        }
+    }
+
+    private void startLinkProvider(BaseLinkProvider linkProvider) {
+        synchronized (linkProviders) {
+            if (destroyed) {
+                return; //The service was destroyed while starting
+            }
+            linkProvider.addConnectionReceiver(deviceListener);
+            for (BaseLinkProvider.ConnectionReceiver cr : connectionReceivers) {
+                linkProvider.addConnectionReceiver(cr);
+            }
+            linkProvider.onStart();
+            linkProviders.add(linkProvider);
+        }
     }
 
-    public ArrayList<BaseLinkProvider> getLinkProviders() {
+    public List<BaseLinkProvider> getLinkProviders() {
         return linkProviders;
     }
 
@@ -182,13 +230,13 @@ public class BackgroundService extends Service {
     }
 
     private void cleanDevices() {
-        new Thread(() -> {
+        commandThreads.execute(() -> {
             for (Device d : devices.values()) {
                 if (!d.isPaired() && !d.isPairRequested() && !d.isPairRequestedByPeer() && !d.deviceShouldBeKeptAlive()) {
                     d.disconnect();
                 }
             }
-        }).start();
+        });
     }
 
     private final BaseLinkProvider.ConnectionReceiver deviceListener = new BaseLinkProvider.ConnectionReceiver() {
@@ -197,6 +245,7 @@ public class BackgroundService extends Service {
 
             String deviceId = identityPacket.getString("deviceId");
 
+            waitForRememberedDevices();
             Device device = devices.get(deviceId);
 
             if (device != null) {
@@ -247,17 +296,35 @@ public class BackgroundService extends Service {
     }
 
     public void addConnectionListener(BaseLinkProvider.ConnectionReceiver cr) {
-        for (BaseLinkProvider a : linkProviders) {
-            a.addConnectionReceiver(cr);
+        synchronized (linkProviders) {
+            connectionReceivers.add(cr);
+            for (BaseLinkProvider a : linkProviders) {
+                a.addConnectionReceiver(cr);
+            }
         }
     }
 
     public void removeConnectionListener(BaseLinkProvider.ConnectionReceiver cr) {
-        for (BaseLinkProvider a : linkProviders) {
-            a.removeConnectionReceiver(cr);
+        synchronized (linkProviders) {
+            connectionReceivers.remove(cr);
+            for (BaseLinkProvider a : linkProviders) {
+                a.removeConnectionReceiver(cr);
+            }
         }
     }
 
+    private void waitForRememberedDevices() {
+        try {
+            rememberedDevicesLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public StartupTrace getStartupTrace() {
+        return startupTrace;
+    }
+
     public void addDeviceListChangedCallback(String key, DeviceListChangedCallback callback) {
         deviceListChangedCallbacks.put(key, callback);
     }
@@ -283,16 +350,34 @@ public class BackgroundService extends Service {
 
         Log.i("KDE/BackgroundService", "Service not started yet, initializing...");
 
-        initializeSecurityParameters();
-        NotificationHelper.initializeChannels(this);
-        loadRememberedDevicesFromSettings();
-        registerLinkProviders();
-
-        //Link Providers need to be already registered
-        addConnectionListener(deviceListener);
+        //Needed by the foreground notification in onStartCommand(), which comes right after this
+        startupTrace.run("Notification channels", () -> NotificationHelper.initializeChannels(this));
+
+        //The rest doesn't block the main thread. Link providers need our keys and certificate, and can start
+        //discovering while the remembered devices load: connections wait for those in deviceListener, and commands
+        //until becomeReadyForCommands()
+        startupChainsRunning.set(2);
+        commandThreads.execute(() -> {
+            startupTrace.run("RSA keys", () -> RsaHelper.initialiseRsaKeys(this));
+            startupTrace.run("Certificate", () -> SslHelper.initialiseCertificate(this));
+            startupTrace.run("Link providers", this::registerLinkProviders);
+            startupChainFinished();
+        });
+        commandThreads.execute(() -> {
+            try {
+                startupTrace.run("Remembered devices", this::loadRememberedDevicesFromSettings);
+            } finally {
+                rememberedDevicesLoaded.countDown();
+            }
+            onDeviceListChanged();
+            mainHandler.post(this::becomeReadyForCommands);
+            startupChainFinished();
+        });
+    }
 
-        for (BaseLinkProvider a : linkProviders) {
-            a.onStart();
+    private void startupChainFinished() {
+        if (startupChainsRunning.decrementAndGet() == 0) {
+            Log.i("KDE/BackgroundService", startupTrace.toString());
         }
     }
 
@@ -344,16 +429,19 @@ public class BackgroundService extends Service {
         return notification.build();
     }
 
-    private void initializeSecurityParameters() {
-        RsaHelper.initialiseRsaKeys(this);
-        SslHelper.initialiseCertificate(this);
-    }
-
     @Override
     public void onDestroy() {
+        synchronized (pendingCallbacks) {
+            if (readyInstance == this) {
+                readyInstance = null; //Commands wait for the next instance
+            }
+        }
         stopForeground(true);
-        for (BaseLinkProvider a : linkProviders) {
-            a.onStop();
+        synchronized (linkProviders) {
+            destroyed = true;
+            for (BaseLinkProvider a : linkProviders) {
+                a.onStop();
+            }
         }
         super.onDestroy();
     }
@@ -366,26 +454,61 @@ public class BackgroundService extends Service {
 
     //To use the service from the gui
 
+    //Called on the main thread
     public interface InstanceCallback {
         void onServiceStart(BackgroundService service);
     }
 
-    private final static ArrayList<InstanceCallback> callbacks = new ArrayList<>();
+    //Called on a background thread, for commands that might block (eg: network or disk). They can run
+    //at the same time as other background commands
+    public interface BackgroundInstanceCallback extends InstanceCallback {
+    }
+
+    public interface BackgroundPluginCallback<T extends Plugin> extends PluginCallback<T> {
+    }
 
-    private final static Lock mutex = new ReentrantLock(true);
+    //Commands run as soon as the service is ready (see becomeReadyForCommands). Until then they wait
+    //in pendingCallbacks, and readyInstance is only set or cleared holding its lock
+    private final static ArrayList<InstanceCallback> pendingCallbacks = new ArrayList<>();
+    private static BackgroundService readyInstance;
+
+    //Shared by every background command and the service's own tasks (eg: startup), instead of a thread each
+    private static final int MAX_COMMAND_THREADS = 4;
+    private static final ThreadPoolExecutor commandThreads = new ThreadPoolExecutor(MAX_COMMAND_THREADS, MAX_COMMAND_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> new Thread(r, "KDE/BackgroundService"));
+    static {
+        commandThreads.allowCoreThreadTimeOut(true);
+    }
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private boolean startCommandReceived = false; //Only used on the main thread
+
+    //Called on the main thread once we got the first onStartCommand() and once the remembered devices are
+    //loaded, the service is ready for commands after both
+    private void becomeReadyForCommands() {
+        if (!startCommandReceived || rememberedDevicesLoaded.getCount() > 0 || destroyed) {
+            return;
+        }
+        ArrayList<InstanceCallback> pending;
+        synchronized (pendingCallbacks) {
+            if (readyInstance == this) {
+                return;
+            }
+            readyInstance = this;
+            pending = new ArrayList<>(pendingCallbacks);
+            pendingCallbacks.clear();
+        }
+        //Commands sent from now on on the main thread run after these, since we are on it too
+        for (InstanceCallback c : pending) {
+            dispatch(this, c);
+        }
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         //This will be called for each intent launch, even if the service is already started and it is reused
-        mutex.lock();
-        try {
-            for (InstanceCallback c : callbacks) {
-                c.onServiceStart(this);
-            }
-            callbacks.clear();
-        } finally {
-            mutex.unlock();
-        }
+        startCommandReceived = true;
+        becomeReadyForCommands();
 
         if (NotificationHelper.isPersistentNotificationEnabled(this)) {
             startForeground(FOREGROUND_NOTIFICATION_ID, createForegroundNotification());
@@ -394,30 +517,51 @@ public class BackgroundService extends Service {
     }
 
     private static void Start(Context c) {
-        RunCommand(c, null);
+        Intent serviceIntent = new Intent(c, BackgroundService.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            c.startForegroundService(serviceIntent);
+        } else {
+            c.startService(serviceIntent);
+        }
     }
 
+    //Runs the callback on the main thread, right away if the service is running and we are already on it
     public static void RunCommand(final Context c, final InstanceCallback callback) {
-        new Thread(() -> {
-            if (callback != null) {
-                mutex.lock();
-                try {
-                    callbacks.add(callback);
-                } finally {
-                    mutex.unlock();
-                }
+        BackgroundService service;
+        synchronized (pendingCallbacks) {
+            service = readyInstance;
+            if (service == null && callback != null) {
+                pendingCallbacks.add(callback);
             }
-            Intent serviceIntent = new Intent(c, BackgroundService.class);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                c.startForegroundService(serviceIntent);
-            } else {
-                c.startService(serviceIntent);
-            }
-        }).start();
+        }
+        if (service == null) {
+            Start(c);
+        } else if (callback != null) {
+            dispatch(service, callback);
+        }
+    }
+
+    public static void RunCommandInBackground(final Context c, final BackgroundInstanceCallback callback) {
+        RunCommand(c, callback);
     }
 
+    private static void dispatch(final BackgroundService service, final InstanceCallback callback) {
+        if (callback instanceof BackgroundInstanceCallback) {
+            commandThreads.execute(() -> callback.onServiceStart(service));
+        } else if (Looper.myLooper() == Looper.getMainLooper()) {
+            callback.onServiceStart(service);
+        } else {
+            mainHandler.post(() -> callback.onServiceStart(service));
+        }
+    }
+
+    public static <T extends Plugin> void runWithPluginInBackground(final Context c, final String deviceId, final Class<T> pluginClass, final BackgroundPluginCallback<T> cb) {
+        runWithPlugin(c, deviceId, pluginClass, cb);
+    }
+
+    //Runs the callback like RunCommand() does, or in the background if it's a BackgroundPluginCallback
     public static <T extends Plugin> void runWithPlugin(final Context c, final String deviceId, final Class<T> pluginClass, final PluginCallback<T> cb) {
-        RunCommand(c, service -> {
+        InstanceCallback command = service -> {
             Device device = service.getDevice(deviceId);
 
             if (device == null) {
@@ -432,7 +576,12 @@ public class BackgroundService extends Service {
                 return;
             }
             cb.run(plugin);
-        });
+        };
+        if (cb instanceof BackgroundPluginCallback) {
+            RunCommandInBackground(c, command::onServiceStart);
+        } else {
+            RunCommand(c, command);
+        }
     }
 
 }
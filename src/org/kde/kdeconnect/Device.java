@@ -38,13 +38,16 @@ import android.util.Log;
 import org.kde.kdeconnect.Backends.BaseLink;
 import org.kde.kdeconnect.Backends.BasePairingHandler;
 import org.kde.kdeconnect.Backends.LanBackend.LanLinkProvider;
+import org.kde.kdeconnect.Helpers.Histogram;
 import org.kde.kdeconnect.Helpers.NotificationHelper;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
+import org.kde.kdeconnect.Helpers.SerialExecutor;
 import org.kde.kdeconnect.Plugins.Plugin;
 import org.kde.kdeconnect.Plugins.PluginFactory;
 import org.kde.kdeconnect.UserInterface.MainActivity;
 import org.kde.kdeconnect_tp.R;
 
+import java.io.IOException;
 import java.security.KeyFactory;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -52,14 +55,22 @@ import java.security.cert.Certificate;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Device implements BaseLink.PacketReceiver {
 
@@ -85,7 +96,34 @@ public class Device implements BaseLink.PacketReceiver {
     private final ConcurrentHashMap<String, Plugin> failedPlugins = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Plugin> pluginsWithoutPermissions = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, Plugin> pluginsWithoutOptionalPermissions = new ConcurrentHashMap<>();
-    private Map<String, ArrayList<String>> pluginsByIncomingInterface = new HashMap<>();
+    //Interned packet type -> plugins that get it. Built by reloadPluginsFromSettings() and never modified afterwards,
+    //so receiving a packet is one lookup by identity without locking
+    private volatile Map<String, Plugin[]> pluginsByIncomingType = Collections.emptyMap();
+
+    //Enabled plugins not created yet, see Plugin.loadsEagerly(). Modified with the lock held, and the table
+    //has the same rules as pluginsByIncomingType
+    private final Set<String> deferredPlugins = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile Map<String, String[]> deferredPluginsByIncomingType = Collections.emptyMap();
+    static volatile boolean loadPluginsLazily = true; //Can be turned off to compare, see DeviceTest
+    private volatile long pluginsReadyMillis = -1; //From addLink() until the plugins were ready for the last connection
+    private final ConcurrentHashMap<String, Histogram> pluginReceiveTimes = new ConcurrentHashMap<>(); //Microseconds in onPacketReceived
+
+    //Plugins get packets on their own queue, so a slow one (eg: querying contacts) doesn't hold back the others
+    //or the link's reader thread. Queues of all devices share a few threads.
+    private static final int MAX_PLUGIN_THREADS = 4;
+    private static final ThreadPoolExecutor pluginThreads = new ThreadPoolExecutor(MAX_PLUGIN_THREADS, MAX_PLUGIN_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        pluginThreads.allowCoreThreadTimeOut(true);
+    }
+    private final ConcurrentHashMap<String, SerialExecutor> pluginQueues = new ConcurrentHashMap<>();
+
+    //Plugins that went over these get flagged as slow
+    private static final long SLOW_PLUGIN_MS = 500;
+    private static final int SLOW_PLUGIN_QUEUE_SIZE = 32;
+    //Packets for a plugin that has this many queued already are dropped, so a stuck plugin can't make us run out of memory
+    private static final int MAX_PLUGIN_QUEUE_SIZE = 256;
+    private final ConcurrentHashMap<String, String> slowPlugins = new ConcurrentHashMap<>(); //Plugin key to the reason
 
     private final SharedPreferences settings;
 
@@ -300,6 +338,9 @@ public class Device implements BaseLink.PacketReceiver {
 
         //Log.e("Device","Unpairing (unpairInternal)");
         pairStatus = PairStatus.NotPaired;
+        for (BaseLink link : links) {
+            link.setPaired(false);
+        }
 
         SharedPreferences preferences = context.getSharedPreferences("trusted_devices", Context.MODE_PRIVATE);
         preferences.edit().remove(deviceId).apply();
@@ -307,6 +348,8 @@ public class Device implements BaseLink.PacketReceiver {
         SharedPreferences devicePreferences = context.getSharedPreferences(deviceId, Context.MODE_PRIVATE);
         devicePreferences.edit().clear().apply();
 
+        SslHelper.invalidateSslContext(deviceId);
+
         for (PairingCallback cb : pairingCallback) cb.unpaired();
 
         reloadPluginsFromSettings();
@@ -321,6 +364,9 @@ public class Device implements BaseLink.PacketReceiver {
         hidePairingNotification();
 
         pairStatus = PairStatus.Paired;
+        for (BaseLink link : links) {
+            link.setPaired(true);
+        }
 
         //Store as trusted device
         SharedPreferences preferences = context.getSharedPreferences("trusted_devices", Context.MODE_PRIVATE);
@@ -331,6 +377,8 @@ public class Device implements BaseLink.PacketReceiver {
         editor.putString("deviceType", deviceType.toString());
         editor.apply();
 
+        SslHelper.invalidateSslContext(deviceId); //Connections from now on have to check its certificate
+
         reloadPluginsFromSettings();
 
         for (PairingCallback cb : pairingCallback) {
@@ -439,6 +487,7 @@ public class Device implements BaseLink.PacketReceiver {
 
     public void addLink(NetworkPacket identityPacket, BaseLink link) {
         //FilesHelper.LogOpenFileCount();
+        long connectedAt = System.nanoTime();
 
         this.protocolVersion = identityPacket.getInt("protocolVersion");
 
@@ -468,6 +517,7 @@ public class Device implements BaseLink.PacketReceiver {
         }
 
 
+        link.setPaired(isPaired());
         links.add(link);
 
         try {
@@ -523,6 +573,13 @@ public class Device implements BaseLink.PacketReceiver {
 
         reloadPluginsFromSettings();
 
+        pluginsReadyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectedAt);
+        Log.i("KDE/Device", "Plugins of " + name + " ready " + pluginsReadyMillis + "ms after connecting ("
+                + plugins.size() + " created, " + deferredPlugins.size() + " deferred)");
+    }
+
+    long getPluginsReadyMillis() {
+        return pluginsReadyMillis;
     }
 
     public void removeLink(BaseLink link) {
@@ -567,21 +624,36 @@ public class Device implements BaseLink.PacketReceiver {
             }
         } else if (isPaired()) {
 
-            //If capabilities are not supported, iterate all plugins
-            Collection<String> targetPlugins = pluginsByIncomingInterface.get(np.getType());
-            if (targetPlugins != null && !targetPlugins.isEmpty()) {
-                for (String pluginKey : targetPlugins) {
-                    Plugin plugin = plugins.get(pluginKey);
-                    try {
-                        plugin.onPacketReceived(np);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        Log.e("KDE/Device", "Exception in " + plugin.getPluginKey() + "'s onPacketReceived()");
-                        //try { Log.e("KDE/Device", "NetworkPacket:" + np.serialize()); } catch (Exception _) { }
+            Plugin[] targetPlugins = getPluginsForType(np.getType());
+            if (targetPlugins != null) {
+                //The last plugin to handle the packet closes its payload if none of them took it
+                final AtomicInteger pendingPlugins = new AtomicInteger(targetPlugins.length);
+                final AtomicBoolean handled = new AtomicBoolean(false);
+                for (final Plugin plugin : targetPlugins) {
+                    SerialExecutor queue = getPluginQueue(plugin.getPluginKey());
+                    int queueSize = queue.getQueueSize();
+                    if (queueSize >= SLOW_PLUGIN_QUEUE_SIZE) {
+                        flagSlowPlugin(plugin.getPluginKey(), queueSize + " packets queued");
+                    }
+                    if (queueSize >= MAX_PLUGIN_QUEUE_SIZE) {
+                        Log.e("KDE/Device", "Dropping " + np.getType() + " for " + plugin.getPluginKey() + ", it has " + queueSize + " packets queued");
+                        if (pendingPlugins.decrementAndGet() == 0 && !handled.get()) {
+                            closeUnhandledPayload(np);
+                        }
+                        continue;
                     }
+                    queue.execute(() -> {
+                        if (dispatchToPlugin(plugin, np)) {
+                            handled.set(true);
+                        }
+                        if (pendingPlugins.decrementAndGet() == 0 && !handled.get()) {
+                            closeUnhandledPayload(np);
+                        }
+                    });
                 }
             } else {
                 Log.w("Device", "Ignoring packet with type " + np.getType() + " because no plugin can handle it");
+                closeUnhandledPayload(np);
             }
         } else {
 
@@ -593,13 +665,12 @@ public class Device implements BaseLink.PacketReceiver {
 
             unpair();
 
-            //If capabilities are not supported, iterate all plugins
-            Collection<String> targetPlugins = pluginsByIncomingInterface.get(np.getType());
-            if (targetPlugins != null && !targetPlugins.isEmpty()) {
-                for (String pluginKey : targetPlugins) {
-                    Plugin plugin = plugins.get(pluginKey);
+            Plugin[] targetPlugins = getPluginsForType(np.getType());
+            boolean handled = false;
+            if (targetPlugins != null) {
+                for (Plugin plugin : targetPlugins) {
                     try {
-                        plugin.onUnpairedDevicePacketReceived(np);
+                        handled |= plugin.onUnpairedDevicePacketReceived(np);
                     } catch (Exception e) {
                         e.printStackTrace();
                         Log.e("KDE/Device", "Exception in " + plugin.getDisplayName() + "'s onPacketReceived() in unPairedPacketListeners");
@@ -608,8 +679,79 @@ public class Device implements BaseLink.PacketReceiver {
             } else {
                 Log.e("Device", "Ignoring packet with type " + np.getType() + " because no plugin can handle it");
             }
+            if (!handled) {
+                closeUnhandledPayload(np);
+            }
+        }
+
+    }
+
+    //Nobody is going to read it, and a payload left open holds back the next ones coming through the same connection
+    private static void closeUnhandledPayload(NetworkPacket np) {
+        if (np.hasPayload()) {
+            np.getPayload().close();
+        }
+    }
+
+    private Plugin[] getPluginsForType(String type) {
+        Map<String, Plugin[]> table = pluginsByIncomingType;
+        Map<String, String[]> deferredTable = deferredPluginsByIncomingType;
+        Plugin[] targets = table.get(type);
+        String[] toCreate = deferredTable.get(type);
+        if (targets == null && toCreate == null && !(table.isEmpty() && deferredTable.isEmpty())) {
+            type = PluginFactory.getKnownPacketType(type); //Not decoded by NetworkPacketCodec, eg: built by hand in a test
+            if (type == null) {
+                return null;
+            }
+            targets = table.get(type);
+            toCreate = deferredTable.get(type);
+        }
+        if (toCreate != null) {
+            createDeferredPlugins(toCreate);
+            targets = pluginsByIncomingType.get(type);
+        }
+        return targets;
+    }
+
+    //Runs in the plugin's queue, returns whether the plugin handled the packet
+    private boolean dispatchToPlugin(Plugin plugin, NetworkPacket np) {
+        String pluginKey = plugin.getPluginKey();
+        if (plugins.get(pluginKey) != plugin) {
+            return false; //Unloaded (or reloaded) since the packet was queued
+        }
+        long startedAt = System.nanoTime();
+        boolean handled = false;
+        try {
+            handled = plugin.onPacketReceived(np);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.e("KDE/Device", "Exception in " + plugin.getPluginKey() + "'s onPacketReceived()");
+            //try { Log.e("KDE/Device", "NetworkPacket:" + np.serialize()); } catch (Exception _) { }
+        }
+        long tookMicros = (System.nanoTime() - startedAt) / 1000;
+        getPluginReceiveTimes(pluginKey).record(tookMicros);
+        if (tookMicros >= SLOW_PLUGIN_MS * 1000) {
+            flagSlowPlugin(pluginKey, (tookMicros / 1000) + "ms handling " + np.getType());
+        }
+        return handled;
+    }
+
+    private SerialExecutor getPluginQueue(String pluginKey) {
+        SerialExecutor queue = pluginQueues.get(pluginKey);
+        if (queue == null) {
+            queue = new SerialExecutor(pluginThreads);
+            SerialExecutor existing = pluginQueues.putIfAbsent(pluginKey, queue);
+            if (existing != null) {
+                queue = existing;
+            }
         }
+        return queue;
+    }
 
+    private void flagSlowPlugin(String pluginKey, String reason) {
+        if (slowPlugins.put(pluginKey, reason) == null) {
+            Log.w("KDE/Device", "Plugin " + pluginKey + " is slow: " + reason);
+        }
     }
 
     public static abstract class SendPacketStatusCallback {
@@ -646,7 +788,47 @@ public class Device implements BaseLink.PacketReceiver {
 
     //Async
     public void sendPacket(final NetworkPacket np, final SendPacketStatusCallback callback) {
-        new Thread(() -> sendPacketBlocking(np, callback)).start();
+        hackToMakeRetrocompatiblePacketTypes(np);
+        enqueuePacket(np, callback, links.iterator());
+    }
+
+    //Queues the packet in the first link that accepts it. If sending through that link fails, the next one is tried
+    private void enqueuePacket(final NetworkPacket np, final SendPacketStatusCallback callback, final Iterator<BaseLink> remainingLinks) {
+        PublicKey key = shouldEncrypt(np) ? publicKey : null;
+        while (remainingLinks.hasNext()) {
+            final BaseLink link = remainingLinks.next();
+            if (link == null)
+                continue;
+            SendPacketStatusCallback linkCallback = callback;
+            if (remainingLinks.hasNext()) {
+                linkCallback = new SendPacketStatusCallback() {
+                    @Override
+                    public void onSuccess() {
+                        callback.onSuccess();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        Log.w("KDE/sendPacket", "Could not send " + np.getType() + " through " + link.getName() + ", trying the next link");
+                        enqueuePacket(np, callback, remainingLinks);
+                    }
+
+                    @Override
+                    public void onProgressChanged(int percent) {
+                        callback.onProgressChanged(percent);
+                    }
+                };
+            }
+            if (link.enqueuePacket(np, linkCallback, key)) {
+                return;
+            }
+        }
+        Log.e("KDE/sendPacket", "No device link (of " + links.size() + " available) could send the package. Packet " + np.getType() + " to " + name + " lost!");
+        callback.onFailure(new IOException("No link could queue " + np.getType() + ", their queues are full or there are none"));
+    }
+
+    private boolean shouldEncrypt(NetworkPacket np) {
+        return protocolVersion < LanLinkProvider.MIN_VERSION_WITH_SSL_SUPPORT && (!np.getType().equals(NetworkPacket.PACKET_TYPE_PAIR) && isPaired());
     }
 
     public boolean sendPacketBlocking(final NetworkPacket np, final SendPacketStatusCallback callback) {
@@ -660,18 +842,15 @@ public class Device implements BaseLink.PacketReceiver {
 
         hackToMakeRetrocompatiblePacketTypes(np);
 
-        boolean useEncryption = (protocolVersion < LanLinkProvider.MIN_VERSION_WITH_SSL_SUPPORT && (!np.getType().equals(NetworkPacket.PACKET_TYPE_PAIR) && isPaired()));
+        PublicKey key = shouldEncrypt(np) ? publicKey : null;
 
         boolean success = false;
         //Make a copy to avoid concurrent modification exception if the original list changes
         for (final BaseLink link : links) {
             if (link == null)
                 continue; //Since we made a copy, maybe somebody destroyed the link in the meanwhile
-            if (useEncryption) {
-                success = link.sendPacketEncrypted(np, callback, publicKey);
-            } else {
-                success = link.sendPacket(np, callback);
-            }
+            //Goes through the link's queue too, so it waits for room if the link is busy instead of racing the writer thread
+            success = link.enqueuePacketBlocking(np, callback, key);
             if (success) break; //If the link didn't call sendSuccess(), try the next one
         }
 
@@ -700,6 +879,10 @@ public class Device implements BaseLink.PacketReceiver {
 
     public Plugin getPlugin(String pluginKey, boolean includeFailed) {
         Plugin plugin = plugins.get(pluginKey);
+        if (plugin == null && deferredPlugins.contains(pluginKey)) {
+            createDeferredPlugins(new String[]{pluginKey});
+            plugin = plugins.get(pluginKey);
+        }
         if (includeFailed && plugin == null) {
             plugin = failedPlugins.get(pluginKey);
         }
@@ -815,49 +998,110 @@ public class Device implements BaseLink.PacketReceiver {
 
     public void reloadPluginsFromSettings() {
 
-        failedPlugins.clear();
-
-        HashMap<String, ArrayList<String>> newPluginsByIncomingInterface = new HashMap<>();
+        synchronized (this) {
+            failedPlugins.clear();
+            deferredPlugins.clear();
 
-        for (String pluginKey : m_supportedPlugins) {
+            for (String pluginKey : m_supportedPlugins) {
 
-            PluginFactory.PluginInfo pluginInfo = PluginFactory.getPluginInfo(context, pluginKey);
+                PluginFactory.PluginInfo pluginInfo = PluginFactory.getPluginInfo(context, pluginKey);
 
-            boolean pluginEnabled = false;
-            boolean listenToUnpaired = pluginInfo.listenToUnpaired();
-            if ((isPaired() || listenToUnpaired) && isReachable()) {
-                pluginEnabled = isPluginEnabled(pluginKey);
-            }
+                boolean pluginEnabled = false;
+                boolean listenToUnpaired = pluginInfo.listenToUnpaired();
+                if ((isPaired() || listenToUnpaired) && isReachable()) {
+                    pluginEnabled = isPluginEnabled(pluginKey);
+                }
 
-            if (pluginEnabled) {
-                boolean success = addPlugin(pluginKey);
-                if (success) {
-                    for (String packageType : pluginInfo.getSupportedPacketTypes()) {
-                        packageType = hackToMakeRetrocompatiblePacketTypes(packageType);
-                        ArrayList<String> plugins = newPluginsByIncomingInterface.get(packageType);
-                        if (plugins == null) plugins = new ArrayList<>();
-                        plugins.add(pluginKey);
-                        newPluginsByIncomingInterface.put(packageType, plugins);
+                if (pluginEnabled) {
+                    if (loadPluginsLazily && !pluginInfo.loadsEagerly() && !plugins.containsKey(pluginKey)) {
+                        deferredPlugins.add(pluginKey);
+                    } else {
+                        addPlugin(pluginKey);
                     }
+                } else {
+                    removePlugin(pluginKey);
                 }
-            } else {
-                removePlugin(pluginKey);
+
             }
 
+            rebuildDispatchTables();
         }
 
-        pluginsByIncomingInterface = newPluginsByIncomingInterface;
-
         onPluginsChanged();
     }
 
+    //Creates plugins that were deferred by reloadPluginsFromSettings(), because they got a packet or somebody asked for them
+    private void createDeferredPlugins(String[] pluginKeys) {
+        boolean created = false;
+        synchronized (this) {
+            for (String pluginKey : pluginKeys) {
+                if (deferredPlugins.remove(pluginKey)) {
+                    Log.i("KDE/Device", "Creating deferred plugin " + pluginKey);
+                    addPlugin(pluginKey);
+                    created = true;
+                }
+            }
+            if (created) {
+                rebuildDispatchTables();
+            }
+        }
+        if (created) {
+            onPluginsChanged();
+        }
+    }
+
+    //Called with the lock held, after the plugins or the deferred plugins changed
+    private void rebuildDispatchTables() {
+        HashMap<String, ArrayList<Plugin>> loaded = new HashMap<>();
+        HashMap<String, ArrayList<String>> deferred = new HashMap<>();
+        for (String pluginKey : m_supportedPlugins) {
+            Plugin plugin = plugins.get(pluginKey);
+            if (plugin == null && !deferredPlugins.contains(pluginKey)) {
+                continue;
+            }
+            for (String packageType : PluginFactory.getPluginInfo(context, pluginKey).getSupportedPacketTypes()) {
+                packageType = hackToMakeRetrocompatiblePacketTypes(packageType).intern();
+                if (plugin != null) {
+                    ArrayList<Plugin> targets = loaded.get(packageType);
+                    if (targets == null) {
+                        targets = new ArrayList<>();
+                        loaded.put(packageType, targets);
+                    }
+                    targets.add(plugin);
+                } else {
+                    ArrayList<String> targets = deferred.get(packageType);
+                    if (targets == null) {
+                        targets = new ArrayList<>();
+                        deferred.put(packageType, targets);
+                    }
+                    targets.add(pluginKey);
+                }
+            }
+        }
+
+        IdentityHashMap<String, Plugin[]> loadedTable = new IdentityHashMap<>();
+        for (Map.Entry<String, ArrayList<Plugin>> entry : loaded.entrySet()) {
+            loadedTable.put(entry.getKey(), entry.getValue().toArray(new Plugin[0]));
+        }
+        IdentityHashMap<String, String[]> deferredTable = new IdentityHashMap<>();
+        for (Map.Entry<String, ArrayList<String>> entry : deferred.entrySet()) {
+            deferredTable.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+        }
+        pluginsByIncomingType = loadedTable;
+        deferredPluginsByIncomingType = deferredTable;
+    }
+
     public void onPluginsChanged() {
         for (PluginsChangedListener listener : pluginsChangedListeners) {
             listener.onPluginsChanged(Device.this);
         }
     }
 
+    //The UI lists every enabled plugin, so the deferred ones are created when it asks
     public ConcurrentHashMap<String, Plugin> getLoadedPlugins() {
+        if (!deferredPlugins.isEmpty()) {
+            createDeferredPlugins(deferredPlugins.toArray(new String[0]));
+        }
         return plugins;
     }
 
@@ -907,9 +1151,51 @@ public class Device implements BaseLink.PacketReceiver {
         return m_supportedPlugins;
     }
 
+    private Histogram getPluginReceiveTimes(String pluginKey) {
+        Histogram times = pluginReceiveTimes.get(pluginKey);
+        if (times == null) {
+            times = new Histogram();
+            Histogram existing = pluginReceiveTimes.putIfAbsent(pluginKey, times);
+            if (existing != null) {
+                times = existing;
+            }
+        }
+        return times;
+    }
+
+    //Traffic and timings of this device's links and plugins, as readable text
+    public String getMetricsReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(name).append(" (").append(deviceId).append(")\n");
+        for (BaseLink link : links) {
+            report.append(link.getName()).append(":\n");
+            link.getMetrics().dump(report);
+            String providerReport = link.getLinkProvider().getMetricsReport();
+            if (providerReport != null) {
+                report.append(providerReport);
+            }
+        }
+        report.append("Plugins ready ").append(pluginsReadyMillis).append("ms after connecting, ")
+                .append(deferredPlugins.size()).append(" not created yet\n");
+        report.append("Plugins (time in onPacketReceived):\n");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(pluginReceiveTimes).entrySet()) {
+            report.append("  ").append(entry.getKey()).append(": ").append(entry.getValue().toString("us")).append('\n');
+        }
+        for (Map.Entry<String, String> entry : new TreeMap<>(slowPlugins).entrySet()) {
+            report.append("  Slow: ").append(entry.getKey()).append(", last time ").append(entry.getValue()).append('\n');
+        }
+        return report.toString();
+    }
+
     private void hackToMakeRetrocompatiblePacketTypes(NetworkPacket np) {
         if (protocolVersion >= 6) return;
-        np.mType = np.getType().replace(".request", "");
+        String type = np.getType();
+        if (type.contains(".request")) {
+            String known = PluginFactory.getKnownPacketType(type.replace(".request", "")); //Interned, for pluginsByIncomingType
+            if (known != null) {
+                np.mType = known;
+            }
+        }
     }
 
     private String hackToMakeRetrocompatiblePacketTypes(String type) {
@@ -30,6 +30,7 @@ import android.provider.Settings;
 import android.util.Log;
 
 import org.kde.kdeconnect.Device;
+import org.kde.kdeconnect.NetworkPacket;
 
 import java.util.HashMap;
 
@@ -543,6 +544,7 @@ public class DeviceHelper {
     public static void setDeviceName(Context context, String name) {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
         preferences.edit().putString(KEY_DEVICE_NAME_PREFERENCE, name).apply();
+        NetworkPacket.invalidateIdentityPacket();
     }
 
     public static String getDeviceId(Context context) {
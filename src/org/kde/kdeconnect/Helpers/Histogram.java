@@ -0,0 +1,86 @@
+package org.kde.kdeconnect.Helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of a value (a time, a size...) in power of two buckets. Recording only uses
+ * atomic increments, so it can be called from any thread without taking locks. LongAdder would
+ * scale better under contention, but it's not available on the Android versions we support.
+ * <p>
+ * Percentiles are the upper bound of the bucket they fall in, so they are at most twice the real
+ * value. Good enough to tell 1ms from 100ms.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64; //Bucket i holds values in [2^(i-1), 2^i), bucket 0 holds 0
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return (n == 0) ? 0 : sum.get() / n;
+    }
+
+    //Percentile between 0 and 100
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long wanted = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= wanted) {
+                return Math.min((i == 0) ? 0 : (1L << i) - 1, max.get());
+            }
+        }
+        return max.get(); //Recorded while we were reading
+    }
+
+    public String toString(String unit) {
+        if (count.get() == 0) {
+            return "none";
+        }
+        return "n=" + count.get()
+                + " mean=" + getMean() + unit
+                + " p50=" + getPercentile(50) + unit
+                + " p90=" + getPercentile(90) + unit
+                + " p99=" + getPercentile(99) + unit
+                + " max=" + getMax() + unit;
+    }
+
+    @Override
+    public String toString() {
+        return toString("");
+    }
+}
@@ -31,10 +31,13 @@ import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.kde.kdeconnect.NetworkPacket;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -197,6 +200,37 @@ public class SMSHelper {
         return toReturn;
     }
 
+    /**
+     * Construct a proper packet of the given type (the SMS plugin's PACKET_TYPE_SMS_MESSAGE) from
+     * the passed messages
+     *
+     * @param packetType Type of the packet
+     * @param messages Messages to include in the packet
+     * @return NetworkPacket of the given type
+     */
+    public static NetworkPacket constructBulkMessagePacket(String packetType, Collection<Message> messages) {
+        NetworkPacket reply = new NetworkPacket(packetType);
+
+        JSONArray body = new JSONArray();
+
+        for (Message message : messages) {
+            try {
+                JSONObject json = message.toJSONObject();
+
+                json.put("event", Message.TEXT_MESSAGE);
+
+                body.put(json);
+            } catch (JSONException e) {
+                Log.e("Conversations", "Error serializing message");
+            }
+        }
+
+        reply.set("messages", body);
+        reply.set("event", "batch_messages");
+
+        return reply;
+    }
+
     /**
      * Register a ContentObserver for the Messages database
      *
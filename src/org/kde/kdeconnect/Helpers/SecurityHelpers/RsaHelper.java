@@ -28,10 +28,11 @@ import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.kde.kdeconnect.Helpers.StringsHelper;
 import org.kde.kdeconnect.NetworkPacket;
 
-import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -39,6 +40,12 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Cipher;
 
@@ -90,26 +97,63 @@ public class RsaHelper {
         return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(privateKeyBytes));
     }
 
-    public static NetworkPacket encrypt(NetworkPacket np, PublicKey publicKey) throws GeneralSecurityException, JSONException {
+    //Legacy protocol: packets are sent as a list of chunks of their serialized bytes, each one encrypted on its own
+    private static final String TRANSFORMATION = "RSA/ECB/PKCS1PADDING";
+    private static final int CHUNK_SIZE = 128;
+
+    //Decrypting a chunk takes around a millisecond on a phone, so packets with many are split between threads
+    private static final int MIN_CHUNKS_TO_PARALLELIZE = 16;
+    private static final int MAX_DECRYPT_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ThreadPoolExecutor decryptThreads = new ThreadPoolExecutor(MAX_DECRYPT_THREADS, MAX_DECRYPT_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        decryptThreads.allowCoreThreadTimeOut(true);
+    }
+
+    //Getting a Cipher instance is expensive and they are not thread safe, so each thread keeps one
+    private static class CachedCipher {
+        final Cipher cipher;
+        int mode;
+        Key key; //Null if the cipher has to be initialized again
 
-        String serialized = np.serialize();
+        CachedCipher(Cipher cipher) {
+            this.cipher = cipher;
+        }
+    }
+
+    private static final ThreadLocal<CachedCipher> ciphers = new ThreadLocal<>();
+
+    private static CachedCipher getCipher(int mode, Key key) throws GeneralSecurityException {
+        CachedCipher cached = ciphers.get();
+        if (cached == null) {
+            cached = new CachedCipher(Cipher.getInstance(TRANSFORMATION));
+            ciphers.set(cached);
+        }
+        if (cached.key != key || cached.mode != mode) {
+            cached.key = null;
+            cached.cipher.init(mode, key);
+            cached.mode = mode;
+            cached.key = key;
+        }
+        return cached;
+    }
 
-        int chunkSize = 128;
+    public static NetworkPacket encrypt(NetworkPacket np, PublicKey publicKey) throws GeneralSecurityException, JSONException {
 
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1PADDING");
-        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+        //Chunked by bytes and not by chars, so multibyte characters can't be split differently on each end
+        byte[] serialized = np.serialize().getBytes(StringsHelper.UTF8);
 
+        CachedCipher cached = getCipher(Cipher.ENCRYPT_MODE, publicKey);
         JSONArray chunks = new JSONArray();
-        while (serialized.length() > 0) {
-            if (serialized.length() < chunkSize) {
-                chunkSize = serialized.length();
+        try {
+            for (int offset = 0; offset < serialized.length; offset += CHUNK_SIZE) {
+                int length = Math.min(CHUNK_SIZE, serialized.length - offset);
+                byte[] encryptedChunk = cached.cipher.doFinal(serialized, offset, length);
+                chunks.put(Base64.encodeToString(encryptedChunk, Base64.NO_WRAP));
             }
-            String chunk = serialized.substring(0, chunkSize);
-            serialized = serialized.substring(chunkSize);
-            byte[] chunkBytes = chunk.getBytes(Charset.defaultCharset());
-            byte[] encryptedChunk;
-            encryptedChunk = cipher.doFinal(chunkBytes);
-            chunks.put(Base64.encodeToString(encryptedChunk, Base64.NO_WRAP));
+        } catch (GeneralSecurityException e) {
+            cached.key = null; //Don't trust the state it was left in
+            throw e;
         }
 
         //Log.i("NetworkPacket", "Encrypted " + chunks.length()+" chunks");
@@ -121,24 +165,71 @@ public class RsaHelper {
 
     }
 
-    public static NetworkPacket decrypt(NetworkPacket np, PrivateKey privateKey) throws GeneralSecurityException, JSONException {
+    public static NetworkPacket decrypt(NetworkPacket np, final PrivateKey privateKey) throws GeneralSecurityException, JSONException {
 
         JSONArray chunks = np.getJSONArray("data");
+        final int chunkCount = chunks.length();
+        final byte[][] encryptedChunks = new byte[chunkCount][];
+        for (int i = 0; i < chunkCount; i++) {
+            encryptedChunks[i] = Base64.decode(chunks.getString(i), Base64.NO_WRAP);
+        }
 
-        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1PADDING");
-        cipher.init(Cipher.DECRYPT_MODE, privateKey);
+        //Every chunk gets a slot as big as it can decrypt to (the size of the key for RSA), and then they are put together
+        final int slotSize = getCipher(Cipher.DECRYPT_MODE, privateKey).cipher.getOutputSize(0);
+        final byte[] decrypted = new byte[chunkCount * slotSize];
+        final int[] decryptedLengths = new int[chunkCount];
+
+        if (chunkCount < MIN_CHUNKS_TO_PARALLELIZE) {
+            decryptChunks(privateKey, encryptedChunks, 0, chunkCount, decrypted, slotSize, decryptedLengths);
+        } else {
+            int rangeSize = (chunkCount + MAX_DECRYPT_THREADS - 1) / MAX_DECRYPT_THREADS;
+            ArrayList<Future<Void>> others = new ArrayList<>();
+            for (int start = rangeSize; start < chunkCount; start += rangeSize) {
+                final int from = start;
+                final int to = Math.min(start + rangeSize, chunkCount);
+                others.add(decryptThreads.submit(() -> {
+                    decryptChunks(privateKey, encryptedChunks, from, to, decrypted, slotSize, decryptedLengths);
+                    return null;
+                }));
+            }
+            decryptChunks(privateKey, encryptedChunks, 0, Math.min(rangeSize, chunkCount), decrypted, slotSize, decryptedLengths);
+            for (Future<Void> other : others) {
+                try {
+                    other.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof GeneralSecurityException) {
+                        throw (GeneralSecurityException) e.getCause();
+                    }
+                    throw new GeneralSecurityException(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new GeneralSecurityException(e);
+                }
+            }
+        }
 
-        StringBuilder decryptedJson = new StringBuilder();
-        for (int i = 0; i < chunks.length(); i++) {
-            byte[] encryptedChunk = Base64.decode(chunks.getString(i), Base64.NO_WRAP);
-            String decryptedChunk = new String(cipher.doFinal(encryptedChunk));
-            decryptedJson.append(decryptedChunk);
+        int length = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            System.arraycopy(decrypted, i * slotSize, decrypted, length, decryptedLengths[i]);
+            length += decryptedLengths[i];
         }
 
-        NetworkPacket decrypted = NetworkPacket.unserialize(decryptedJson.toString());
-        decrypted.setPayload(np.getPayload());
-        return decrypted;
+        NetworkPacket decryptedPacket = NetworkPacket.unserialize(decrypted, 0, length);
+        decryptedPacket.setPayload(np.getPayload());
+        return decryptedPacket;
     }
 
+    //Decrypts the chunks in [from, to), each one into its slot of the output
+    private static void decryptChunks(PrivateKey privateKey, byte[][] encryptedChunks, int from, int to,
+                                      byte[] output, int slotSize, int[] outputLengths) throws GeneralSecurityException {
+        CachedCipher cached = getCipher(Cipher.DECRYPT_MODE, privateKey);
+        try {
+            for (int i = from; i < to; i++) {
+                outputLengths[i] = cached.cipher.doFinal(encryptedChunks[i], 0, encryptedChunks[i].length, output, i * slotSize);
+            }
+        } catch (GeneralSecurityException e) {
+            cached.key = null; //Don't trust the state it was left in
+            throw e;
+        }
+    }
 
 }
@@ -41,6 +41,7 @@ import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.security.KeyStore;
@@ -54,9 +55,11 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Formatter;
+import java.util.HashMap;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -137,8 +140,70 @@ public class SslHelper {
         return !cert.isEmpty();
     }
 
+    /**
+     * Contexts are expensive to create (they need our private key, the certificate of the other
+     * device and new key and trust managers), so we keep one per trusted device, and a single one
+     * shared by all the untrusted ones. Keeping them also keeps their session caches, so
+     * reconnections and payload connections can resume the last TLS session instead of doing a
+     * full handshake.
+     */
+    private static class CachedSslContext {
+        final String certificate; //As stored when the context was created, to notice if it changes
+        final SSLContext sslContext;
+        final SSLSocketFactory socketFactory;
+
+        CachedSslContext(String certificate, SSLContext sslContext) {
+            this.certificate = certificate;
+            this.sslContext = sslContext;
+            this.socketFactory = sslContext.getSocketFactory();
+        }
+    }
+
+    //Only for trusted devices: anyone on the network can claim any device id, so untrusted ones share a single context
+    private static final HashMap<String, CachedSslContext> sslContexts = new HashMap<>();
+    private static CachedSslContext untrustedSslContext;
+
+    private static final int SESSION_TIMEOUT_S = 24 * 60 * 60;
+    private static final int SESSION_CACHE_SIZE = 8;
+    private static final int SESSION_CACHE_PORT = 1716; //Sessions are looked up by host and port, but payload connections use a different port each time
+
+    //Has to be called when a device gets paired or unpaired, so we stop trusting (or start trusting) its certificate
+    public static synchronized void invalidateSslContext(String deviceId) {
+        sslContexts.remove(deviceId);
+    }
+
+    private static synchronized CachedSslContext getCachedSslContext(Context context, String deviceId, boolean isDeviceTrusted) {
+        if (!isDeviceTrusted) {
+            if (untrustedSslContext == null) {
+                SSLContext sslContext = createSslContext(context, deviceId, false, "");
+                if (sslContext == null) {
+                    return null;
+                }
+                untrustedSslContext = new CachedSslContext("", sslContext);
+            }
+            return untrustedSslContext;
+        }
+        SharedPreferences devicePreferences = context.getSharedPreferences(deviceId, Context.MODE_PRIVATE);
+        String certificate = devicePreferences.getString("certificate", "");
+        CachedSslContext cached = sslContexts.get(deviceId);
+        if (cached != null && cached.certificate.equals(certificate)) {
+            return cached;
+        }
+        SSLContext sslContext = createSslContext(context, deviceId, isDeviceTrusted, certificate);
+        if (sslContext == null) {
+            return null;
+        }
+        cached = new CachedSslContext(certificate, sslContext);
+        sslContexts.put(deviceId, cached);
+        return cached;
+    }
+
     private static SSLContext getSslContext(Context context, String deviceId, boolean isDeviceTrusted) {
-        //TODO: Cache
+        CachedSslContext cached = getCachedSslContext(context, deviceId, isDeviceTrusted);
+        return (cached != null) ? cached.sslContext : null;
+    }
+
+    private static SSLContext createSslContext(Context context, String deviceId, boolean isDeviceTrusted, String certificateString) {
         try {
             // Get device private key
             PrivateKey privateKey = RsaHelper.getPrivateKey(context);
@@ -146,8 +211,7 @@ public class SslHelper {
             // Get remote device certificate if trusted
             X509Certificate remoteDeviceCertificate = null;
             if (isDeviceTrusted) {
-                SharedPreferences devicePreferences = context.getSharedPreferences(deviceId, Context.MODE_PRIVATE);
-                byte[] certificateBytes = Base64.decode(devicePreferences.getString("certificate", ""), 0);
+                byte[] certificateBytes = Base64.decode(certificateString, 0);
                 X509CertificateHolder certificateHolder = new X509CertificateHolder(certificateBytes);
                 remoteDeviceCertificate = new JcaX509CertificateConverter().setProvider(BC).getCertificate(certificateHolder);
             }
@@ -193,6 +257,10 @@ public class SslHelper {
             } else {
                 tlsContext.init(keyManagerFactory.getKeyManagers(), trustAllCerts, RandomHelper.secureRandom);
             }
+            tlsContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_S);
+            tlsContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            tlsContext.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_S);
+            tlsContext.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
             return tlsContext;
         } catch (Exception e) {
             Log.e("KDE/SslHelper", "Error creating tls context");
@@ -202,18 +270,22 @@ public class SslHelper {
 
     }
 
-    private static void configureSslSocket(SSLSocket socket, boolean isDeviceTrusted, boolean isClient) throws SocketException {
-
-        socket.setEnabledProtocols(new String[]{"TLSv1"}); //Newer TLS versions are only supported on API 16+
-
-        // These cipher suites are most common of them that are accepted by kde and android during handshake
+    // These cipher suites are most common of them that are accepted by kde and android during handshake
+    private static String[] getSupportedCiphers() {
         ArrayList<String> supportedCiphers = new ArrayList<>();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             supportedCiphers.add("TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384");  // API 20+
             supportedCiphers.add("TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256");  // API 20+
         }
         supportedCiphers.add("TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA");       // API 11+
-        socket.setEnabledCipherSuites(supportedCiphers.toArray(new String[0]));
+        return supportedCiphers.toArray(new String[0]);
+    }
+
+    private static void configureSslSocket(SSLSocket socket, boolean isDeviceTrusted, boolean isClient) throws SocketException {
+
+        socket.setEnabledProtocols(new String[]{"TLSv1"}); //Newer TLS versions are only supported on API 16+
+
+        socket.setEnabledCipherSuites(getSupportedCiphers());
 
         socket.setSoTimeout(10000);
 
@@ -230,9 +302,27 @@ public class SslHelper {
 
     }
 
+    //Same configuration as convertToSslSocket, for non-blocking connections
+    public static SSLEngine createSslEngine(Context context, String deviceId, InetAddress peer, boolean isDeviceTrusted, boolean clientMode) {
+        SSLEngine engine = SslHelper.getSslContext(context, deviceId, isDeviceTrusted).createSSLEngine(peer.getHostAddress(), SESSION_CACHE_PORT);
+        engine.setEnabledProtocols(new String[]{"TLSv1"}); //Newer TLS versions are only supported on API 16+
+        engine.setEnabledCipherSuites(getSupportedCiphers());
+        if (clientMode) {
+            engine.setUseClientMode(true);
+        } else {
+            engine.setUseClientMode(false);
+            if (isDeviceTrusted) {
+                engine.setNeedClientAuth(true);
+            } else {
+                engine.setWantClientAuth(true);
+            }
+        }
+        return engine;
+    }
+
     public static SSLSocket convertToSslSocket(Context context, Socket socket, String deviceId, boolean isDeviceTrusted, boolean clientMode) throws IOException {
-        SSLSocketFactory sslsocketFactory = SslHelper.getSslContext(context, deviceId, isDeviceTrusted).getSocketFactory();
-        SSLSocket sslsocket = (SSLSocket) sslsocketFactory.createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        SSLSocketFactory sslsocketFactory = SslHelper.getCachedSslContext(context, deviceId, isDeviceTrusted).socketFactory;
+        SSLSocket sslsocket = (SSLSocket) sslsocketFactory.createSocket(socket, socket.getInetAddress().getHostAddress(), SESSION_CACHE_PORT, true);
         SslHelper.configureSslSocket(sslsocket, isDeviceTrusted, clientMode);
         return sslsocket;
     }
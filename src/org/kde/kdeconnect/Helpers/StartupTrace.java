@@ -0,0 +1,68 @@
+package org.kde.kdeconnect.Helpers;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When each stage of a startup began and how long it took, relative to the creation of the
+ * trace. Stages can run on different threads at the same time, the trace shows which ones
+ * overlapped.
+ */
+public class StartupTrace {
+
+    private static class Stage {
+        final String name;
+        final String thread;
+        final long startedAt;
+        final long finishedAt;
+
+        Stage(String name, String thread, long startedAt, long finishedAt) {
+            this.name = name;
+            this.thread = thread;
+            this.startedAt = startedAt;
+            this.finishedAt = finishedAt;
+        }
+    }
+
+    private final long createdAt = System.nanoTime();
+    private final ArrayList<Stage> stages = new ArrayList<>();
+
+    //Runs the stage on the calling thread and records it, even if it throws
+    public void run(String name, Runnable stage) {
+        long startedAt = System.nanoTime();
+        try {
+            stage.run();
+        } finally {
+            long finishedAt = System.nanoTime();
+            synchronized (stages) {
+                stages.add(new Stage(name, Thread.currentThread().getName(), startedAt, finishedAt));
+            }
+        }
+    }
+
+    //Until the end of the last stage that finished
+    public long getTotalMillis() {
+        long end = createdAt;
+        synchronized (stages) {
+            for (Stage stage : stages) {
+                end = Math.max(end, stage.finishedAt);
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(end - createdAt);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Startup took ").append(getTotalMillis()).append("ms:\n");
+        synchronized (stages) {
+            for (Stage stage : stages) {
+                sb.append("  ").append(stage.name)
+                        .append(": ").append(TimeUnit.NANOSECONDS.toMillis(stage.finishedAt - stage.startedAt)).append("ms")
+                        .append(", started at ").append(TimeUnit.NANOSECONDS.toMillis(stage.startedAt - createdAt)).append("ms")
+                        .append(" on ").append(stage.thread).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,183 @@
+package org.kde.kdeconnect.Helpers;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Copies payloads between streams, using the channels behind them when there are some.
+ * <p>
+ * From a file to an unencrypted socket (or from an unencrypted socket to a file) the data is
+ * moved with FileChannel.transferTo/transferFrom, so it never goes through the Java heap.
+ * Between two other channels it goes through a direct buffer, and otherwise (eg: TLS sockets,
+ * which only offer streams) through a large byte array. Both kinds of buffers are taken from
+ * small pools and returned after each transfer, since every transfer runs on a thread of its own.
+ * <p>
+ * Progress is reported based on time instead of on every chunk, so fast transfers don't spend
+ * their time notifying listeners.
+ */
+public class TransferHelper {
+
+    public interface ProgressListener {
+        //Called from the copying thread at most once every PROGRESS_INTERVAL_MS
+        void onProgress(long transferred);
+    }
+
+    public static final long PROGRESS_INTERVAL_MS = 500;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long MAX_TRANSFER_CHUNK = 8 * 1024 * 1024; //So we get to report progress now and then
+
+    private static final int MAX_POOLED_BUFFERS = 4; //Transfers running at the same time beyond these allocate their own
+
+    private static final ArrayBlockingQueue<byte[]> arrays = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    private static final ArrayBlockingQueue<ByteBuffer> directBuffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+    public static WritableByteChannel getChannel(OutputStream out) {
+        return (out instanceof FileOutputStream) ? ((FileOutputStream) out).getChannel() : null;
+    }
+
+    /**
+     * Copies size bytes (or until the end of the input if size is negative) and returns how many
+     * were copied, which can be less than size if the input ended before. The channels can be
+     * null if the streams are not backed by one. Nothing is closed, and the output is flushed.
+     */
+    public static long copy(InputStream in, ReadableByteChannel inChannel, OutputStream out, WritableByteChannel outChannel, long size, ProgressListener listener) throws IOException {
+        long copied;
+        if (size >= 0 && inChannel instanceof FileChannel && outChannel != null && isSeekable((FileChannel) inChannel)) {
+            copied = transferTo((FileChannel) inChannel, in, outChannel, out, size, listener);
+        } else if (size >= 0 && outChannel instanceof FileChannel && inChannel != null) {
+            out.flush(); //Anything written through the stream goes first
+            copied = transferFrom(inChannel, (FileChannel) outChannel, size, listener);
+        } else if (inChannel != null && outChannel != null) {
+            out.flush();
+            copied = copyChannels(inChannel, outChannel, size, listener);
+        } else {
+            copied = copyStreams(in, out, size, 0, listener);
+        }
+        out.flush();
+        return copied;
+    }
+
+    //Not the case for pipes, eg: a content provider streaming what it returns, where position() throws ESPIPE
+    private static boolean isSeekable(FileChannel channel) {
+        try {
+            channel.position();
+            channel.size();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long transferTo(FileChannel in, InputStream inStream, WritableByteChannel out, OutputStream outStream, long size, ProgressListener listener) throws IOException {
+        long position = in.position();
+        long copied = 0;
+        long lastProgress = System.currentTimeMillis();
+        while (copied < size) {
+            long transferred = in.transferTo(position + copied, Math.min(size - copied, MAX_TRANSFER_CHUNK), out);
+            if (transferred <= 0) {
+                if (position + copied >= in.size()) {
+                    break; //File is shorter than announced
+                }
+                //Nothing moved although there is more to send, copy the rest by hand instead of trying again
+                in.position(position + copied);
+                return copied + copyStreams(inStream, outStream, size - copied, copied, listener);
+            }
+            copied += transferred;
+            lastProgress = reportProgress(listener, copied, lastProgress);
+        }
+        in.position(position + copied); //transferTo doesn't move the position
+        return copied;
+    }
+
+    private static long transferFrom(ReadableByteChannel in, FileChannel out, long size, ProgressListener listener) throws IOException {
+        long position = out.position();
+        long copied = 0;
+        long lastProgress = System.currentTimeMillis();
+        while (copied < size) {
+            //Returns 0 once the input has ended
+            long transferred = out.transferFrom(in, position + copied, Math.min(size - copied, MAX_TRANSFER_CHUNK));
+            if (transferred <= 0) {
+                break;
+            }
+            copied += transferred;
+            lastProgress = reportProgress(listener, copied, lastProgress);
+        }
+        out.position(position + copied); //Neither does transferFrom
+        return copied;
+    }
+
+    private static long copyChannels(ReadableByteChannel in, WritableByteChannel out, long size, ProgressListener listener) throws IOException {
+        ByteBuffer buffer = directBuffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        long copied = 0;
+        long lastProgress = System.currentTimeMillis();
+        try {
+            while (size < 0 || copied < size) {
+                buffer.clear();
+                if (size >= 0 && size - copied < buffer.capacity()) {
+                    buffer.limit((int) (size - copied));
+                }
+                int read = in.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                copied += read;
+                lastProgress = reportProgress(listener, copied, lastProgress);
+            }
+        } finally {
+            directBuffers.offer(buffer); //Dropped if the pool is full
+        }
+        return copied;
+    }
+
+    //copiedBefore is only added to the progress reported
+    private static long copyStreams(InputStream in, OutputStream out, long size, long copiedBefore, ProgressListener listener) throws IOException {
+        byte[] buffer = arrays.poll();
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        long copied = 0;
+        long lastProgress = System.currentTimeMillis();
+        try {
+            while (size < 0 || copied < size) {
+                int wanted = (size < 0) ? buffer.length : (int) Math.min(buffer.length, size - copied);
+                int read = in.read(buffer, 0, wanted);
+                if (read == -1) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                copied += read;
+                lastProgress = reportProgress(listener, copiedBefore + copied, lastProgress);
+            }
+        } finally {
+            arrays.offer(buffer); //Dropped if the pool is full
+        }
+        return copied;
+    }
+
+    private static long reportProgress(ProgressListener listener, long copied, long lastProgress) {
+        if (listener == null) {
+            return lastProgress;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastProgress < PROGRESS_INTERVAL_MS) {
+            return lastProgress;
+        }
+        listener.onProgress(copied);
+        return now;
+    }
+}
@@ -43,27 +43,23 @@ public class KdeConnectBroadcastReceiver extends BroadcastReceiver {
                     Log.i("KdeConnect", "Ignoring, it's not me!");
                     return;
                 }
-                BackgroundService.RunCommand(context, service -> {
-
-                });
+                BackgroundService.RunCommand(context, null); //Just start it
                 break;
             case Intent.ACTION_BOOT_COMPLETED:
                 Log.i("KdeConnect", "KdeConnectBroadcastReceiver");
-                BackgroundService.RunCommand(context, service -> {
-
-                });
+                BackgroundService.RunCommand(context, null); //Just start it
                 break;
             case WifiManager.SUPPLICANT_CONNECTION_CHANGE_ACTION:
             case WifiManager.WIFI_STATE_CHANGED_ACTION:
             case ConnectivityManager.CONNECTIVITY_ACTION:
                 Log.i("KdeConnect", "Connection state changed, trying to connect");
-                BackgroundService.RunCommand(context, service -> {
+                BackgroundService.RunCommandInBackground(context, service -> {
                     service.onDeviceListChanged();
                     service.onNetworkChange();
                 });
                 break;
             case Intent.ACTION_SCREEN_ON:
-                BackgroundService.RunCommand(context, BackgroundService::onNetworkChange);
+                BackgroundService.RunCommandInBackground(context, BackgroundService::onNetworkChange);
                 break;
             default:
                 Log.i("BroadcastReceiver", "Ignoring broadcast event: " + intent.getAction());
@@ -30,11 +30,15 @@ import org.kde.kdeconnect.Helpers.DeviceHelper;
 import org.kde.kdeconnect.Plugins.PluginFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -52,13 +56,14 @@ public class NetworkPacket {
         add(PACKET_TYPE_ENCRYPTED);
     }};
 
-    private long mId;
+    long mId;
     String mType;
-    private JSONObject mBody;
-    private Payload mPayload;
-    private JSONObject mPayloadTransferInfo;
+    volatile JSONObject mBody;
+    byte[] mBodyBytes; //Undecoded body, only set by unserializeLazily() until the body is first accessed
+    Payload mPayload;
+    JSONObject mPayloadTransferInfo;
 
-    private NetworkPacket() {
+    NetworkPacket() {
 
     }
 
@@ -78,100 +83,119 @@ public class NetworkPacket {
         return mId;
     }
 
+    private JSONObject getBody() {
+        JSONObject body = mBody;
+        if (body != null) {
+            return body;
+        }
+        synchronized (this) {
+            if (mBody == null) {
+                try {
+                    mBody = NetworkPacketCodec.readBody(mBodyBytes);
+                } catch (JSONException e) {
+                    Log.e("NetworkPacket", "Could not decode the body of a " + mType + " packet", e);
+                    mBody = new JSONObject();
+                }
+                mBodyBytes = null;
+            }
+            return mBody;
+        }
+    }
+
     //Most commons getters and setters defined for convenience
     public String getString(String key) {
-        return mBody.optString(key, "");
+        return getBody().optString(key, "");
     }
 
     public String getString(String key, String defaultValue) {
-        return mBody.optString(key, defaultValue);
+        return getBody().optString(key, defaultValue);
     }
 
     public void set(String key, String value) {
         if (value == null) return;
         try {
-            mBody.put(key, value);
+            getBody().put(key, value);
         } catch (Exception e) {
         }
     }
 
     public int getInt(String key) {
-        return mBody.optInt(key, -1);
+        return getBody().optInt(key, -1);
     }
 
     public int getInt(String key, int defaultValue) {
-        return mBody.optInt(key, defaultValue);
+        return getBody().optInt(key, defaultValue);
     }
 
     public long getLong(String key) {
-        return mBody.optLong(key, -1);
+        return getBody().optLong(key, -1);
     }
 
     public long getLong(String key, long defaultValue) {
-        return mBody.optLong(key, defaultValue);
+        return getBody().optLong(key, defaultValue);
     }
 
     public void set(String key, int value) {
         try {
-            mBody.put(key, value);
+            getBody().put(key, value);
         } catch (Exception e) {
         }
     }
 
     public boolean getBoolean(String key) {
-        return mBody.optBoolean(key, false);
+        return getBody().optBoolean(key, false);
     }
 
     public boolean getBoolean(String key, boolean defaultValue) {
-        return mBody.optBoolean(key, defaultValue);
+        return getBody().optBoolean(key, defaultValue);
     }
 
     public void set(String key, boolean value) {
         try {
-            mBody.put(key, value);
+            getBody().put(key, value);
         } catch (Exception e) {
         }
     }
 
     public double getDouble(String key) {
-        return mBody.optDouble(key, Double.NaN);
+        return getBody().optDouble(key, Double.NaN);
     }
 
     public double getDouble(String key, double defaultValue) {
-        return mBody.optDouble(key, defaultValue);
+        return getBody().optDouble(key, defaultValue);
     }
 
     public void set(String key, double value) {
         try {
-            mBody.put(key, value);
+            getBody().put(key, value);
         } catch (Exception e) {
         }
     }
 
     public JSONArray getJSONArray(String key) {
-        return mBody.optJSONArray(key);
+        return getBody().optJSONArray(key);
     }
 
     public void set(String key, JSONArray value) {
         try {
-            mBody.put(key, value);
+            getBody().put(key, value);
         } catch (Exception e) {
         }
     }
 
     public JSONObject getJSONObject(String key) {
-        return mBody.optJSONObject(key);
+        return getBody().optJSONObject(key);
     }
 
     public void set(String key, JSONObject value) {
         try {
-            mBody.put(key, value);
+            getBody().put(key, value);
         } catch (JSONException e) {
         }
     }
 
     private Set<String> getStringSet(String key) {
-        JSONArray jsonArray = mBody.optJSONArray(key);
+        JSONArray jsonArray = getBody().optJSONArray(key);
         if (jsonArray == null) return null;
         Set<String> list = new HashSet<>();
         int length = jsonArray.length();
@@ -186,7 +210,7 @@ public class NetworkPacket {
     }
 
     public Set<String> getStringSet(String key, Set<String> defaultValue) {
-        if (mBody.has(key)) return getStringSet(key);
+        if (getBody().has(key)) return getStringSet(key);
         else return defaultValue;
     }
 
@@ -196,13 +220,13 @@ public class NetworkPacket {
             for (String str : value) {
                 jsonArray.put(str);
             }
-            mBody.put(key, jsonArray);
+            getBody().put(key, jsonArray);
         } catch (Exception e) {
         }
     }
 
     public List<String> getStringList(String key) {
-        JSONArray jsonArray = mBody.optJSONArray(key);
+        JSONArray jsonArray = getBody().optJSONArray(key);
         if (jsonArray == null) return null;
         List<String> list = new ArrayList<>();
         int length = jsonArray.length();
@@ -217,7 +241,7 @@ public class NetworkPacket {
     }
 
     public List<String> getStringList(String key, List<String> defaultValue) {
-        if (mBody.has(key)) return getStringList(key);
+        if (getBody().has(key)) return getStringList(key);
         else return defaultValue;
     }
 
@@ -227,20 +251,20 @@ public class NetworkPacket {
             for (String str : value) {
                 jsonArray.put(str);
             }
-            mBody.put(key, jsonArray);
+            getBody().put(key, jsonArray);
         } catch (Exception e) {
         }
     }
 
     public boolean has(String key) {
-        return mBody.has(key);
+        return getBody().has(key);
     }
 
     public String serialize() throws JSONException {
         JSONObject jo = new JSONObject();
         jo.put("id", mId);
         jo.put("type", mType);
-        jo.put("body", mBody);
+        jo.put("body", getBody());
         if (hasPayload()) {
             jo.put("payloadSize", mPayload.payloadSize);
             jo.put("payloadTransferInfo", mPayloadTransferInfo);
@@ -249,12 +273,20 @@ public class NetworkPacket {
         return jo.toString().replace("\\/", "/") + "\n";
     }
 
+    /**
+     * Writes the same output as {@link #serialize()} to the stream, without building any
+     * intermediate String. The stream is not flushed. Returns how many bytes were written.
+     */
+    public int serialize(OutputStream out) throws IOException {
+        return NetworkPacketCodec.write(this, out);
+    }
+
     static public NetworkPacket unserialize(String s) throws JSONException {
 
         NetworkPacket np = new NetworkPacket();
         JSONObject jo = new JSONObject(s);
         np.mId = jo.getLong("id");
-        np.mType = jo.getString("type");
+        np.mType = jo.getString("type").intern(); //Like NetworkPacketCodec, so Device can look it up by identity
         np.mBody = jo.getJSONObject("body");
         if (jo.has("payloadSize")) {
             np.mPayloadTransferInfo = jo.getJSONObject("payloadTransferInfo");
@@ -266,27 +298,93 @@ public class NetworkPacket {
         return np;
     }
 
+    /**
+     * Parses a packet directly from the bytes in data[offset, offset + length), which should
+     * contain exactly one serialized packet (a trailing newline is allowed).
+     */
+    static public NetworkPacket unserialize(byte[] data, int offset, int length) throws JSONException {
+        return NetworkPacketCodec.read(data, offset, length, false);
+    }
+
+    /**
+     * Like {@link #unserialize(byte[], int, int)}, but only the envelope (id, type, payloadSize
+     * and payloadTransferInfo) is parsed. The body is kept as raw bytes and decoded the first
+     * time it is accessed, so packets that end up being dropped or forwarded never pay for it.
+     */
+    static public NetworkPacket unserializeLazily(byte[] data, int offset, int length) throws JSONException {
+        return NetworkPacketCodec.read(data, offset, length, true);
+    }
+
+    //Building the identity means going through every plugin, and it only changes with the name of the device
+    //or the available plugins, so we keep its body around. See invalidateIdentityPacket()
+    private static final Object identityLock = new Object();
+    private static JSONObject identityBody = null;
+    private static int identityVersion = 0;
+
     static public NetworkPacket createIdentityPacket(Context context) {
 
         NetworkPacket np = new NetworkPacket(NetworkPacket.PACKET_TYPE_IDENTITY);
 
+        JSONObject body;
+        synchronized (identityLock) {
+            if (identityBody == null) {
+                identityBody = createIdentityBody(context);
+            }
+            body = identityBody;
+        }
+
+        //Callers add their own fields (eg: tcpPort), so don't let them modify the cached one
+        try {
+            Iterator<String> keys = body.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                np.getBody().put(key, body.get(key));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            Log.e("NetworkPacakge", "Exception on createIdentityPacket");
+        }
+
+        return np;
+
+    }
+
+    private static JSONObject createIdentityBody(Context context) {
+
+        JSONObject body = new JSONObject();
+
         String deviceId = DeviceHelper.getDeviceId(context);
         try {
-            np.mBody.put("deviceId", deviceId);
-            np.mBody.put("deviceName", DeviceHelper.getDeviceName(context));
-            np.mBody.put("protocolVersion", NetworkPacket.ProtocolVersion);
-            np.mBody.put("deviceType", DeviceHelper.getDeviceType(context).toString());
-            np.mBody.put("incomingCapabilities", new JSONArray(PluginFactory.getIncomingCapabilities(context)));
-            np.mBody.put("outgoingCapabilities", new JSONArray(PluginFactory.getOutgoingCapabilities(context)));
+            body.put("deviceId", deviceId);
+            body.put("deviceName", DeviceHelper.getDeviceName(context));
+            body.put("protocolVersion", NetworkPacket.ProtocolVersion);
+            body.put("deviceType", DeviceHelper.getDeviceType(context).toString());
+            body.put("incomingCapabilities", new JSONArray(PluginFactory.getIncomingCapabilities(context)));
+            body.put("outgoingCapabilities", new JSONArray(PluginFactory.getOutgoingCapabilities(context)));
         } catch (Exception e) {
             e.printStackTrace();
             Log.e("NetworkPacakge", "Exception on createIdentityPacket");
         }
 
-        return np;
+        return body;
 
     }
 
+    //Has to be called when something in our identity changes, eg: the name of the device
+    public static void invalidateIdentityPacket() {
+        synchronized (identityLock) {
+            identityBody = null;
+            identityVersion++;
+        }
+    }
+
+    //Changes every time the identity is invalidated, for those who keep their own copy of it
+    public static int getIdentityPacketVersion() {
+        synchronized (identityLock) {
+            return identityVersion;
+        }
+    }
+
     public void setPayload(Payload payload) { mPayload = payload; }
 
     public Payload getPayload() {
@@ -345,6 +443,20 @@ public class NetworkPacket {
          * <b>NOTE: Do not close the InputStream directly call Payload.close() instead, this is because of this <a href="https://issuetracker.google.com/issues/37018094">bug</a></b>
          */
         public InputStream getInputStream() { return inputStream; }
+
+        /**
+         * Channel behind the InputStream when the payload is a plain file or comes from an
+         * unencrypted socket, so it can be copied without going through the Java heap. Null otherwise.
+         */
+        public ReadableByteChannel getChannel() {
+            if (inputSocket != null) {
+                return inputSocket.getChannel(); //Always null for SSLSockets
+            }
+            if (inputStream instanceof FileInputStream) {
+                return ((FileInputStream) inputStream).getChannel();
+            }
+            return null;
+        }
         long getPayloadSize() { return payloadSize; }
 
         public void close() {
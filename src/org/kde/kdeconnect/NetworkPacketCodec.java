@@ -0,0 +1,725 @@
+package org.kde.kdeconnect;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.kde.kdeconnect.Helpers.StringsHelper;
+import org.kde.kdeconnect.Plugins.PluginFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Streaming JSON encoder and decoder for {@link NetworkPacket}s.
+ * <p>
+ * The encoder writes UTF-8 straight into a per-thread byte buffer that is handed to the
+ * OutputStream in one go, instead of building a String for the whole packet and encoding it
+ * afterwards. Slashes are not escaped, which is what QJson expects, so no second pass is needed.
+ * <p>
+ * The decoder parses directly from a byte array holding one serialized packet. Only individual
+ * keys and values are turned into Strings. It can also skip over the body and keep it as raw
+ * bytes, to be decoded later only if somebody reads it. Known packet types are returned interned,
+ * and the ones seen before are found without allocating.
+ */
+final class NetworkPacketCodec {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StringsHelper.UTF8);
+
+    //Known packet types by hash of their bytes. A collision just replaces the entry, there are only a few dozen types
+    private static final int TYPE_CACHE_SIZE = 256; //Power of two
+    private static final String[] typeCache = new String[TYPE_CACHE_SIZE];
+
+    private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private NetworkPacketCodec() {
+    }
+
+    //Returns how many bytes were written
+    static int write(NetworkPacket np, OutputStream out) throws IOException {
+        Encoder encoder = encoders.get();
+        encoder.out = out;
+        encoder.written = 0;
+        try {
+            encoder.writeRaw('{');
+            encoder.writeKey("id");
+            encoder.writeLong(np.mId);
+            encoder.writeRaw(',');
+            encoder.writeKey("type");
+            encoder.writeString(np.mType);
+            encoder.writeRaw(',');
+            encoder.writeKey("body");
+            JSONObject body = np.mBody;
+            byte[] bodyBytes = null;
+            if (body == null) {
+                synchronized (np) { //Might be getting decoded right now
+                    body = np.mBody;
+                    bodyBytes = np.mBodyBytes;
+                }
+            }
+            if (body != null) {
+                encoder.writeObject(body);
+            } else {
+                encoder.writeBytes(bodyBytes); //Never decoded, send it as we got it
+            }
+            if (np.hasPayload()) {
+                encoder.writeRaw(',');
+                encoder.writeKey("payloadSize");
+                encoder.writeLong(np.getPayloadSize());
+                encoder.writeRaw(',');
+                encoder.writeKey("payloadTransferInfo");
+                encoder.writeObject(np.getPayloadTransferInfo());
+            }
+            encoder.writeRaw('}');
+            encoder.writeRaw('\n');
+            encoder.flush();
+            return encoder.written;
+        } finally {
+            encoder.out = null;
+            encoder.pos = 0;
+        }
+    }
+
+    /**
+     * If lazyBody is true the body is not parsed, only checked to be an object and copied out
+     * of data, to be decoded by {@link #readBody(byte[])} when it is first accessed.
+     */
+    static NetworkPacket read(byte[] data, int offset, int length, boolean lazyBody) throws JSONException {
+        Decoder decoder = new Decoder(data, offset, offset + length);
+
+        long id = 0;
+        boolean hasId = false;
+        String type = null;
+        JSONObject body = null;
+        byte[] bodyBytes = null;
+        JSONObject payloadTransferInfo = null;
+        long payloadSize = 0;
+        boolean hasPayloadSize = false; //-1 is valid, it means a payload of unknown size
+
+        decoder.expect('{');
+        if (!decoder.consume('}')) {
+            do {
+                String key = decoder.readString();
+                decoder.expect(':');
+                switch (key) {
+                    case "id":
+                        id = decoder.readLong();
+                        hasId = true;
+                        break;
+                    case "type":
+                        type = decoder.readType();
+                        break;
+                    case "body":
+                        if (lazyBody) {
+                            bodyBytes = decoder.copyObject();
+                        } else {
+                            body = decoder.readObject();
+                        }
+                        break;
+                    case "payloadSize":
+                        payloadSize = decoder.readLong();
+                        hasPayloadSize = true;
+                        break;
+                    case "payloadTransferInfo":
+                        payloadTransferInfo = decoder.readObject();
+                        break;
+                    default:
+                        decoder.skipValue();
+                        break;
+                }
+            } while (decoder.consume(','));
+            decoder.expect('}');
+        }
+        decoder.expectEnd();
+
+        if (!hasId) throw new JSONException("No value for id");
+        if (type == null) throw new JSONException("No value for type");
+        if (body == null && bodyBytes == null) throw new JSONException("No value for body");
+
+        NetworkPacket np = new NetworkPacket();
+        np.mId = id;
+        np.mType = type;
+        np.mBodyBytes = bodyBytes;
+        np.mBody = body;
+        if (hasPayloadSize) {
+            if (payloadTransferInfo == null) throw new JSONException("No value for payloadTransferInfo");
+            np.mPayloadTransferInfo = payloadTransferInfo;
+            np.mPayload = new NetworkPacket.Payload(payloadSize);
+        } else {
+            np.mPayloadTransferInfo = new JSONObject();
+            np.mPayload = new NetworkPacket.Payload(0);
+        }
+        return np;
+    }
+
+    static JSONObject readBody(byte[] body) throws JSONException {
+        Decoder decoder = new Decoder(body, 0, body.length);
+        JSONObject object = decoder.readObject();
+        decoder.expectEnd();
+        return object;
+    }
+
+    private static final class Encoder {
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final byte[] digits = new byte[20];
+        private int pos;
+        private int written;
+        private OutputStream out;
+
+        void flush() throws IOException {
+            if (pos > 0) {
+                out.write(buffer, 0, pos);
+                written += pos;
+                pos = 0;
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (pos + bytes > buffer.length) {
+                flush();
+            }
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            if (pos + bytes.length > buffer.length) {
+                flush();
+                out.write(bytes);
+                written += bytes.length;
+            } else {
+                System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+                pos += bytes.length;
+            }
+        }
+
+        void writeRaw(char c) throws IOException {
+            ensure(1);
+            buffer[pos++] = (byte) c;
+        }
+
+        void writeKey(String key) throws IOException {
+            writeString(key);
+            writeRaw(':');
+        }
+
+        void writeLong(long value) throws IOException {
+            if (value == Long.MIN_VALUE) {
+                writeAscii(Long.toString(value));
+                return;
+            }
+            ensure(20);
+            if (value < 0) {
+                buffer[pos++] = '-';
+                value = -value;
+            }
+            int n = 0;
+            do {
+                digits[n++] = (byte) ('0' + (value % 10));
+                value /= 10;
+            } while (value != 0);
+            while (n > 0) {
+                buffer[pos++] = digits[--n];
+            }
+        }
+
+        private void writeAscii(String s) throws IOException {
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                writeRaw(s.charAt(i));
+            }
+        }
+
+        // Same format as JSONObject.numberToString(), so the output does not change
+        private void writeNumber(Number number) throws IOException {
+            if (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+                writeLong(number.longValue());
+                return;
+            }
+            double doubleValue = number.doubleValue();
+            long longValue = number.longValue();
+            if (doubleValue == (double) longValue && !(doubleValue == 0 && 1 / doubleValue < 0)) {
+                writeLong(longValue);
+            } else {
+                writeAscii(number.toString());
+            }
+        }
+
+        // Same escaping as JSONStringer, except for '/', which QJson does not escape
+        void writeString(String s) throws IOException {
+            writeRaw('"');
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                ensure(6);
+                if (c < 0x80) {
+                    switch (c) {
+                        case '"':
+                        case '\\':
+                            buffer[pos++] = '\\';
+                            buffer[pos++] = (byte) c;
+                            break;
+                        case '\t':
+                            buffer[pos++] = '\\';
+                            buffer[pos++] = 't';
+                            break;
+                        case '\b':
+                            buffer[pos++] = '\\';
+                            buffer[pos++] = 'b';
+                            break;
+                        case '\n':
+                            buffer[pos++] = '\\';
+                            buffer[pos++] = 'n';
+                            break;
+                        case '\r':
+                            buffer[pos++] = '\\';
+                            buffer[pos++] = 'r';
+                            break;
+                        case '\f':
+                            buffer[pos++] = '\\';
+                            buffer[pos++] = 'f';
+                            break;
+                        default:
+                            if (c <= 0x1F) {
+                                buffer[pos++] = '\\';
+                                buffer[pos++] = 'u';
+                                buffer[pos++] = '0';
+                                buffer[pos++] = '0';
+                                buffer[pos++] = HEX[c >> 4];
+                                buffer[pos++] = HEX[c & 0xF];
+                            } else {
+                                buffer[pos++] = (byte) c;
+                            }
+                            break;
+                    }
+                } else if (c < 0x800) {
+                    buffer[pos++] = (byte) (0xC0 | (c >> 6));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    buffer[pos++] = '?'; //Unpaired surrogate, same replacement String.getBytes() uses
+                } else {
+                    buffer[pos++] = (byte) (0xE0 | (c >> 12));
+                    buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            writeRaw('"');
+        }
+
+        void writeObject(JSONObject object) throws IOException {
+            writeRaw('{');
+            boolean first = true;
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!first) writeRaw(',');
+                first = false;
+                writeKey(key);
+                writeValue(object.opt(key));
+            }
+            writeRaw('}');
+        }
+
+        void writeArray(JSONArray array) throws IOException {
+            writeRaw('[');
+            int length = array.length();
+            for (int i = 0; i < length; i++) {
+                if (i > 0) writeRaw(',');
+                writeValue(array.opt(i));
+            }
+            writeRaw(']');
+        }
+
+        void writeValue(Object value) throws IOException {
+            if (value == null || value == JSONObject.NULL) {
+                writeAscii("null");
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof JSONObject) {
+                writeObject((JSONObject) value);
+            } else if (value instanceof JSONArray) {
+                writeArray((JSONArray) value);
+            } else if (value instanceof Boolean) {
+                writeAscii(((Boolean) value) ? "true" : "false");
+            } else if (value instanceof Number) {
+                writeNumber((Number) value);
+            } else {
+                writeString(value.toString());
+            }
+        }
+    }
+
+    private static final class Decoder {
+
+        private final byte[] data;
+        private final int end;
+        private int pos;
+        private char[] chars;
+
+        Decoder(byte[] data, int start, int end) {
+            this.data = data;
+            this.pos = start;
+            this.end = end;
+        }
+
+        private JSONException syntaxError(String message) {
+            return new JSONException(message + " at character " + pos);
+        }
+
+        private int peek() throws JSONException {
+            while (pos < end) {
+                byte b = data[pos];
+                if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    pos++;
+                } else {
+                    return b;
+                }
+            }
+            throw syntaxError("Unexpected end of input");
+        }
+
+        void expect(char c) throws JSONException {
+            if (peek() != c) {
+                throw syntaxError("Expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        boolean consume(char c) throws JSONException {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expectEnd() throws JSONException {
+            while (pos < end) {
+                byte b = data[pos++];
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n' && b != 0) {
+                    throw syntaxError("Unexpected trailing data");
+                }
+            }
+        }
+
+        Object readValue() throws JSONException {
+            switch (peek()) {
+                case '{':
+                    return readObject();
+                case '[':
+                    return readArray();
+                case '"':
+                    return readString();
+                case 't':
+                    expectLiteral("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    expectLiteral("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    expectLiteral("null");
+                    return JSONObject.NULL;
+                default:
+                    return readNumber();
+            }
+        }
+
+        private void expectLiteral(String literal) throws JSONException {
+            int length = literal.length();
+            if (end - pos < length) throw syntaxError("Unexpected end of input");
+            for (int i = 0; i < length; i++) {
+                if (data[pos + i] != literal.charAt(i)) throw syntaxError("Unexpected literal");
+            }
+            pos += length;
+        }
+
+        JSONObject readObject() throws JSONException {
+            expect('{');
+            JSONObject object = new JSONObject();
+            if (consume('}')) return object;
+            do {
+                String key = readString();
+                expect(':');
+                object.put(key, readValue());
+            } while (consume(','));
+            expect('}');
+            return object;
+        }
+
+        JSONArray readArray() throws JSONException {
+            expect('[');
+            JSONArray array = new JSONArray();
+            if (consume(']')) return array;
+            do {
+                array.put(readValue());
+            } while (consume(','));
+            expect(']');
+            return array;
+        }
+
+        String readString() throws JSONException {
+            expect('"');
+            int start = pos;
+            while (pos < end) {
+                byte b = data[pos];
+                if (b == '"') {
+                    String s = new String(data, start, pos - start, StringsHelper.UTF8);
+                    pos++;
+                    return s;
+                }
+                if (b == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            pos = start;
+            return readEscapedString();
+        }
+
+        //Like readString, but known types are returned interned, and cached so they aren't allocated every time.
+        //Unknown ones come from the peer and are neither interned nor cached
+        String readType() throws JSONException {
+            if (peek() != '"') {
+                throw syntaxError("Expected '\"'");
+            }
+            int start = pos + 1;
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                byte b = data[i];
+                if (b == '"') {
+                    int slot = hash & (TYPE_CACHE_SIZE - 1);
+                    String cached = typeCache[slot];
+                    pos = i + 1;
+                    if (cached != null && matchesAscii(cached, start, i)) {
+                        return cached;
+                    }
+                    String type = new String(data, start, i - start, StringsHelper.UTF8);
+                    String known = PluginFactory.getKnownPacketType(type);
+                    if (known == null) {
+                        return type;
+                    }
+                    typeCache[slot] = known;
+                    return known;
+                }
+                if (b == '\\' || b < 0) {
+                    break; //Escaped or not ASCII, no packet type looks like this
+                }
+                hash = 31 * hash + b;
+            }
+            String type = readString();
+            String known = PluginFactory.getKnownPacketType(type);
+            return known != null ? known : type;
+        }
+
+        private boolean matchesAscii(String s, int start, int stop) {
+            if (s.length() != stop - start) {
+                return false;
+            }
+            for (int i = start; i < stop; i++) {
+                if (s.charAt(i - start) != data[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Slow path, only taken by strings that contain escape sequences
+        private String readEscapedString() throws JSONException {
+            if (chars == null || chars.length < end - pos) {
+                chars = new char[end - pos];
+            }
+            int n = 0;
+            while (pos < end) {
+                int b = data[pos] & 0xFF;
+                if (b == '"') {
+                    pos++;
+                    return new String(chars, 0, n);
+                }
+                if (b == '\\') {
+                    if (pos + 1 >= end) break;
+                    byte escaped = data[pos + 1];
+                    pos += 2;
+                    switch (escaped) {
+                        case 'u':
+                            if (pos + 4 > end) throw syntaxError("Unterminated escape sequence");
+                            chars[n++] = (char) ((hexValue(data[pos]) << 12) | (hexValue(data[pos + 1]) << 8)
+                                    | (hexValue(data[pos + 2]) << 4) | hexValue(data[pos + 3]));
+                            pos += 4;
+                            break;
+                        case 't':
+                            chars[n++] = '\t';
+                            break;
+                        case 'b':
+                            chars[n++] = '\b';
+                            break;
+                        case 'n':
+                            chars[n++] = '\n';
+                            break;
+                        case 'r':
+                            chars[n++] = '\r';
+                            break;
+                        case 'f':
+                            chars[n++] = '\f';
+                            break;
+                        default:
+                            chars[n++] = (char) escaped;
+                            break;
+                    }
+                    continue;
+                }
+                //Copy the run of unescaped bytes up to the next quote or backslash
+                int start = pos;
+                while (pos < end && data[pos] != '"' && data[pos] != '\\') {
+                    pos++;
+                }
+                String run = new String(data, start, pos - start, StringsHelper.UTF8);
+                run.getChars(0, run.length(), chars, n);
+                n += run.length();
+            }
+            throw syntaxError("Unterminated string");
+        }
+
+        private int hexValue(byte b) throws JSONException {
+            if (b >= '0' && b <= '9') return b - '0';
+            if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+            if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+            throw syntaxError("Invalid escape sequence");
+        }
+
+        long readLong() throws JSONException {
+            if (peek() == '"') {
+                try {
+                    return Long.parseLong(readString());
+                } catch (NumberFormatException e) {
+                    throw syntaxError("Expected a number");
+                }
+            }
+            Object number = readNumber();
+            if (!(number instanceof Number)) {
+                throw syntaxError("Expected a number");
+            }
+            return ((Number) number).longValue();
+        }
+
+        // Returns the same types JSONTokener does: Integer if it fits, then Long, then Double
+        Object readNumber() throws JSONException {
+            int start = pos;
+            boolean decimal = false;
+            while (pos < end) {
+                byte b = data[pos];
+                if ((b >= '0' && b <= '9') || b == '-' || b == '+') {
+                    pos++;
+                } else if (b == '.' || b == 'e' || b == 'E') {
+                    decimal = true;
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            int length = pos - start;
+            if (length == 0) {
+                throw syntaxError("Unexpected character");
+            }
+            if (!decimal && length < 19) {
+                boolean negative = data[start] == '-';
+                int i = (negative || data[start] == '+') ? start + 1 : start;
+                if (i < pos) {
+                    long value = 0;
+                    for (; i < pos; i++) {
+                        byte b = data[i];
+                        if (b < '0' || b > '9') break;
+                        value = value * 10 + (b - '0');
+                    }
+                    if (i == pos) {
+                        if (negative) value = -value;
+                        if (value <= Integer.MAX_VALUE && value >= Integer.MIN_VALUE) {
+                            return (int) value;
+                        }
+                        return value;
+                    }
+                }
+            }
+            String literal = new String(data, start, length, StringsHelper.UTF8);
+            if (!decimal) {
+                try {
+                    return Long.parseLong(literal);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            try {
+                return Double.valueOf(literal);
+            } catch (NumberFormatException e) {
+                throw syntaxError("Invalid number " + literal);
+            }
+        }
+
+        byte[] copyObject() throws JSONException {
+            if (peek() != '{') {
+                throw syntaxError("Expected '{'");
+            }
+            int start = pos;
+            skipValue();
+            return Arrays.copyOfRange(data, start, pos);
+        }
+
+        // Moves past the next value without creating any objects
+        void skipValue() throws JSONException {
+            int depth = 0;
+            do {
+                switch (peek()) {
+                    case '{':
+                    case '[':
+                        depth++;
+                        pos++;
+                        break;
+                    case '}':
+                    case ']':
+                        depth--;
+                        pos++;
+                        break;
+                    case ',':
+                    case ':':
+                        pos++;
+                        break;
+                    case '"':
+                        skipString();
+                        break;
+                    default:
+                        while (pos < end) {
+                            byte b = data[pos];
+                            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\r' || b == '\n') break;
+                            pos++;
+                        }
+                        break;
+                }
+                if (depth > 0 && pos >= end) throw syntaxError("Unexpected end of input");
+            } while (depth > 0);
+        }
+
+        private void skipString() throws JSONException {
+            pos++;
+            while (pos < end) {
+                byte b = data[pos++];
+                if (b == '\\') {
+                    pos++;
+                } else if (b == '"') {
+                    return;
+                }
+            }
+            throw syntaxError("Unterminated string");
+        }
+    }
+}
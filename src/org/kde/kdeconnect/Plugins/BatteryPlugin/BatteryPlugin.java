@@ -28,13 +28,20 @@ import android.os.BatteryManager;
 
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
-
+@PluginMetadata(
+        displayName = R.string.pref_plugin_battery,
+        description = R.string.pref_plugin_battery_desc,
+        loadsEagerly = true, //Sends the battery status whenever it changes
+        supportedPacketTypes = {BatteryPlugin.PACKET_TYPE_BATTERY_REQUEST},
+        outgoingPacketTypes = {BatteryPlugin.PACKET_TYPE_BATTERY}
+)
 public class BatteryPlugin extends Plugin {
 
-    private final static String PACKET_TYPE_BATTERY = "kdeconnect.battery";
-    private final static String PACKET_TYPE_BATTERY_REQUEST = "kdeconnect.battery.request";
+    public final static String PACKET_TYPE_BATTERY = "kdeconnect.battery";
+    public final static String PACKET_TYPE_BATTERY_REQUEST = "kdeconnect.battery.request";
 
     // keep these fields in sync with kdeconnect-kded:BatteryPlugin.h:ThresholdBatteryEvent
     private static final int THRESHOLD_EVENT_NONE = 0;
@@ -42,16 +49,6 @@ public class BatteryPlugin extends Plugin {
 
     private final NetworkPacket batteryInfo = new NetworkPacket(PACKET_TYPE_BATTERY);
 
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_battery);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_battery_desc);
-    }
-
     private final BroadcastReceiver receiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent batteryIntent) {
@@ -103,15 +100,4 @@ public class BatteryPlugin extends Plugin {
 
         return true;
     }
-
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_BATTERY_REQUEST};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_BATTERY};
-    }
-
 }
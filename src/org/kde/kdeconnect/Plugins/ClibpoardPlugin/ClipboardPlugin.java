@@ -22,21 +22,19 @@ package org.kde.kdeconnect.Plugins.ClibpoardPlugin;
 
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_clipboard,
+        description = R.string.pref_plugin_clipboard_desc,
+        loadsEagerly = true, //Sends the clipboard whenever it changes
+        supportedPacketTypes = {ClipboardPlugin.PACKET_TYPE_CLIPBOARD},
+        outgoingPacketTypes = {ClipboardPlugin.PACKET_TYPE_CLIPBOARD}
+)
 public class ClipboardPlugin extends Plugin {
 
-    private final static String PACKET_TYPE_CLIPBOARD = "kdeconnect.clipboard";
-
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_clipboard);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_clipboard_desc);
-    }
+    public final static String PACKET_TYPE_CLIPBOARD = "kdeconnect.clipboard";
 
     @Override
     public boolean onPacketReceived(NetworkPacket np) {
@@ -62,15 +60,5 @@ public class ClipboardPlugin extends Plugin {
         ClipboardListener.instance(context).removeObserver(observer);
     }
 
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_CLIPBOARD};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_CLIPBOARD};
-    }
-
 
 }
@@ -34,6 +34,7 @@ import org.kde.kdeconnect.Helpers.ContactsHelper.VCardBuilder;
 import org.kde.kdeconnect.Helpers.ContactsHelper.uID;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
 import java.util.ArrayList;
@@ -43,19 +44,31 @@ import java.util.Map;
 import java.util.Set;
 
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+@PluginMetadata(
+        displayName = R.string.pref_plugin_contacts,
+        description = R.string.pref_plugin_contacts_desc,
+        supportedPacketTypes = {
+                ContactsPlugin.PACKET_TYPE_CONTACTS_REQUEST_ALL_UIDS_TIMESTAMPS,
+                ContactsPlugin.PACKET_TYPE_CONTACTS_REQUEST_VCARDS_BY_UIDS
+        },
+        outgoingPacketTypes = {
+                ContactsPlugin.PACKET_TYPE_CONTACTS_RESPONSE_UIDS_TIMESTAMPS,
+                ContactsPlugin.PACKET_TYPE_CONTACTS_RESPONSE_VCARDS
+        }
+)
 public class ContactsPlugin extends Plugin {
 
     /**
      * Used to request the device send the unique ID of every contact
      */
-    private static final String PACKET_TYPE_CONTACTS_REQUEST_ALL_UIDS_TIMESTAMPS = "kdeconnect.contacts.request_all_uids_timestamps";
+    public static final String PACKET_TYPE_CONTACTS_REQUEST_ALL_UIDS_TIMESTAMPS = "kdeconnect.contacts.request_all_uids_timestamps";
 
     /**
      * Used to request the names for the contacts corresponding to a list of UIDs
      * <p>
      * It shall contain the key "uids", which will have a list of uIDs (long int, as string)
      */
-    private static final String PACKET_TYPE_CONTACTS_REQUEST_VCARDS_BY_UIDS = "kdeconnect.contacts.request_vcards_by_uid";
+    public static final String PACKET_TYPE_CONTACTS_REQUEST_VCARDS_BY_UIDS = "kdeconnect.contacts.request_vcards_by_uid";
 
     /**
      * Response indicating the packet contains a list of contact uIDs
@@ -63,7 +76,7 @@ public class ContactsPlugin extends Plugin {
      * It shall contain the key "uids", which will mark a list of uIDs (long int, as string)
      * The returned IDs can be used in future requests for more information about the contact
      */
-    private static final String PACKET_TYPE_CONTACTS_RESPONSE_UIDS_TIMESTAMPS = "kdeconnect.contacts.response_uids_timestamps";
+    public static final String PACKET_TYPE_CONTACTS_RESPONSE_UIDS_TIMESTAMPS = "kdeconnect.contacts.response_uids_timestamps";
 
     /**
      * Response indicating the packet contains a list of contact names
@@ -78,33 +91,7 @@ public class ContactsPlugin extends Plugin {
      *   '15' : 'Mom'
      * }
      */
-    private static final String PACKET_TYPE_CONTACTS_RESPONSE_VCARDS = "kdeconnect.contacts.response_vcards";
-
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_contacts);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_contacts_desc);
-    }
-
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{
-                PACKET_TYPE_CONTACTS_REQUEST_ALL_UIDS_TIMESTAMPS,
-                PACKET_TYPE_CONTACTS_REQUEST_VCARDS_BY_UIDS
-        };
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{
-                PACKET_TYPE_CONTACTS_RESPONSE_UIDS_TIMESTAMPS,
-                PACKET_TYPE_CONTACTS_RESPONSE_VCARDS
-        };
-    }
+    public static final String PACKET_TYPE_CONTACTS_RESPONSE_VCARDS = "kdeconnect.contacts.response_vcards";
 
     @Override
     public boolean onCreate() {
@@ -113,11 +100,6 @@ public class ContactsPlugin extends Plugin {
         return true;
     }
 
-    @Override
-    public boolean isEnabledByDefault() {
-        return true;
-    }
-
     @Override
     public String[] getRequiredPermissions() {
         return new String[]{Manifest.permission.READ_CONTACTS};
@@ -25,8 +25,16 @@ import android.content.Intent;
 import org.kde.kdeconnect.Helpers.DeviceHelper;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
+@PluginMetadata(
+        displayName = R.string.findmyphone_title,
+        description = R.string.findmyphone_description,
+        hasSettings = true,
+        supportedPacketTypes = {FindMyPhonePlugin.PACKET_TYPE_FINDMYPHONE_REQUEST},
+        outgoingPacketTypes = {}
+)
 public class FindMyPhonePlugin extends Plugin {
 
     public final static String PACKET_TYPE_FINDMYPHONE_REQUEST = "kdeconnect.findmyphone.request";
@@ -45,11 +53,6 @@ public class FindMyPhonePlugin extends Plugin {
         }
     }
 
-    @Override
-    public String getDescription() {
-        return context.getString(R.string.findmyphone_description);
-    }
-
     @Override
     public boolean onPacketReceived(NetworkPacket np) {
 
@@ -59,20 +62,4 @@ public class FindMyPhonePlugin extends Plugin {
         return true;
 
     }
-
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_FINDMYPHONE_REQUEST};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[0];
-    }
-
-    @Override
-    public boolean hasSettings() {
-        return true;
-    }
-
 }
@@ -25,21 +25,17 @@ import android.app.Activity;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.FindMyPhonePlugin.FindMyPhonePlugin;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
-
+@PluginMetadata(
+        displayName = R.string.pref_plugin_findremotedevice,
+        description = R.string.pref_plugin_findremotedevice_desc,
+        supportedPacketTypes = {},
+        outgoingPacketTypes = {FindMyPhonePlugin.PACKET_TYPE_FINDMYPHONE_REQUEST}
+)
 public class FindRemoteDevicePlugin extends Plugin {
 
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_findremotedevice);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_findremotedevice_desc);
-    }
-
     @Override
     public boolean onPacketReceived(NetworkPacket np) {
         return true;
@@ -66,15 +62,4 @@ public class FindRemoteDevicePlugin extends Plugin {
     public boolean displayInContextMenu() {
         return true;
     }
-
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{FindMyPhonePlugin.PACKET_TYPE_FINDMYPHONE_REQUEST};
-    }
-
 }
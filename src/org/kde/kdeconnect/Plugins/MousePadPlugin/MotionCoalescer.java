@@ -0,0 +1,99 @@
+package org.kde.kdeconnect.Plugins.MousePadPlugin;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Accumulates pointer motion and scroll deltas and hands them to the sink at most once per
+ * tick, instead of once per touch event. A tick is either the next display frame or a fixed
+ * interval in milliseconds. Can be fed from any thread.
+ */
+class MotionCoalescer {
+
+    interface Sink {
+        void sendMotion(float dx, float dy, boolean scroll);
+    }
+
+    static final int TICK_VSYNC = -1;
+    static final int TICK_IMMEDIATE = 0;
+    static final int TICK_FALLBACK_MS = 8;
+
+    private final Sink sink;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable tickRunnable = this::flush;
+    private final Runnable vsyncRunnable;
+    private final int tickMs;
+
+    private float pendingDx;
+    private float pendingDy;
+    private boolean pendingScroll;
+    private boolean hasPending = false;
+    private boolean tickScheduled = false;
+
+    MotionCoalescer(Sink sink, int tickMs) {
+        this.sink = sink;
+        if (tickMs == TICK_VSYNC && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            tickMs = TICK_FALLBACK_MS; //No Choreographer
+        }
+        this.tickMs = tickMs;
+        this.vsyncRunnable = (tickMs == TICK_VSYNC) ? createVsyncRunnable() : null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Runnable createVsyncRunnable() {
+        final Choreographer.FrameCallback frameCallback = frameTimeNanos -> flush();
+        //Choreographer.getInstance() only works from a looper thread, so we hop to the main one
+        return () -> Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    //The sink is called with the lock held so packets can't be reordered between threads, it should not block
+    synchronized void addMotion(float dx, float dy, boolean scroll) {
+        if (tickMs == TICK_IMMEDIATE) {
+            sink.sendMotion(dx, dy, scroll);
+            return;
+        }
+        if (hasPending && pendingScroll != scroll) {
+            flush(); //Don't mix motion and scroll, keep them in order instead
+        }
+        if (hasPending) {
+            pendingDx += dx;
+            pendingDy += dy;
+        } else {
+            pendingDx = dx;
+            pendingDy = dy;
+            pendingScroll = scroll;
+            hasPending = true;
+        }
+        if (!tickScheduled) {
+            tickScheduled = true;
+            if (vsyncRunnable != null) {
+                handler.post(vsyncRunnable);
+            } else {
+                handler.postDelayed(tickRunnable, tickMs);
+            }
+        }
+    }
+
+    //Sends whatever motion is pending right away. Call before sending anything that has to come after it
+    synchronized void flush() {
+        tickScheduled = false;
+        if (!hasPending) {
+            return;
+        }
+        hasPending = false;
+        sink.sendMotion(pendingDx, pendingDy, pendingScroll);
+    }
+
+    //Drops pending motion and any scheduled tick
+    synchronized void cancel() {
+        hasPending = false;
+        tickScheduled = false;
+        handler.removeCallbacks(tickRunnable);
+        if (vsyncRunnable != null) {
+            handler.removeCallbacks(vsyncRunnable);
+        }
+    }
+}
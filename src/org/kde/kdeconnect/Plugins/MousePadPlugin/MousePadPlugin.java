@@ -22,36 +22,52 @@ package org.kde.kdeconnect.Plugins.MousePadPlugin;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.graphics.drawable.Drawable;
-import android.support.v4.content.ContextCompat;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_mousepad,
+        description = R.string.pref_plugin_mousepad_desc,
+        icon = R.drawable.touchpad_plugin_action,
+        hasSettings = true,
+        supportedPacketTypes = {},
+        outgoingPacketTypes = {MousePadPlugin.PACKET_TYPE_MOUSEPAD_REQUEST}
+)
 public class MousePadPlugin extends Plugin {
 
     //public final static String PACKET_TYPE_MOUSEPAD = "kdeconnect.mousepad";
     public final static String PACKET_TYPE_MOUSEPAD_REQUEST = "kdeconnect.mousepad.request";
 
-    @Override
-    public String getDisplayName() {
-        return context.getString(R.string.pref_plugin_mousepad);
-    }
+    //Motion and scroll deltas are accumulated and sent once per tick instead of once per touch event
+    private MotionCoalescer motionCoalescer;
 
     @Override
-    public String getDescription() {
-        return context.getString(R.string.pref_plugin_mousepad_desc);
+    public boolean onCreate() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String sendRate = prefs.getString(context.getString(R.string.mousepad_send_rate_key),
+                context.getString(R.string.mousepad_default_send_rate));
+        int tickMs;
+        if (sendRate.equals("vsync")) {
+            tickMs = MotionCoalescer.TICK_VSYNC;
+        } else {
+            try {
+                tickMs = Integer.parseInt(sendRate);
+            } catch (NumberFormatException e) {
+                tickMs = MotionCoalescer.TICK_VSYNC;
+            }
+        }
+        motionCoalescer = new MotionCoalescer(this::sendMotionPacket, tickMs);
+        return true;
     }
 
     @Override
-    public Drawable getIcon() {
-        return ContextCompat.getDrawable(context, R.drawable.touchpad_plugin_action);
-    }
-
-    @Override
-    public boolean hasSettings() {
-        return true;
+    public void onDestroy() {
+        motionCoalescer.cancel();
     }
 
     @Override
@@ -66,69 +82,66 @@ public class MousePadPlugin extends Plugin {
         parentActivity.startActivity(intent);
     }
 
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[0];
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_MOUSEPAD_REQUEST};
-    }
-
     @Override
     public String getActionName() {
         return context.getString(R.string.open_mousepad);
     }
 
     public void sendMouseDelta(float dx, float dy) {
-        NetworkPacket np = new NetworkPacket(PACKET_TYPE_MOUSEPAD_REQUEST);
+        motionCoalescer.addMotion(dx, dy, false);
+    }
 
+    private void sendMotionPacket(float dx, float dy, boolean scroll) {
+        NetworkPacket np = new NetworkPacket(PACKET_TYPE_MOUSEPAD_REQUEST);
+        if (scroll) {
+            np.set("scroll", true);
+        }
         np.set("dx", dx);
         np.set("dy", dy);
-
         device.sendPacket(np);
     }
 
     public void sendSingleClick() {
+        motionCoalescer.flush();
         NetworkPacket np = new NetworkPacket(PACKET_TYPE_MOUSEPAD_REQUEST);
         np.set("singleclick", true);
         device.sendPacket(np);
     }
 
     public void sendDoubleClick() {
+        motionCoalescer.flush();
         NetworkPacket np = new NetworkPacket(PACKET_TYPE_MOUSEPAD_REQUEST);
         np.set("doubleclick", true);
         device.sendPacket(np);
     }
 
     public void sendMiddleClick() {
+        motionCoalescer.flush();
         NetworkPacket np = new NetworkPacket(PACKET_TYPE_MOUSEPAD_REQUEST);
         np.set("middleclick", true);
         device.sendPacket(np);
     }
 
     public void sendRightClick() {
+        motionCoalescer.flush();
         NetworkPacket np = new NetworkPacket(PACKET_TYPE_MOUSEPAD_REQUEST);
         np.set("rightclick", true);
         device.sendPacket(np);
     }
 
     public void sendSingleHold() {
+        motionCoalescer.flush();
         NetworkPacket np = new NetworkPacket(PACKET_TYPE_MOUSEPAD_REQUEST);
         np.set("singlehold", true);
         device.sendPacket(np);
     }
 
     public void sendScroll(float dx, float dy) {
-        NetworkPacket np = new NetworkPacket(PACKET_TYPE_MOUSEPAD_REQUEST);
-        np.set("scroll", true);
-        np.set("dx", dx);
-        np.set("dy", dy);
-        device.sendPacket(np);
+        motionCoalescer.addMotion(dx, dy, true);
     }
 
     public void sendKeyboardPacket(NetworkPacket np) {
+        motionCoalescer.flush();
         device.sendPacket(np);
     }
 
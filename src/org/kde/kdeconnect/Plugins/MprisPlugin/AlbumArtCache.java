@@ -406,7 +406,7 @@ final class AlbumArtCache {
      * @param url The url
      * @return A valid disk cache key
      */
-    private static String urlToDiskCacheKey(String url) {
+    static String urlToDiskCacheKey(String url) { //Not private so the benchmarks can call it
         MessageDigest hasher;
         try {
             hasher = MessageDigest.getInstance("MD5");
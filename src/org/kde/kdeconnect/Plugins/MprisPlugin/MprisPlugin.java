@@ -23,14 +23,13 @@ package org.kde.kdeconnect.Plugins.MprisPlugin;
 import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Message;
-import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
 import java.net.MalformedURLException;
@@ -41,6 +40,15 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_mpris,
+        description = R.string.pref_plugin_mpris_desc,
+        icon = R.drawable.mpris_plugin_action,
+        hasSettings = true,
+        loadsEagerly = true, //The media notification needs the player list as soon as we connect
+        supportedPacketTypes = {MprisPlugin.PACKET_TYPE_MPRIS},
+        outgoingPacketTypes = {MprisPlugin.PACKET_TYPE_MPRIS_REQUEST}
+)
 public class MprisPlugin extends Plugin {
     public class MprisPlayer {
         private String player = "";
@@ -201,8 +209,8 @@ public class MprisPlugin extends Plugin {
         }
     }
 
-    private final static String PACKET_TYPE_MPRIS = "kdeconnect.mpris";
-    private final static String PACKET_TYPE_MPRIS_REQUEST = "kdeconnect.mpris.request";
+    public final static String PACKET_TYPE_MPRIS = "kdeconnect.mpris";
+    public final static String PACKET_TYPE_MPRIS_REQUEST = "kdeconnect.mpris.request";
 
     private final HashMap<String, MprisPlayer> players = new HashMap<>();
     private boolean supportAlbumArtPayload = false;
@@ -210,26 +218,6 @@ public class MprisPlugin extends Plugin {
 
     private final HashMap<String, Handler> playerListUpdated = new HashMap<>();
 
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_mpris);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_mpris_desc);
-    }
-
-    @Override
-    public Drawable getIcon() {
-        return ContextCompat.getDrawable(context, R.drawable.mpris_plugin_action);
-    }
-
-    @Override
-    public boolean hasSettings() {
-        return true;
-    }
-
     @Override
     public boolean onCreate() {
         MprisMediaSession.getInstance().onCreate(context.getApplicationContext(), this, device.getDeviceId());
@@ -362,16 +350,6 @@ public class MprisPlugin extends Plugin {
         return true;
     }
 
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_MPRIS};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_MPRIS_REQUEST};
-    }
-
     public void setPlayerStatusUpdatedHandler(String id, Handler h) {
         playerStatusUpdated.put(id, h);
 
@@ -46,6 +46,7 @@ import android.util.Log;
 import org.kde.kdeconnect.Helpers.AppsHelper;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect.UserInterface.DeviceSettingsActivity;
 import org.kde.kdeconnect.UserInterface.MainActivity;
 import org.kde.kdeconnect_tp.R;
@@ -60,11 +61,22 @@ import java.util.Map;
 import java.util.Set;
 
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+@PluginMetadata(
+        displayName = R.string.pref_plugin_notifications,
+        description = R.string.pref_plugin_notifications_desc,
+        hasSettings = true,
+        loadsEagerly = true, //Forwards our notifications as they are posted
+        supportedPacketTypes = {
+                NotificationsPlugin.PACKET_TYPE_NOTIFICATION_REQUEST,
+                NotificationsPlugin.PACKET_TYPE_NOTIFICATION_REPLY
+        },
+        outgoingPacketTypes = {NotificationsPlugin.PACKET_TYPE_NOTIFICATION}
+)
 public class NotificationsPlugin extends Plugin implements NotificationReceiver.NotificationListener {
 
-    private final static String PACKET_TYPE_NOTIFICATION = "kdeconnect.notification";
-    private final static String PACKET_TYPE_NOTIFICATION_REQUEST = "kdeconnect.notification.request";
-    private final static String PACKET_TYPE_NOTIFICATION_REPLY = "kdeconnect.notification.reply";
+    public final static String PACKET_TYPE_NOTIFICATION = "kdeconnect.notification";
+    public final static String PACKET_TYPE_NOTIFICATION_REQUEST = "kdeconnect.notification.request";
+    public final static String PACKET_TYPE_NOTIFICATION_REPLY = "kdeconnect.notification.reply";
 
     private AppDatabase appDatabase;
 
@@ -72,21 +84,6 @@ public class NotificationsPlugin extends Plugin implements NotificationReceiver.
     private Map<String, RepliableNotification> pendingIntents;
     private boolean serviceReady;
 
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_notifications);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_notifications_desc);
-    }
-
-    @Override
-    public boolean hasSettings() {
-        return true;
-    }
-
     @Override
     public void startPreferencesActivity(final DeviceSettingsActivity parentActivity) {
         if (hasPermission()) {
@@ -507,16 +504,6 @@ public class NotificationsPlugin extends Plugin implements NotificationReceiver.
 
     }
 
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_NOTIFICATION_REQUEST, PACKET_TYPE_NOTIFICATION_REPLY};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_NOTIFICATION};
-    }
-
     //For compat with API<21, because lollipop changed the way to cancel notifications
     private static void cancelNotificationCompat(NotificationReceiver service, String compatKey) {
         if (Build.VERSION.SDK_INT >= 21) {
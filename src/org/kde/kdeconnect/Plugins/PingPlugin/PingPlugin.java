@@ -32,23 +32,19 @@ import android.util.Log;
 import org.kde.kdeconnect.Helpers.NotificationHelper;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect.UserInterface.MainActivity;
 import org.kde.kdeconnect_tp.R;
 
-
+@PluginMetadata(
+        displayName = R.string.pref_plugin_ping,
+        description = R.string.pref_plugin_ping_desc,
+        supportedPacketTypes = {PingPlugin.PACKET_TYPE_PING},
+        outgoingPacketTypes = {PingPlugin.PACKET_TYPE_PING}
+)
 public class PingPlugin extends Plugin {
 
-    private final static String PACKET_TYPE_PING = "kdeconnect.ping";
-
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_ping);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_ping_desc);
-    }
+    public final static String PACKET_TYPE_PING = "kdeconnect.ping";
 
     @Override
     public boolean onPacketReceived(NetworkPacket np) {
@@ -117,15 +113,4 @@ public class PingPlugin extends Plugin {
     public boolean displayInContextMenu() {
         return true;
     }
-
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_PING};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_PING};
-    }
-
 }
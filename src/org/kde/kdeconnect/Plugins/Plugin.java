@@ -44,6 +44,7 @@ public abstract class Plugin {
     protected Context context;
     protected int permissionExplanation = R.string.permission_explanation;
     protected int optionalPermissionExplanation = R.string.optional_permission_explanation;
+    private String pluginKey;
 
     public final void setContext(Context context, Device device) {
         this.device = device;
@@ -60,10 +61,10 @@ public abstract class Plugin {
 
     /**
      * Returns whether this plugin should be loaded or not, to listen to NetworkPackets
-     * from the unpaired devices. By default, returns false.
+     * from the unpaired devices. Set it in the plugin's @PluginMetadata.
      */
     public boolean listensToUnpairedDevices() {
-        return false;
+        return getPluginInfo().listenToUnpaired();
     }
 
     /**
@@ -71,24 +72,36 @@ public abstract class Plugin {
      * unique key to distinguish it. Use the class name as key.
      */
     public String getPluginKey() {
-        return getPluginKey(this.getClass());
+        if (pluginKey == null) {
+            pluginKey = getPluginKey(this.getClass()); //Needed for every packet the plugin gets, and getSimpleName() isn't free
+        }
+        return pluginKey;
     }
 
     public static String getPluginKey(Class<? extends Plugin> p) {
         return p.getSimpleName();
     }
 
+    //The @PluginMetadata of this plugin
+    private PluginFactory.PluginInfo getPluginInfo() {
+        return PluginFactory.getPluginInfo(context, getPluginKey());
+    }
+
     /**
-     * Return the human-readable plugin name. This function can
-     * access this.context to provide translated text.
+     * Return the human-readable plugin name, by default the displayName of the
+     * plugin's @PluginMetadata. Can be overridden, and can access this.context.
      */
-    public abstract String getDisplayName();
+    public String getDisplayName() {
+        return getPluginInfo().getDisplayName(context);
+    }
 
     /**
-     * Return the human-readable description of this plugin. This
-     * function can access this.context to provide translated text.
+     * Return the human-readable description of this plugin, by default the
+     * description of the plugin's @PluginMetadata.
      */
-    public abstract String getDescription();
+    public String getDescription() {
+        return getPluginInfo().getDescription(context);
+    }
 
     /**
      * Return the action name displayed in the main activity, that
@@ -99,27 +112,37 @@ public abstract class Plugin {
     }
 
     /**
-     * Return an icon associated to this plugin. This function can
-     * access this.context to load the image from resources.
+     * Return an icon associated to this plugin, the icon of the plugin's
+     * @PluginMetadata. Null if it has none.
      */
     public Drawable getIcon() {
-        return null;
+        return getPluginInfo().getIcon(context);
     }
 
     /**
      * Return true if this plugin should be enabled on new devices.
-     * This function can access this.context and perform compatibility
-     * checks with the Android version, but can not access this.device.
+     * Set it in the plugin's @PluginMetadata.
      */
     public boolean isEnabledByDefault() {
-        return true;
+        return getPluginInfo().isEnabledByDefault();
+    }
+
+    /**
+     * Return true if this plugin has to be created as soon as the device connects, because it
+     * sends packets on its own (eg: when the battery level changes). Other plugins are only
+     * created when they get their first packet or the UI asks for them.
+     * Set it in the plugin's @PluginMetadata.
+     */
+    public boolean loadsEagerly() {
+        return getPluginInfo().loadsEagerly();
     }
 
     /**
      * Return true if this plugin needs an specific UI settings.
+     * Set it in the plugin's @PluginMetadata.
      */
     public boolean hasSettings() {
-        return false;
+        return getPluginInfo().hasSettings();
     }
 
     /**
@@ -180,14 +203,18 @@ public abstract class Plugin {
     }
 
     /**
-     * Should return the list of NetworkPacket types that this plugin can handle
+     * The list of NetworkPacket types that this plugin can handle, from its @PluginMetadata
      */
-    public abstract String[] getSupportedPacketTypes();
+    public String[] getSupportedPacketTypes() {
+        return getPluginInfo().getSupportedPacketTypes().toArray(new String[0]);
+    }
 
     /**
-     * Should return the list of NetworkPacket types that this plugin can send
+     * The list of NetworkPacket types that this plugin can send, from its @PluginMetadata
      */
-    public abstract String[] getOutgoingPacketTypes();
+    public String[] getOutgoingPacketTypes() {
+        return getPluginInfo().getOutgoingPacketTypes().toArray(new String[0]);
+    }
 
     /**
      * Creates a button that will be displayed in the user interface
@@ -22,29 +22,14 @@ package org.kde.kdeconnect.Plugins;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
+import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
 import org.kde.kdeconnect.Device;
-import org.kde.kdeconnect.Plugins.BatteryPlugin.BatteryPlugin;
-import org.kde.kdeconnect.Plugins.ClibpoardPlugin.ClipboardPlugin;
-import org.kde.kdeconnect.Plugins.ContactsPlugin.ContactsPlugin;
-import org.kde.kdeconnect.Plugins.FindMyPhonePlugin.FindMyPhonePlugin;
-import org.kde.kdeconnect.Plugins.FindRemoteDevicePlugin.FindRemoteDevicePlugin;
-import org.kde.kdeconnect.Plugins.MousePadPlugin.MousePadPlugin;
-import org.kde.kdeconnect.Plugins.MprisPlugin.MprisPlugin;
-import org.kde.kdeconnect.Plugins.NotificationsPlugin.NotificationsPlugin;
-import org.kde.kdeconnect.Plugins.PingPlugin.PingPlugin;
-import org.kde.kdeconnect.Plugins.PresenterPlugin.PresenterPlugin;
-import org.kde.kdeconnect.Plugins.ReceiveNotificationsPlugin.ReceiveNotificationsPlugin;
-import org.kde.kdeconnect.Plugins.RemoteKeyboardPlugin.RemoteKeyboardPlugin;
-import org.kde.kdeconnect.Plugins.RunCommandPlugin.RunCommandPlugin;
-import org.kde.kdeconnect.Plugins.SftpPlugin.SftpPlugin;
-import org.kde.kdeconnect.Plugins.SharePlugin.SharePlugin;
-import org.kde.kdeconnect.Plugins.SystemvolumePlugin.SystemvolumePlugin;
-import org.kde.kdeconnect.Plugins.SMSPlugin.SMSPlugin;
-import org.kde.kdeconnect.Plugins.TelephonyPlugin.TelephonyPlugin;
+import org.kde.kdeconnect.NetworkPacket;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -54,15 +39,17 @@ public class PluginFactory {
 
     public static class PluginInfo {
 
-        PluginInfo(String displayName, String description, Drawable icon,
-                   boolean enabledByDefault, boolean hasSettings, boolean listenToUnpaired,
+        PluginInfo(String pluginKey, int displayName, int description, int icon,
+                   boolean enabledByDefault, boolean hasSettings, boolean listenToUnpaired, boolean loadsEagerly,
                    String[] supportedPacketTypes, String[] outgoingPacketTypes) {
+            this.pluginKey = pluginKey;
             this.displayName = displayName;
             this.description = description;
             this.icon = icon;
             this.enabledByDefault = enabledByDefault;
             this.hasSettings = hasSettings;
             this.listenToUnpaired = listenToUnpaired;
+            this.loadsEagerly = loadsEagerly;
             HashSet<String> incoming = new HashSet<>();
             if (supportedPacketTypes != null) Collections.addAll(incoming, supportedPacketTypes);
             this.supportedPacketTypes = Collections.unmodifiableSet(incoming);
@@ -71,16 +58,24 @@ public class PluginFactory {
             this.outgoingPacketTypes = Collections.unmodifiableSet(outgoing);
         }
 
-        public String getDisplayName() {
-            return displayName;
+        public String getPluginKey() {
+            return pluginKey;
         }
 
-        public String getDescription() {
-            return description;
+        public String getDisplayName(Context context) {
+            return context.getString(displayName);
         }
 
-        public Drawable getIcon() {
-            return icon;
+        public String getDescription(Context context) {
+            return context.getString(description);
+        }
+
+        //Loaded every time, only the UI needs it
+        public Drawable getIcon(Context context) {
+            if (icon == 0) {
+                return null;
+            }
+            return ContextCompat.getDrawable(context, icon);
         }
 
         public boolean hasSettings() {
@@ -95,7 +90,11 @@ public class PluginFactory {
             return listenToUnpaired;
         }
 
-        Set<String> getOutgoingPacketTypes() {
+        public boolean loadsEagerly() {
+            return loadsEagerly;
+        }
+
+        public Set<String> getOutgoingPacketTypes() {
             return outgoingPacketTypes;
         }
 
@@ -103,63 +102,55 @@ public class PluginFactory {
             return supportedPacketTypes;
         }
 
-        private final String displayName;
-        private final String description;
-        private final Drawable icon;
+        private final String pluginKey;
+        private final int displayName;
+        private final int description;
+        private final int icon;
         private final boolean enabledByDefault;
         private final boolean hasSettings;
         private final boolean listenToUnpaired;
+        private final boolean loadsEagerly;
         private final Set<String> supportedPacketTypes;
         private final Set<String> outgoingPacketTypes;
 
     }
 
-    private static final Map<String, Class> availablePlugins = new TreeMap<>();
-    private static final Map<String, PluginInfo> pluginInfoCache = new TreeMap<>();
+    //Built from the @PluginMetadata of every plugin, without loading any plugin class
+    private static final Map<String, PluginInfo> availablePlugins = new TreeMap<>();
+
+    //Every packet type this app knows about, mapped to its interned instance. Never modified after the static block
+    private static final Map<String, String> knownPacketTypes = new HashMap<>();
 
     static {
-        PluginFactory.registerPlugin(TelephonyPlugin.class);
-        PluginFactory.registerPlugin(PingPlugin.class);
-        PluginFactory.registerPlugin(MprisPlugin.class);
-        PluginFactory.registerPlugin(ClipboardPlugin.class);
-        PluginFactory.registerPlugin(BatteryPlugin.class);
-        PluginFactory.registerPlugin(SftpPlugin.class);
-        PluginFactory.registerPlugin(NotificationsPlugin.class);
-        PluginFactory.registerPlugin(ReceiveNotificationsPlugin.class);
-        PluginFactory.registerPlugin(MousePadPlugin.class);
-        PluginFactory.registerPlugin(PresenterPlugin.class);
-        PluginFactory.registerPlugin(SharePlugin.class);
-        PluginFactory.registerPlugin(SMSPlugin.class);
-        PluginFactory.registerPlugin(FindMyPhonePlugin.class);
-        PluginFactory.registerPlugin(RunCommandPlugin.class);
-        PluginFactory.registerPlugin(ContactsPlugin.class);
-        PluginFactory.registerPlugin(RemoteKeyboardPlugin.class);
-        PluginFactory.registerPlugin(SystemvolumePlugin.class);
-        //PluginFactory.registerPlugin(MprisReceiverPlugin.class);
-        PluginFactory.registerPlugin(FindRemoteDevicePlugin.class);
+        for (PluginInfo info : PluginRegistry.PLUGINS) {
+            availablePlugins.put(info.getPluginKey(), info);
+            addKnownPacketTypes(info.getSupportedPacketTypes());
+            addKnownPacketTypes(info.getOutgoingPacketTypes());
+        }
+        addKnownPacketTypes(NetworkPacket.protocolPacketTypes);
     }
 
-    public static PluginInfo getPluginInfo(Context context, String pluginKey) {
-
-        PluginInfo info = pluginInfoCache.get(pluginKey); //Is it cached?
-        if (info != null) {
-            return info;
+    private static void addKnownPacketTypes(Set<String> types) {
+        for (String type : types) {
+            type = type.intern();
+            knownPacketTypes.put(type, type);
+            String legacyType = type.replace(".request", "").intern(); //What old clients send, see Device
+            knownPacketTypes.put(legacyType, legacyType);
         }
+    }
 
-        try {
-            Plugin p = ((Plugin) availablePlugins.get(pluginKey).newInstance());
-            p.setContext(context, null);
-            info = new PluginInfo(p.getDisplayName(), p.getDescription(), p.getIcon(),
-                    p.isEnabledByDefault(), p.hasSettings(), p.listensToUnpairedDevices(),
-                    p.getSupportedPacketTypes(), p.getOutgoingPacketTypes());
-            pluginInfoCache.put(pluginKey, info); //Cache it
-            return info;
-        } catch (Exception e) {
-            Log.e("PluginFactory", "getPluginInfo exception");
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+    /**
+     * The interned instance of a packet type used by a plugin or the protocol, or null if no plugin knows it.
+     * Types received from other devices go through this instead of String.intern(), so they can't fill
+     * the string pool or any per type table with made up types.
+     */
+    public static String getKnownPacketType(String type) {
+        return knownPacketTypes.get(type);
+    }
 
+    //Null if there is no such plugin. The context isn't needed anymore, resources are resolved by PluginInfo
+    public static PluginInfo getPluginInfo(Context context, String pluginKey) {
+        return availablePlugins.get(pluginKey);
     }
 
     public static Set<String> getAvailablePlugins() {
@@ -167,14 +158,12 @@ public class PluginFactory {
     }
 
     public static Plugin instantiatePluginForDevice(Context context, String pluginKey, Device device) {
-        Class c = availablePlugins.get(pluginKey);
-        if (c == null) {
-            Log.e("PluginFactory", "Plugin not found: " + pluginKey);
-            return null;
-        }
-
         try {
-            Plugin plugin = (Plugin) c.newInstance();
+            Plugin plugin = PluginRegistry.instantiate(pluginKey);
+            if (plugin == null) {
+                Log.e("PluginFactory", "Plugin not found: " + pluginKey);
+                return null;
+            }
             plugin.setContext(context, device);
             return plugin;
         } catch (Exception e) {
@@ -185,17 +174,6 @@ public class PluginFactory {
 
     }
 
-    private static void registerPlugin(Class<? extends Plugin> pluginClass) {
-        try {
-            String pluginKey = Plugin.getPluginKey(pluginClass);
-            availablePlugins.put(pluginKey, pluginClass);
-        } catch (Exception e) {
-            Log.e("PluginFactory", "addPlugin exception");
-            e.printStackTrace();
-        }
-    }
-
-
     public static Set<String> getIncomingCapabilities(Context context) {
         HashSet<String> capabilities = new HashSet<>();
         for (String pluginId : availablePlugins.keySet()) {
@@ -0,0 +1,40 @@
+package org.kde.kdeconnect.Plugins;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * What PluginFactory needs to know about a plugin without creating it. Every annotated plugin
+ * is added at build time to the generated PluginRegistry (see the processor module), so it
+ * doesn't have to be registered anywhere else. The plugin key is the simple class name.
+ * <p>
+ * The Plugin methods with the same names return these values, plugins can still override
+ * them (eg: to change the name depending on the kind of device).
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface PluginMetadata {
+
+    //String resources, resolved when the UI asks for them
+    int displayName();
+
+    int description();
+
+    //Drawable resource, 0 if the plugin has no icon
+    int icon() default 0;
+
+    boolean enabledByDefault() default true;
+
+    boolean hasSettings() default false;
+
+    boolean listensToUnpairedDevices() default false;
+
+    //See Plugin.loadsEagerly()
+    boolean loadsEagerly() default false;
+
+    String[] supportedPacketTypes();
+
+    String[] outgoingPacketTypes();
+}
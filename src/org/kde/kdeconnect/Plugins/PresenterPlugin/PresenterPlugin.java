@@ -23,39 +23,25 @@ package org.kde.kdeconnect.Plugins.PresenterPlugin;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.graphics.drawable.Drawable;
-import android.support.v4.content.ContextCompat;
 import android.view.KeyEvent;
 
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
 import static org.kde.kdeconnect.Plugins.MousePadPlugin.KeyListenerView.SpecialKeysMap;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_presenter,
+        description = R.string.pref_plugin_presenter_desc,
+        icon = R.drawable.ic_presenter,
+        supportedPacketTypes = {},
+        outgoingPacketTypes = {PresenterPlugin.PACKET_TYPE_MOUSEPAD_REQUEST}
+)
 public class PresenterPlugin extends Plugin {
 
-    private final static String PACKET_TYPE_MOUSEPAD_REQUEST = "kdeconnect.mousepad.request";
-
-    @Override
-    public String getDisplayName() {
-        return context.getString(R.string.pref_plugin_presenter);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getString(R.string.pref_plugin_presenter_desc);
-    }
-
-    @Override
-    public Drawable getIcon() {
-        return ContextCompat.getDrawable(context, R.drawable.ic_presenter);
-    }
-
-    @Override
-    public boolean hasSettings() {
-        return false;
-    }
+    public final static String PACKET_TYPE_MOUSEPAD_REQUEST = "kdeconnect.mousepad.request";
 
     @Override
     public boolean hasMainActivity() {
@@ -69,16 +55,6 @@ public class PresenterPlugin extends Plugin {
         parentActivity.startActivity(intent);
     }
 
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[0];
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_MOUSEPAD_REQUEST};
-    }
-
     @Override
     public String getActionName() {
         return context.getString(R.string.pref_plugin_presenter);
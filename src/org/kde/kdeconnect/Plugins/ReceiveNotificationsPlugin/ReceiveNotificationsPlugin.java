@@ -33,30 +33,24 @@ import android.util.Log;
 import org.kde.kdeconnect.Helpers.NotificationHelper;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect.UserInterface.MainActivity;
 import org.kde.kdeconnect_tp.R;
 
 import java.io.InputStream;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_receive_notifications,
+        description = R.string.pref_plugin_receive_notifications_desc,
+        enabledByDefault = false,
+        loadsEagerly = true, //Asks for the notifications the other end already has when we connect
+        supportedPacketTypes = {ReceiveNotificationsPlugin.PACKET_TYPE_NOTIFICATION},
+        outgoingPacketTypes = {ReceiveNotificationsPlugin.PACKET_TYPE_NOTIFICATION_REQUEST}
+)
 public class ReceiveNotificationsPlugin extends Plugin {
 
-    private final static String PACKET_TYPE_NOTIFICATION = "kdeconnect.notification";
-    private final static String PACKET_TYPE_NOTIFICATION_REQUEST = "kdeconnect.notification.request";
-
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_receive_notifications);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_receive_notifications_desc);
-    }
-
-    @Override
-    public boolean isEnabledByDefault() {
-        return false;
-    }
+    public final static String PACKET_TYPE_NOTIFICATION = "kdeconnect.notification";
+    public final static String PACKET_TYPE_NOTIFICATION_REQUEST = "kdeconnect.notification.request";
 
     @Override
     public boolean onCreate() {
@@ -119,14 +113,4 @@ public class ReceiveNotificationsPlugin extends Plugin {
 
         return true;
     }
-
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_NOTIFICATION};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_NOTIFICATION_REQUEST};
-    }
 }
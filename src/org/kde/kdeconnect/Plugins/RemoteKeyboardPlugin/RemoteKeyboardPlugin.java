@@ -20,10 +20,8 @@
 
 package org.kde.kdeconnect.Plugins.RemoteKeyboardPlugin;
 
-import android.graphics.drawable.Drawable;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.support.v4.content.ContextCompat;
 import android.support.v4.util.Pair;
 import android.util.Log;
 import android.util.SparseIntArray;
@@ -35,16 +33,29 @@ import android.view.inputmethod.InputConnection;
 
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
 import java.util.ArrayList;
 import java.util.concurrent.locks.ReentrantLock;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_remotekeyboard,
+        description = R.string.pref_plugin_remotekeyboard_desc,
+        icon = R.drawable.ic_action_keyboard,
+        hasSettings = true,
+        loadsEagerly = true, //The keyboard shows whether there is a device to type on
+        supportedPacketTypes = {RemoteKeyboardPlugin.PACKET_TYPE_MOUSEPAD_REQUEST},
+        outgoingPacketTypes = {
+                RemoteKeyboardPlugin.PACKET_TYPE_MOUSEPAD_ECHO,
+                RemoteKeyboardPlugin.PACKET_TYPE_MOUSEPAD_KEYBOARDSTATE
+        }
+)
 public class RemoteKeyboardPlugin extends Plugin {
 
-    private final static String PACKET_TYPE_MOUSEPAD_REQUEST = "kdeconnect.mousepad.request";
-    private final static String PACKET_TYPE_MOUSEPAD_ECHO = "kdeconnect.mousepad.echo";
-    private final static String PACKET_TYPE_MOUSEPAD_KEYBOARDSTATE = "kdeconnect.mousepad.keyboardstate";
+    public final static String PACKET_TYPE_MOUSEPAD_REQUEST = "kdeconnect.mousepad.request";
+    public final static String PACKET_TYPE_MOUSEPAD_ECHO = "kdeconnect.mousepad.echo";
+    public final static String PACKET_TYPE_MOUSEPAD_KEYBOARDSTATE = "kdeconnect.mousepad.keyboardstate";
 
     /**
      * Track and expose plugin instances to allow for a 'connected'-indicator in the IME:
@@ -138,41 +149,11 @@ public class RemoteKeyboardPlugin extends Plugin {
         Log.d("RemoteKeyboardPlugin", "Destroying for device " + device.getName());
     }
 
-    @Override
-    public String getDisplayName() {
-        return context.getString(R.string.pref_plugin_remotekeyboard);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getString(R.string.pref_plugin_remotekeyboard_desc);
-    }
-
-    @Override
-    public Drawable getIcon() {
-        return ContextCompat.getDrawable(context, R.drawable.ic_action_keyboard);
-    }
-
-    @Override
-    public boolean hasSettings() {
-        return true;
-    }
-
     @Override
     public boolean hasMainActivity() {
         return false;
     }
 
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_MOUSEPAD_REQUEST};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_MOUSEPAD_ECHO, PACKET_TYPE_MOUSEPAD_KEYBOARDSTATE};
-    }
-
     private boolean isValidSpecialKey(int key) {
         return (specialKeyMap.get(key, 0) > 0);
     }
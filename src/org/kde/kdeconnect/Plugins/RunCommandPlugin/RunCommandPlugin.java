@@ -23,23 +23,29 @@ package org.kde.kdeconnect.Plugins.RunCommandPlugin;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.graphics.drawable.Drawable;
-import android.support.v4.content.ContextCompat;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_runcommand,
+        description = R.string.pref_plugin_runcommand_desc,
+        icon = R.drawable.runcommand_plugin_icon,
+        supportedPacketTypes = {RunCommandPlugin.PACKET_TYPE_RUNCOMMAND},
+        outgoingPacketTypes = {RunCommandPlugin.PACKET_TYPE_RUNCOMMAND_REQUEST}
+)
 public class RunCommandPlugin extends Plugin {
 
-    private final static String PACKET_TYPE_RUNCOMMAND = "kdeconnect.runcommand";
-    private final static String PACKET_TYPE_RUNCOMMAND_REQUEST = "kdeconnect.runcommand.request";
+    public final static String PACKET_TYPE_RUNCOMMAND = "kdeconnect.runcommand";
+    public final static String PACKET_TYPE_RUNCOMMAND_REQUEST = "kdeconnect.runcommand.request";
 
     private final ArrayList<JSONObject> commandList = new ArrayList<>();
     private final ArrayList<CommandsChangedCallback> callbacks = new ArrayList<>();
@@ -67,21 +73,6 @@ public class RunCommandPlugin extends Plugin {
         return commandItems;
     }
 
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_runcommand);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_runcommand_desc);
-    }
-
-    @Override
-    public Drawable getIcon() {
-        return ContextCompat.getDrawable(context, R.drawable.runcommand_plugin_icon);
-    }
-
     @Override
     public boolean onCreate() {
         requestCommandList();
@@ -138,16 +129,6 @@ public class RunCommandPlugin extends Plugin {
         return false;
     }
 
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_RUNCOMMAND};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_RUNCOMMAND_REQUEST};
-    }
-
     public void runCommand(String cmdKey) {
         NetworkPacket np = new NetworkPacket(PACKET_TYPE_RUNCOMMAND_REQUEST);
         np.set("key", cmdKey);
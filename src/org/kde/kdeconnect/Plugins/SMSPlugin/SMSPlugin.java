@@ -38,19 +38,16 @@ import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.kde.kdeconnect.Helpers.ContactsHelper;
 import org.kde.kdeconnect.Helpers.SMSHelper;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect.Plugins.TelephonyPlugin.TelephonyPlugin;
 import org.kde.kdeconnect_tp.BuildConfig;
 import org.kde.kdeconnect_tp.R;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
@@ -58,6 +55,18 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import static org.kde.kdeconnect.Plugins.TelephonyPlugin.TelephonyPlugin.PACKET_TYPE_TELEPHONY;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_telepathy,
+        description = R.string.pref_plugin_telepathy_desc,
+        loadsEagerly = true, //Reports messages as they come in
+        supportedPacketTypes = {
+                SMSPlugin.PACKET_TYPE_SMS_REQUEST,
+                TelephonyPlugin.PACKET_TYPE_TELEPHONY_REQUEST,
+                SMSPlugin.PACKET_TYPE_SMS_REQUEST_CONVERSATIONS,
+                SMSPlugin.PACKET_TYPE_SMS_REQUEST_CONVERSATION
+        },
+        outgoingPacketTypes = {SMSPlugin.PACKET_TYPE_SMS_MESSAGE}
+)
 public class SMSPlugin extends Plugin {
 
     /**
@@ -82,7 +91,7 @@ public class SMSPlugin extends Plugin {
      *   ...
      * ]
      */
-    private final static String PACKET_TYPE_SMS_MESSAGE = "kdeconnect.sms.messages";
+    public final static String PACKET_TYPE_SMS_MESSAGE = "kdeconnect.sms.messages";
 
     /**
      * Packet sent to request a message be sent
@@ -96,14 +105,14 @@ public class SMSPlugin extends Plugin {
      * "messageBody": "Hi mom!"
      * }
      */
-    private final static String PACKET_TYPE_SMS_REQUEST = "kdeconnect.sms.request";
+    public final static String PACKET_TYPE_SMS_REQUEST = "kdeconnect.sms.request";
 
     /**
      * Packet sent to request the most-recent message in each conversations on the device
      * <p>
      * The request packet shall contain no body
      */
-    private final static String PACKET_TYPE_SMS_REQUEST_CONVERSATIONS = "kdeconnect.sms.request_conversations";
+    public final static String PACKET_TYPE_SMS_REQUEST_CONVERSATIONS = "kdeconnect.sms.request_conversations";
 
     /**
      * Packet sent to request all the messages in a particular conversation
@@ -112,7 +121,7 @@ public class SMSPlugin extends Plugin {
      * For example:
      * { "threadID": 203 }
      */
-    private final static String PACKET_TYPE_SMS_REQUEST_CONVERSATION = "kdeconnect.sms.request_conversation";
+    public final static String PACKET_TYPE_SMS_REQUEST_CONVERSATION = "kdeconnect.sms.request_conversation";
 
     private static final String KEY_PREF_BLOCKED_NUMBERS = "telephony_blocked_numbers";
 
@@ -206,7 +215,7 @@ public class SMSPlugin extends Plugin {
             mostRecentTimestampLock.unlock();
 
             // Send the alert about the update
-            device.sendPacket(constructBulkMessagePacket(messages));
+            device.sendPacket(SMSHelper.constructBulkMessagePacket(PACKET_TYPE_SMS_MESSAGE, messages));
         }
     }
 
@@ -282,16 +291,6 @@ public class SMSPlugin extends Plugin {
         return true;
     }
 
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_telepathy);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_telepathy_desc);
-    }
-
     @Override
     public boolean onPacketReceived(NetworkPacket np) {
 
@@ -329,35 +328,6 @@ public class SMSPlugin extends Plugin {
         return true;
     }
 
-    /**
-     * Construct a proper packet of PACKET_TYPE_SMS_MESSAGE from the passed messages
-     *
-     * @param messages Messages to include in the packet
-     * @return NetworkPacket of type PACKET_TYPE_SMS_MESSAGE
-     */
-    private static NetworkPacket constructBulkMessagePacket(Collection<SMSHelper.Message> messages) {
-        NetworkPacket reply = new NetworkPacket(PACKET_TYPE_SMS_MESSAGE);
-
-        JSONArray body = new JSONArray();
-
-        for (SMSHelper.Message message : messages) {
-            try {
-                JSONObject json = message.toJSONObject();
-
-                json.put("event", SMSHelper.Message.TEXT_MESSAGE);
-
-                body.put(json);
-            } catch (JSONException e) {
-                Log.e("Conversations", "Error serializing message");
-            }
-        }
-
-        reply.set("messages", body);
-        reply.set("event", "batch_messages");
-
-        return reply;
-    }
-
     /**
      * Respond to a request for all conversations
      * <p>
@@ -376,7 +346,7 @@ public class SMSPlugin extends Plugin {
         }
         mostRecentTimestampLock.unlock();
 
-        NetworkPacket reply = constructBulkMessagePacket(conversations.values());
+        NetworkPacket reply = SMSHelper.constructBulkMessagePacket(PACKET_TYPE_SMS_MESSAGE, conversations.values());
 
         device.sendPacket(reply);
 
@@ -388,7 +358,7 @@ public class SMSPlugin extends Plugin {
 
         List<SMSHelper.Message> conversation = SMSHelper.getMessagesInThread(this.context, threadID);
 
-        NetworkPacket reply = constructBulkMessagePacket(conversation);
+        NetworkPacket reply = SMSHelper.constructBulkMessagePacket(PACKET_TYPE_SMS_MESSAGE, conversation);
 
         device.sendPacket(reply);
 
@@ -407,22 +377,6 @@ public class SMSPlugin extends Plugin {
         return false;
     }
 
-
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{
-                PACKET_TYPE_SMS_REQUEST,
-                TelephonyPlugin.PACKET_TYPE_TELEPHONY_REQUEST,
-                PACKET_TYPE_SMS_REQUEST_CONVERSATIONS,
-                PACKET_TYPE_SMS_REQUEST_CONVERSATION
-        };
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_SMS_MESSAGE};
-    }
-
     @Override
     public String[] getRequiredPermissions() {
         return new String[]{Manifest.permission.SEND_SMS};
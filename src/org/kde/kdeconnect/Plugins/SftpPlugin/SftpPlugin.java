@@ -27,29 +27,26 @@ import android.os.Environment;
 import org.kde.kdeconnect.Helpers.StorageHelper;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_sftp,
+        description = R.string.pref_plugin_sftp_desc,
+        supportedPacketTypes = {SftpPlugin.PACKET_TYPE_SFTP_REQUEST},
+        outgoingPacketTypes = {SftpPlugin.PACKET_TYPE_SFTP}
+)
 public class SftpPlugin extends Plugin {
 
-    private final static String PACKET_TYPE_SFTP = "kdeconnect.sftp";
-    private final static String PACKET_TYPE_SFTP_REQUEST = "kdeconnect.sftp.request";
+    public final static String PACKET_TYPE_SFTP = "kdeconnect.sftp";
+    public final static String PACKET_TYPE_SFTP_REQUEST = "kdeconnect.sftp.request";
 
     private static final SimpleSftpServer server = new SimpleSftpServer();
 
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_sftp);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_sftp_desc);
-    }
-
     @Override
     public boolean onCreate() {
         permissionExplanation = R.string.sftp_permission_explanation;
@@ -143,15 +140,4 @@ public class SftpPlugin extends Plugin {
             return new String[0];
         }
     }
-
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_SFTP_REQUEST};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_SFTP};
-    }
-
 }
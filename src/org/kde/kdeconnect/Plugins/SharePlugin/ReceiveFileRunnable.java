@@ -23,8 +23,9 @@ package org.kde.kdeconnect.Plugins.SharePlugin;
 import android.os.Handler;
 import android.os.Looper;
 
+import org.kde.kdeconnect.Helpers.TransferHelper;
+
 import java.io.IOException;
-import java.io.InputStream;
 
 public class ReceiveFileRunnable implements Runnable {
     interface CallBack {
@@ -46,33 +47,16 @@ public class ReceiveFileRunnable implements Runnable {
     @Override
     public void run() {
         try {
-            byte data[] = new byte[4096];
-            long received = 0, prevProgressPercentage = 0;
-            int count;
-
             callBack.onProgress(info, 0);
 
-            InputStream inputStream = info.payload.getInputStream();
-
-            while ((count = inputStream.read(data)) >= 0) {
-                received += count;
-
-                if (received > info.fileSize) {
-                    break;
-                }
-
-                info.outputStream.write(data, 0, count);
-                if (info.fileSize > 0) {
-                    long progressPercentage = (received * 100 / info.fileSize);
-                    if (progressPercentage != prevProgressPercentage) {
-                        prevProgressPercentage = progressPercentage;
-                        handler.post(() -> callBack.onProgress(info, (int)progressPercentage));
-                    }
-                }
-                //else Log.e("SharePlugin", "Infinite loop? :D");
-            }
-
-            info.outputStream.flush();
+            //Reads exactly fileSize bytes, straight into the file when the payload comes from an unencrypted socket
+            long received = TransferHelper.copy(info.payload.getInputStream(), info.payload.getChannel(),
+                    info.outputStream, TransferHelper.getChannel(info.outputStream), info.fileSize, transferred -> {
+                        if (info.fileSize > 0) {
+                            int progressPercentage = (int) (transferred * 100 / info.fileSize);
+                            handler.post(() -> callBack.onProgress(info, progressPercentage));
+                        }
+                    });
 
             if (received != info.fileSize) {
                 throw new RuntimeException("Received:" + received + " bytes, expected: " + info.fileSize + " bytes");
@@ -32,7 +32,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.database.Cursor;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -41,7 +40,6 @@ import android.os.Looper;
 import android.provider.MediaStore;
 import android.support.annotation.WorkerThread;
 import android.support.v4.app.NotificationCompat;
-import android.support.v4.content.ContextCompat;
 import android.support.v4.content.FileProvider;
 import android.support.v4.provider.DocumentFile;
 import android.util.Log;
@@ -52,10 +50,10 @@ import org.kde.kdeconnect.Helpers.MediaStoreHelper;
 import org.kde.kdeconnect.Helpers.NotificationHelper;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect.UserInterface.DeviceSettingsActivity;
 import org.kde.kdeconnect_tp.R;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
@@ -64,9 +62,17 @@ import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_sharereceiver,
+        description = R.string.pref_plugin_sharereceiver_desc,
+        icon = R.drawable.share_plugin_action,
+        hasSettings = true,
+        supportedPacketTypes = {SharePlugin.PACKET_TYPE_SHARE_REQUEST},
+        outgoingPacketTypes = {SharePlugin.PACKET_TYPE_SHARE_REQUEST}
+)
 public class SharePlugin extends Plugin implements ReceiveFileRunnable.CallBack {
 
-    private final static String PACKET_TYPE_SHARE_REQUEST = "kdeconnect.share.request";
+    public final static String PACKET_TYPE_SHARE_REQUEST = "kdeconnect.share.request";
 
     private final static boolean openUrlsDirectly = true;
     private ShareNotification shareNotification;
@@ -86,21 +92,6 @@ public class SharePlugin extends Plugin implements ReceiveFileRunnable.CallBack
         return true;
     }
 
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_sharereceiver);
-    }
-
-    @Override
-    public Drawable getIcon() {
-        return ContextCompat.getDrawable(context, R.drawable.share_plugin_action);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_sharereceiver_desc);
-    }
-
     @Override
     public boolean hasMainActivity() {
         return true;
@@ -118,11 +109,6 @@ public class SharePlugin extends Plugin implements ReceiveFileRunnable.CallBack
         parentActivity.startActivity(intent);
     }
 
-    @Override
-    public boolean hasSettings() {
-        return true;
-    }
-
     @Override
     @WorkerThread
     public boolean onPacketReceived(NetworkPacket np) {
@@ -132,6 +118,9 @@ public class SharePlugin extends Plugin implements ReceiveFileRunnable.CallBack
                     receiveFile(np);
                 } else {
                     Log.i("SharePlugin", "no Permission for Storage");
+                    if (np.hasPayload()) {
+                        np.getPayload().close();
+                    }
                 }
 
             } else if (np.has("text")) {
@@ -248,6 +237,9 @@ public class SharePlugin extends Plugin implements ReceiveFileRunnable.CallBack
         }
 
         if (info.fileDocument == null) {
+            if (info.payload != null) {
+                info.payload.close();
+            }
             onError(info, new RuntimeException(context.getString(R.string.cannot_create_file, filename)));
             return;
         }
@@ -257,9 +249,11 @@ public class SharePlugin extends Plugin implements ReceiveFileRunnable.CallBack
 
         if (np.hasPayload()) {
             try {
-                info.outputStream = new BufferedOutputStream(context.getContentResolver().openOutputStream(info.fileDocument.getUri()));
+                //Not buffered: it's a FileOutputStream, so the payload can be written to it through its channel
+                info.outputStream = context.getContentResolver().openOutputStream(info.fileDocument.getUri());
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
+                info.payload.close();
                 return;
             }
 
@@ -443,16 +437,6 @@ public class SharePlugin extends Plugin implements ReceiveFileRunnable.CallBack
 
     }
 
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_SHARE_REQUEST};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_SHARE_REQUEST};
-    }
-
     @Override
     public String[] getOptionalPermissions() {
         return new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE};
@@ -25,17 +25,23 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 
-
+@PluginMetadata(
+        displayName = R.string.pref_plugin_systemvolume,
+        description = R.string.pref_plugin_systemvolume_desc,
+        supportedPacketTypes = {SystemvolumePlugin.PACKET_TYPE_SYSTEMVOLUME},
+        outgoingPacketTypes = {SystemvolumePlugin.PACKET_TYPE_SYSTEMVOLUME_REQUEST}
+)
 public class SystemvolumePlugin extends Plugin {
 
-    private final static String PACKET_TYPE_SYSTEMVOLUME = "kdeconnect.systemvolume";
-    private final static String PACKET_TYPE_SYSTEMVOLUME_REQUEST = "kdeconnect.systemvolume.request";
+    public final static String PACKET_TYPE_SYSTEMVOLUME = "kdeconnect.systemvolume";
+    public final static String PACKET_TYPE_SYSTEMVOLUME_REQUEST = "kdeconnect.systemvolume.request";
 
     public interface SinkListener {
         void sinksChanged();
@@ -49,16 +55,6 @@ public class SystemvolumePlugin extends Plugin {
         listeners = new ArrayList<>();
     }
 
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_systemvolume);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_systemvolume_desc);
-    }
-
     @Override
     public boolean onPacketReceived(NetworkPacket np) {
 
@@ -125,16 +121,6 @@ public class SystemvolumePlugin extends Plugin {
         return false;
     }
 
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{PACKET_TYPE_SYSTEMVOLUME};
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{PACKET_TYPE_SYSTEMVOLUME_REQUEST};
-    }
-
     Collection<Sink> getSinks() {
         return sinks.values();
     }
@@ -38,12 +38,24 @@ import android.util.Log;
 import org.kde.kdeconnect.Helpers.ContactsHelper;
 import org.kde.kdeconnect.NetworkPacket;
 import org.kde.kdeconnect.Plugins.Plugin;
+import org.kde.kdeconnect.Plugins.PluginMetadata;
 import org.kde.kdeconnect_tp.R;
 
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
+@PluginMetadata(
+        displayName = R.string.pref_plugin_telephony,
+        description = R.string.pref_plugin_telephony_desc,
+        hasSettings = true,
+        loadsEagerly = true, //Reports calls and messages as they come in
+        supportedPacketTypes = {
+                TelephonyPlugin.PACKET_TYPE_TELEPHONY_REQUEST,
+                TelephonyPlugin.PACKET_TYPE_TELEPHONY_REQUEST_MUTE
+        },
+        outgoingPacketTypes = {TelephonyPlugin.PACKET_TYPE_TELEPHONY}
+)
 public class TelephonyPlugin extends Plugin {
 
 
@@ -93,7 +105,7 @@ public class TelephonyPlugin extends Plugin {
      * <p>
      * The body should be empty
      */
-    private final static String PACKET_TYPE_TELEPHONY_REQUEST_MUTE = "kdeconnect.telephony.request_mute";
+    public final static String PACKET_TYPE_TELEPHONY_REQUEST_MUTE = "kdeconnect.telephony.request_mute";
 
     private static final String KEY_PREF_BLOCKED_NUMBERS = "telephony_blocked_numbers";
     private int lastState = TelephonyManager.CALL_STATE_IDLE;
@@ -131,16 +143,6 @@ public class TelephonyPlugin extends Plugin {
         }
     };
 
-    @Override
-    public String getDisplayName() {
-        return context.getResources().getString(R.string.pref_plugin_telephony);
-    }
-
-    @Override
-    public String getDescription() {
-        return context.getResources().getString(R.string.pref_plugin_telephony_desc);
-    }
-
     private void callBroadcastReceived(int state, String phoneNumber) {
 
         if (isNumberBlocked(phoneNumber))
@@ -294,21 +296,6 @@ public class TelephonyPlugin extends Plugin {
         return false;
     }
 
-    @Override
-    public String[] getSupportedPacketTypes() {
-        return new String[]{
-                PACKET_TYPE_TELEPHONY_REQUEST,
-                PACKET_TYPE_TELEPHONY_REQUEST_MUTE,
-        };
-    }
-
-    @Override
-    public String[] getOutgoingPacketTypes() {
-        return new String[]{
-                PACKET_TYPE_TELEPHONY
-        };
-    }
-
     @Override
     public String[] getRequiredPermissions() {
         return new String[]{Manifest.permission.READ_PHONE_STATE, Manifest.permission.READ_SMS};
@@ -318,9 +305,4 @@ public class TelephonyPlugin extends Plugin {
     public String[] getOptionalPermissions() {
         return new String[]{Manifest.permission.READ_CONTACTS};
     }
-
-    @Override
-    public boolean hasSettings() {
-        return true;
-    }
 }
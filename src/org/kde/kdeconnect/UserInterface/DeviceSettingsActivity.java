@@ -20,13 +20,22 @@
 
 package org.kde.kdeconnect.UserInterface;
 
+import android.app.AlertDialog;
 import android.os.Bundle;
+import android.preference.Preference;
 import android.preference.PreferenceScreen;
 import android.view.MenuItem;
+import android.widget.Toast;
 
 import org.kde.kdeconnect.BackgroundService;
 import org.kde.kdeconnect.Device;
+import org.kde.kdeconnect.Helpers.StringsHelper;
+import org.kde.kdeconnect_tp.R;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 public class DeviceSettingsActivity extends AppCompatPreferenceActivity {
@@ -55,9 +64,49 @@ public class DeviceSettingsActivity extends AppCompatPreferenceActivity {
                 PluginPreference pref = new PluginPreference(DeviceSettingsActivity.this, pluginKey, device);
                 preferenceScreen.addPreference(pref);
             }
+
+            Preference metrics = new Preference(DeviceSettingsActivity.this);
+            metrics.setTitle(R.string.device_metrics);
+            metrics.setSummary(R.string.device_metrics_summary);
+            metrics.setOnPreferenceClickListener(preference -> {
+                showMetrics(device);
+                return true;
+            });
+            preferenceScreen.addPreference(metrics);
         });
     }
 
+    private void showMetrics(final Device device) {
+        String metrics = device.getMetricsReport();
+        BackgroundService service = BackgroundService.getInstance();
+        if (service != null) {
+            metrics += service.getStartupTrace().toString();
+        }
+        final String report = metrics;
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.device_metrics);
+        builder.setMessage(report);
+        builder.setPositiveButton(R.string.ok, (dialog, id) -> dialog.dismiss());
+        builder.setNeutralButton(R.string.device_metrics_save, (dialog, id) -> saveMetrics(device, report));
+        builder.create().show();
+    }
+
+    //Saved in the app's external files dir, so it can be pulled with adb without root
+    private void saveMetrics(Device device, String report) {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        File file = new File(dir, "metrics-" + device.getDeviceId() + ".txt");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(report.getBytes(StringsHelper.UTF8));
+            Toast.makeText(this, getString(R.string.device_metrics_saved, file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Toast.makeText(this, R.string.device_metrics_save_failed, Toast.LENGTH_SHORT).show();
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         //ActionBar's back button
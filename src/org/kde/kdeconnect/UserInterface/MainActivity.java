@@ -384,7 +384,7 @@ public class MainActivity extends AppCompatActivity {
                     String newDeviceName = deviceNameEdit.getText().toString();
                     DeviceHelper.setDeviceName(this, newDeviceName);
                     this.updateDeviceNameFromMenu(newDeviceName);
-                    BackgroundService.RunCommand(this, BackgroundService::onNetworkChange);
+                    BackgroundService.RunCommandInBackground(this, BackgroundService::onNetworkChange);
                     for (NameChangeCallback callback : nameChangeSubscribers) {
                         callback.onNameChanged(newDeviceName);
                     }
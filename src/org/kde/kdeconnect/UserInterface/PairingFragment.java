@@ -97,7 +97,7 @@ public class PairingFragment extends Fragment implements PairingDeviceItem.Callb
 
     private void updateComputerListAction() {
         updateComputerList();
-        BackgroundService.RunCommand(mActivity, BackgroundService::onNetworkChange);
+        BackgroundService.RunCommandInBackground(mActivity, BackgroundService::onNetworkChange);
         mSwipeRefreshLayout.setRefreshing(true);
         new Thread(() -> {
             try {
@@ -23,11 +23,11 @@ class PluginPreference extends CheckBoxPreference {
         this.pluginKey = pluginKey;
 
         PluginFactory.PluginInfo info = PluginFactory.getPluginInfo(activity, pluginKey);
-        setTitle(info.getDisplayName());
-        setSummary(info.getDescription());
+        Plugin plugin = device.getPlugin(pluginKey, true);
+        setTitle(plugin != null ? plugin.getDisplayName() : info.getDisplayName(activity)); //Some plugins change their name at runtime
+        setSummary(info.getDescription(activity));
         setChecked(device.isPluginEnabled(pluginKey));
 
-        Plugin plugin = device.getPlugin(pluginKey, true);
         if (info.hasSettings() && plugin != null) {
             this.listener = v -> {
                 Plugin plugin1 = device.getPlugin(pluginKey, true);
@@ -12,6 +12,7 @@ import android.support.v7.preference.SwitchPreferenceCompat;
 import android.support.v7.preference.TwoStatePreference;
 
 import org.kde.kdeconnect.BackgroundService;
+import org.kde.kdeconnect.Backends.LanBackend.LanLinkProvider;
 import org.kde.kdeconnect.Helpers.DeviceHelper;
 import org.kde.kdeconnect.Helpers.NotificationHelper;
 import org.kde.kdeconnect_tp.R;
@@ -93,6 +94,19 @@ public class SettingsFragment extends PreferenceFragmentCompat implements MainAc
         });
         screen.addPreference(notificationSwitch);
 
+        // Experimental NIO backend for LAN connections
+        final TwoStatePreference nioSwitch = new SwitchPreferenceCompat(context);
+        nioSwitch.setPersistent(false);
+        nioSwitch.setChecked(prefs.getBoolean(LanLinkProvider.KEY_NIO_BACKEND_PREFERENCE, false));
+        nioSwitch.setTitle(R.string.settings_nio_backend);
+        nioSwitch.setSummary(R.string.settings_nio_backend_description);
+        nioSwitch.setOnPreferenceChangeListener((preference, newValue) -> {
+            prefs.edit().putBoolean(LanLinkProvider.KEY_NIO_BACKEND_PREFERENCE, (Boolean)newValue).apply();
+            BackgroundService.RunCommand(context, BackgroundService::restartLinkProviders);
+            return true;
+        });
+        screen.addPreference(nioSwitch);
+
         // More settings text
         Preference moreSettingsText = new Preference(context);
         moreSettingsText.setPersistent(false);
@@ -0,0 +1,116 @@
+package org.kde.kdeconnect;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.kde.kdeconnect.Backends.BluetoothBackend.BluetoothLink;
+import org.kde.kdeconnect.Backends.BluetoothBackend.BluetoothLinkProvider;
+import org.kde.kdeconnect.Backends.PayloadMultiplexer;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends multiplexed payloads between two BluetoothLinks. A pair of connected TCP sockets stands
+ * in for the RFCOMM connection, which is also a plain stream, and the throughput is logged.
+ */
+class BluetoothLinkTest extends AndroidTestCase {
+
+    private static final String PACKET_TYPE = "kdeconnect.bluetoothtest";
+    private static final int PAYLOADS = 32;
+    private static final int PAYLOAD_SIZE = 256 * 1024;
+
+    private Socket socketA;
+    private Socket socketB;
+    private BluetoothLink linkFromA;
+    private BluetoothLink linkFromB;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            socketA = new Socket(server.getInetAddress(), server.getLocalPort());
+            socketB = server.accept();
+        }
+
+        BluetoothLinkProvider linkProvider = Mockito.mock(BluetoothLinkProvider.class);
+        Mockito.when(linkProvider.getName()).thenReturn("BluetoothLinkProvider");
+
+        NetworkPacket identity = new NetworkPacket(NetworkPacket.PACKET_TYPE_IDENTITY);
+        identity.set(PayloadMultiplexer.CAPABILITY, true);
+
+        linkFromA = new BluetoothLink(getContext(), null, socketA.getInputStream(), socketA.getOutputStream(), "testDeviceB", linkProvider);
+        linkFromB = new BluetoothLink(getContext(), null, socketB.getInputStream(), socketB.getOutputStream(), "testDeviceA", linkProvider);
+        linkFromA.setTransferCapabilities(identity);
+        linkFromB.setTransferCapabilities(identity);
+        linkFromA.setPaired(true);
+        linkFromB.setPaired(true);
+        linkFromA.startListening();
+        linkFromB.startListening();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        linkFromA.disconnect();
+        linkFromB.disconnect();
+        socketA.close();
+        socketB.close();
+        super.tearDown();
+    }
+
+    public void testMultiplexedPayloadThroughput() throws Exception {
+        final AtomicLong bytesReceived = new AtomicLong();
+        final CountDownLatch received = new CountDownLatch(PAYLOADS);
+        linkFromB.addPacketReceiver(np -> {
+            if (!np.getType().equals(PACKET_TYPE) || !np.hasPayload()) {
+                return;
+            }
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream stream = np.getPayload().getInputStream()) {
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    bytesReceived.addAndGet(read);
+                }
+            } catch (IOException e) {
+                Log.e("BluetoothLinkTest", "Payload failed", e);
+            }
+            received.countDown();
+        });
+
+        final CountDownLatch sent = new CountDownLatch(PAYLOADS);
+        Device.SendPacketStatusCallback callback = new Device.SendPacketStatusCallback() {
+            @Override
+            public void onSuccess() {
+                sent.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                Log.e("BluetoothLinkTest", "Send failed", e);
+            }
+        };
+
+        byte[] data = new byte[PAYLOAD_SIZE];
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < PAYLOADS; i++) {
+            NetworkPacket np = new NetworkPacket(PACKET_TYPE);
+            np.setPayload(new NetworkPacket.Payload(data));
+            assertTrue(linkFromA.enqueuePacket(np, callback, null)); //Up to the size of the payload lane
+        }
+        assertTrue(received.await(60, TimeUnit.SECONDS));
+        long tookNanos = System.nanoTime() - startedAt;
+
+        assertTrue(sent.await(10, TimeUnit.SECONDS));
+        assertEquals((long) PAYLOADS * PAYLOAD_SIZE, bytesReceived.get());
+        Log.i("BluetoothLinkTest", PAYLOADS + " payloads of " + (PAYLOAD_SIZE / 1024) + "KB: "
+                + (bytesReceived.get() * 1000000000L / tookNanos / (1024 * 1024)) + " MB/s");
+    }
+}
@@ -30,6 +30,8 @@ import org.kde.kdeconnect.Backends.BasePairingHandler;
 import org.kde.kdeconnect.Backends.LanBackend.LanLink;
 import org.kde.kdeconnect.Backends.LanBackend.LanLinkProvider;
 import org.kde.kdeconnect.Backends.LanBackend.LanPairingHandler;
+import org.kde.kdeconnect.Backends.LoopbackBackend.LoopbackLink;
+import org.kde.kdeconnect.Backends.LoopbackBackend.LoopbackLinkProvider;
 import org.mockito.Mockito;
 import org.spongycastle.asn1.x500.X500NameBuilder;
 import org.spongycastle.asn1.x500.style.BCStyle;
@@ -264,6 +266,33 @@ class DeviceTest extends AndroidTestCase {
         settings.edit().clear().apply();
     }
 
+    // Logs how long the plugins take to be ready after connecting, with and without deferring their creation
+    public void testConnectToReady() {
+
+        NetworkPacket identityPacket = NetworkPacket.createIdentityPacket(getContext());
+        identityPacket.set("deviceId", "testDevice");
+
+        long[] readyMillis = new long[2];
+        int[] pluginCount = new int[2];
+        try {
+            for (int lazy = 0; lazy < 2; lazy++) {
+                Device.loadPluginsLazily = (lazy == 1);
+                Device device = new Device(getContext(), "testDevice");
+                LoopbackLink link = new LoopbackLink(getContext(), new LoopbackLinkProvider(getContext()));
+                device.addLink(identityPacket, link);
+                readyMillis[lazy] = device.getPluginsReadyMillis();
+                pluginCount[lazy] = device.getLoadedPlugins().size(); //Creates the deferred ones
+                device.removeLink(link);
+            }
+        } finally {
+            Device.loadPluginsLazily = true;
+        }
+
+        assertEquals(pluginCount[0], pluginCount[1]);
+        Log.i("DeviceTest", "Plugins ready after " + readyMillis[0] + "ms creating them all, "
+                + readyMillis[1] + "ms deferring them");
+    }
+
     public void testUnpair() {
 
         Device device = new Device(getContext(), "testDevice");
@@ -0,0 +1,98 @@
+package org.kde.kdeconnect;
+
+import android.test.AndroidTestCase;
+
+import org.kde.kdeconnect.Backends.FrameDecoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+class FrameDecoderTest extends AndroidTestCase {
+
+    //Returns at most maxRead bytes per read, like a socket where data arrives in small pieces
+    private static class TrickleInputStream extends InputStream {
+        private final InputStream in;
+        private final int maxRead;
+
+        TrickleInputStream(byte[] data, int maxRead) {
+            this.in = new ByteArrayInputStream(data);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, Math.min(len, maxRead));
+        }
+    }
+
+    private static class Collector implements FrameDecoder.Listener {
+        final ArrayList<String> frames = new ArrayList<>();
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        FrameDecoder decoder;
+        int rawAfterEachFrame = 0;
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            frames.add(new String(buffer, offset, length, Charset.forName("UTF-8")));
+            decoder.expectRawBytes(rawAfterEachFrame);
+        }
+
+        @Override
+        public void onRawData(byte[] buffer, int offset, int length) {
+            raw.write(buffer, offset, length);
+        }
+    }
+
+    private static void readAll(FrameDecoder decoder, InputStream stream, Collector collector) throws IOException {
+        collector.decoder = decoder;
+        while (decoder.readFrom(stream, collector)) {
+        }
+    }
+
+    public void testFramesSplitInManyReads() throws Exception {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            big.append((char) ('a' + i % 26));
+        }
+        String data = "{\"a\":1}\n\r\n\n{\"b\":\"\u00fc\"}\r\n" + big + "\n";
+
+        Collector collector = new Collector();
+        readAll(new FrameDecoder(), new TrickleInputStream(data.getBytes(Charset.forName("UTF-8")), 7), collector);
+
+        assertEquals(3, collector.frames.size());
+        assertEquals("{\"a\":1}", collector.frames.get(0));
+        assertEquals("{\"b\":\"\u00fc\"}\r", collector.frames.get(1));
+        assertEquals(big.toString(), collector.frames.get(2));
+    }
+
+    public void testRawBytesAfterFrame() throws Exception {
+        Collector collector = new Collector();
+        collector.rawAfterEachFrame = 5;
+        readAll(new FrameDecoder(), new TrickleInputStream("one\n12\n45two\nabcde".getBytes(Charset.forName("UTF-8")), 3), collector);
+
+        assertEquals(2, collector.frames.size());
+        assertEquals("one", collector.frames.get(0));
+        assertEquals("two", collector.frames.get(1));
+        assertEquals("12\n45abcde", collector.raw.toString("UTF-8"));
+    }
+
+    public void testFrameTooBig() throws Exception {
+        byte[] data = new byte[100 * 1024];
+        Collector collector = new Collector();
+        try {
+            readAll(new FrameDecoder(64 * 1024), new ByteArrayInputStream(data), collector);
+            fail("A frame bigger than the maximum should have failed");
+        } catch (IOException expected) {
+        }
+        assertTrue(collector.frames.isEmpty());
+    }
+}
@@ -23,7 +23,6 @@ package org.kde.kdeconnect;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.kde.kdeconnect.Backends.LanBackend.LanLink;
 import org.kde.kdeconnect.Backends.LanBackend.LanLinkProvider;
@@ -61,6 +60,7 @@ class LanLinkTest extends AndroidTestCase {
         goodOutputStream = Mockito.mock(OutputStream.class);
         badOutputStream = Mockito.mock(OutputStream.class);
         Mockito.doThrow(new IOException("AAA")).when(badOutputStream).write(Mockito.any(byte[].class));
+        Mockito.doThrow(new IOException("AAA")).when(badOutputStream).write(Mockito.any(byte[].class), Mockito.anyInt(), Mockito.anyInt());
 
 
         Socket socketMock = Mockito.mock(Socket.class);
@@ -75,26 +75,34 @@ class LanLinkTest extends AndroidTestCase {
         badLanLink = new LanLink(getContext(), "testDevice", linkProvider, socketBadMock, LanLink.ConnectionStarted.Remotely);
     }
 
-    public void testSendPacketSuccess() throws JSONException {
+    private void mockSerialize(NetworkPacket np, String serialized) throws Exception {
+        Mockito.when(np.serialize()).thenReturn(serialized);
+        Mockito.doAnswer(invocationOnMock -> {
+            ((OutputStream) invocationOnMock.getArguments()[0]).write(serialized.getBytes());
+            return null;
+        }).when(np).serialize(Mockito.any(OutputStream.class));
+    }
+
+    public void testSendPacketSuccess() throws Exception {
 
         NetworkPacket testPacket = Mockito.mock(NetworkPacket.class);
         Mockito.when(testPacket.getType()).thenReturn("kdeconnect.test");
         Mockito.when(testPacket.getBoolean("isTesting")).thenReturn(true);
         Mockito.when(testPacket.getString("testName")).thenReturn("testSendPacketSuccess");
-        Mockito.when(testPacket.serialize()).thenReturn("{\"id\":123,\"type\":\"kdeconnect.test\",\"body\":{\"isTesting\":true,\"testName\":\"testSendPacketSuccess\"}}");
+        mockSerialize(testPacket, "{\"id\":123,\"type\":\"kdeconnect.test\",\"body\":{\"isTesting\":true,\"testName\":\"testSendPacketSuccess\"}}");
 
         goodLanLink.sendPacket(testPacket, callback);
 
         Mockito.verify(callback).onSuccess();
     }
 
-    public void testSendPacketFail() throws JSONException {
+    public void testSendPacketFail() throws Exception {
 
         NetworkPacket testPacket = Mockito.mock(NetworkPacket.class);
         Mockito.when(testPacket.getType()).thenReturn("kdeconnect.test");
         Mockito.when(testPacket.getBoolean("isTesting")).thenReturn(true);
         Mockito.when(testPacket.getString("testName")).thenReturn("testSendPacketFail");
-        Mockito.when(testPacket.serialize()).thenReturn("{\"id\":123,\"type\":\"kdeconnect.test\",\"body\":{\"isTesting\":true,\"testName\":\"testSendPacketFail\"}}");
+        mockSerialize(testPacket, "{\"id\":123,\"type\":\"kdeconnect.test\",\"body\":{\"isTesting\":true,\"testName\":\"testSendPacketFail\"}}");
 
         badLanLink.sendPacket(testPacket, callback);
 
@@ -103,6 +111,23 @@ class LanLinkTest extends AndroidTestCase {
     }
 
 
+    public void testEnqueuePacket() throws Exception {
+
+        NetworkPacket testPacket = Mockito.mock(NetworkPacket.class);
+        Mockito.when(testPacket.getType()).thenReturn("kdeconnect.test");
+        mockSerialize(testPacket, "{\"id\":123,\"type\":\"kdeconnect.test\",\"body\":{}}");
+
+        assertTrue(goodLanLink.enqueuePacketBlocking(testPacket, callback, null));
+        Mockito.verify(callback).onSuccess();
+
+        NetworkPacket failingPacket = Mockito.mock(NetworkPacket.class);
+        Mockito.when(failingPacket.getType()).thenReturn("kdeconnect.test");
+        mockSerialize(failingPacket, "{\"id\":123,\"type\":\"kdeconnect.test\",\"body\":{}}");
+
+        assertFalse(badLanLink.enqueuePacketBlocking(failingPacket, callback, null));
+        Mockito.verify(callback).onFailure(Mockito.any(IOException.class));
+    }
+
     public void testSendPayload() throws Exception {
 
         class Downloader extends Thread {
@@ -194,6 +219,10 @@ class LanLinkTest extends AndroidTestCase {
         Mockito.when(sharePacket.hasPayload()).thenReturn(true);
         Mockito.when(sharePacket.hasPayloadTransferInfo()).thenReturn(true);
         Mockito.doAnswer(invocationOnMock -> sharePacketJson.toString()).when(sharePacket).serialize();
+        Mockito.doAnswer(invocationOnMock -> {
+            ((OutputStream) invocationOnMock.getArguments()[0]).write(sharePacketJson.toString().getBytes());
+            return null;
+        }).when(sharePacket).serialize(Mockito.any(OutputStream.class));
         Mockito.when(sharePacket.getPayload()).thenReturn(new ByteArrayInputStream(data));
         Mockito.when(sharePacket.getPayloadSize()).thenReturn((long) data.length);
         Mockito.doAnswer(invocationOnMock -> sharePacketJson.getJSONObject("payloadTransferInfo")).when(sharePacket).getPayloadTransferInfo();
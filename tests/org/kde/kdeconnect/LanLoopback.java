@@ -0,0 +1,111 @@
+package org.kde.kdeconnect;
+
+import android.content.Context;
+import android.util.Base64;
+
+import org.kde.kdeconnect.Backends.LanBackend.LanLink;
+import org.kde.kdeconnect.Backends.LanBackend.LanLinkProvider;
+import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.FutureTask;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Two {@link LanLink}s connected to each other over 127.0.0.1, as if we had found ourselves on
+ * the network under two different device ids, A and B. Unlike LoopbackLink, packets go through
+ * the real LanLink code: the socket, TLS and the payload connections. So it can be used to
+ * measure the whole LAN stack without a second device.
+ * <p>
+ * Both ends use our own keys and certificate, and trust each other as paired devices do.
+ * SslHelper.initialiseCertificate() has to have been called.
+ */
+class LanLoopback implements Closeable {
+
+    private final NetworkPacket identityA;
+    private final NetworkPacket identityB;
+    private final LanLink linkFromA; //A's link to B
+    private final LanLink linkFromB; //B's link to A
+
+    private LanLoopback(NetworkPacket identityA, NetworkPacket identityB, LanLink linkFromA, LanLink linkFromB) {
+        this.identityA = identityA;
+        this.identityB = identityB;
+        this.linkFromA = linkFromA;
+        this.linkFromB = linkFromB;
+    }
+
+    static LanLoopback open(Context context, String deviceIdA, String deviceIdB) throws Exception {
+        LanLinkProvider linkProvider = new LanLinkProvider(context); //Never started, only gets told about disconnections
+        String certificate = Base64.encodeToString(SslHelper.certificate.getEncoded(), 0);
+        NetworkPacket identityA = createIdentityPacket(context, linkProvider, deviceIdA, certificate);
+        NetworkPacket identityB = createIdentityPacket(context, linkProvider, deviceIdB, certificate);
+
+        Socket connected;
+        Socket accepted;
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            connected = new Socket(server.getInetAddress(), server.getLocalPort());
+            accepted = server.accept();
+        }
+
+        //Like in LanLinkProvider, whoever accepted the TCP connection is the TLS client
+        final SSLSocket sslFromA = SslHelper.convertToSslSocket(context, accepted, deviceIdB, true, true);
+        SSLSocket sslFromB = SslHelper.convertToSslSocket(context, connected, deviceIdA, true, false);
+        FutureTask<Void> handshake = new FutureTask<>(() -> {
+            sslFromA.startHandshake();
+            return null;
+        });
+        new Thread(handshake).start();
+        try {
+            sslFromB.startHandshake();
+            handshake.get();
+        } catch (Exception e) {
+            sslFromA.close();
+            sslFromB.close();
+            throw e;
+        }
+
+        LanLink linkFromA = new LanLink(context, deviceIdB, linkProvider, sslFromA, LanLink.ConnectionStarted.Locally);
+        LanLink linkFromB = new LanLink(context, deviceIdA, linkProvider, sslFromB, LanLink.ConnectionStarted.Remotely);
+        linkFromA.setTransferCapabilities(identityB);
+        linkFromB.setTransferCapabilities(identityA);
+        return new LanLoopback(identityA, identityB, linkFromA, linkFromB);
+    }
+
+    private static NetworkPacket createIdentityPacket(Context context, LanLinkProvider linkProvider, String deviceId, String certificate) {
+        //Our certificate is stored as theirs, which is what makes TLS succeed as between paired devices
+        context.getSharedPreferences(deviceId, Context.MODE_PRIVATE).edit().putString("certificate", certificate).apply();
+        SslHelper.invalidateSslContext(deviceId);
+
+        NetworkPacket identity = linkProvider.createIdentityPacket(); //With the transfer features of LanLink
+        identity.set("deviceId", deviceId);
+        identity.set("deviceName", identity.getString("deviceName") + " (" + deviceId + ")");
+        identity.set("certificate", certificate);
+        return identity;
+    }
+
+    public NetworkPacket getIdentityA() {
+        return identityA;
+    }
+
+    public NetworkPacket getIdentityB() {
+        return identityB;
+    }
+
+    public LanLink getLinkFromA() {
+        return linkFromA;
+    }
+
+    public LanLink getLinkFromB() {
+        return linkFromB;
+    }
+
+    @Override
+    public void close() {
+        linkFromA.disconnect();
+        linkFromB.disconnect();
+    }
+}
@@ -0,0 +1,131 @@
+package org.kde.kdeconnect;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.kde.kdeconnect.Backends.BaseLink;
+import org.kde.kdeconnect.Helpers.Histogram;
+import org.kde.kdeconnect.Helpers.SecurityHelpers.RsaHelper;
+import org.kde.kdeconnect.Helpers.SecurityHelpers.SslHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends packets and payloads between two Devices in this process, through real LanLinks
+ * connected over 127.0.0.1 with TLS, and logs how fast they went. Run it on the same phone
+ * before and after a change to the LAN backend to compare.
+ */
+class LanLoopbackTest extends AndroidTestCase {
+
+    private static final String PACKET_TYPE = "kdeconnect.loopbacktest";
+    private static final int PACKETS = 5000;
+    private static final int PAYLOADS = 16;
+
+    private LanLoopback loopback;
+    private Device deviceB; //B as seen from A, the packets are sent through it
+    private Device deviceA; //A as seen from B
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        RsaHelper.initialiseRsaKeys(getContext());
+        SslHelper.initialiseCertificate(getContext());
+
+        loopback = LanLoopback.open(getContext(), "loopbackTestA", "loopbackTestB");
+        deviceB = createDevice(loopback.getIdentityB(), loopback.getLinkFromA());
+        deviceA = createDevice(loopback.getIdentityA(), loopback.getLinkFromB());
+    }
+
+    private Device createDevice(NetworkPacket identity, BaseLink link) {
+        //No capabilities, so no plugins are loaded and we only measure the link
+        identity.set("incomingCapabilities", Collections.<String>emptySet());
+        identity.set("outgoingCapabilities", Collections.<String>emptySet());
+        Device device = new Device(getContext(), identity.getString("deviceId")); //Paired
+        device.addLink(identity, link);
+        return device;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        loopback.close();
+        for (String deviceId : new String[]{deviceA.getDeviceId(), deviceB.getDeviceId()}) {
+            getContext().getSharedPreferences(deviceId, Context.MODE_PRIVATE).edit().clear().apply();
+        }
+        super.tearDown();
+    }
+
+    public void testPacketThroughput() throws Exception {
+        final long[] sentAt = new long[PACKETS];
+        final Histogram latency = new Histogram(); //Microseconds
+        final CountDownLatch received = new CountDownLatch(PACKETS);
+        loopback.getLinkFromB().addPacketReceiver(np -> {
+            if (np.getType().equals(PACKET_TYPE)) {
+                latency.record((System.nanoTime() - sentAt[np.getInt("seq")]) / 1000);
+                received.countDown();
+            }
+        });
+
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < PACKETS; i++) {
+            NetworkPacket np = new NetworkPacket(PACKET_TYPE);
+            np.set("seq", i);
+            np.set("text", "Some text, about as long as a notification or a clipboard update");
+            sentAt[i] = System.nanoTime();
+            deviceB.sendPacket(np);
+        }
+        assertTrue(received.await(60, TimeUnit.SECONDS));
+        long tookNanos = System.nanoTime() - startedAt;
+
+        Log.i("LanLoopbackTest", PACKETS + " packets: " + (PACKETS * 1000000000L / tookNanos) + " packets/s, latency " + latency.toString("us"));
+        Log.i("LanLoopbackTest", deviceB.getMetricsReport());
+    }
+
+    public void testPayloadThroughput() throws Exception {
+        //Small payloads are multiplexed through the link, big ones get their own connection
+        payloadThroughput(64 * 1024);
+        payloadThroughput(4 * 1024 * 1024);
+    }
+
+    private void payloadThroughput(int payloadSize) throws Exception {
+        final AtomicLong bytesReceived = new AtomicLong();
+        final CountDownLatch received = new CountDownLatch(PAYLOADS);
+        BaseLink.PacketReceiver receiver = np -> {
+            if (!np.getType().equals(PACKET_TYPE) || !np.hasPayload()) {
+                return;
+            }
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream stream = np.getPayload().getInputStream()) {
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    bytesReceived.addAndGet(read);
+                }
+            } catch (IOException e) {
+                Log.e("LanLoopbackTest", "Payload failed", e);
+            }
+            received.countDown();
+        };
+        loopback.getLinkFromB().addPacketReceiver(receiver);
+
+        byte[] data = new byte[payloadSize];
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < PAYLOADS; i++) {
+            NetworkPacket np = new NetworkPacket(PACKET_TYPE);
+            np.setPayload(new NetworkPacket.Payload(data));
+            deviceB.sendPacket(np);
+        }
+        assertTrue(received.await(120, TimeUnit.SECONDS));
+        long tookNanos = System.nanoTime() - startedAt;
+        loopback.getLinkFromB().removePacketReceiver(receiver);
+
+        assertEquals((long) PAYLOADS * payloadSize, bytesReceived.get());
+        Log.i("LanLoopbackTest", PAYLOADS + " payloads of " + (payloadSize / 1024) + "KB: "
+                + (bytesReceived.get() * 1000000000L / tookNanos / (1024 * 1024)) + " MB/s");
+    }
+}
@@ -24,9 +24,11 @@ import android.test.AndroidTestCase;
 import android.util.Log;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.kde.kdeconnect.Helpers.SecurityHelpers.RsaHelper;
 import org.skyscreamer.jsonassert.JSONAssert;
 
+import java.io.ByteArrayOutputStream;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
@@ -62,6 +64,85 @@ class NetworkPacketTest extends AndroidTestCase {
 
     }
 
+    public void testStreamingCodec() throws Exception {
+        NetworkPacket np = new NetworkPacket("com.test");
+        np.set("url", "file:///home/user/Music/a song.mp3");
+        np.set("text", "Quotes \" backslash \\ newline \n unicode \u00e9\u4e2d\uD83D\uDE00");
+        np.set("number", 42);
+        np.set("decimal", 2.5);
+        np.set("bool", true);
+        np.setPayload(new NetworkPacket.Payload(new byte[]{1, 2, 3}));
+        JSONObject payloadTransferInfo = new JSONObject();
+        payloadTransferInfo.put("port", 1739);
+        np.setPayloadTransferInfo(payloadTransferInfo);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        np.serialize(out);
+        String streamed = out.toString("UTF-8");
+        assertTrue(streamed.endsWith("\n"));
+        assertFalse(streamed.contains("\\/"));
+        JSONAssert.assertEquals(np.serialize(), streamed, true);
+
+        byte[] bytes = out.toByteArray();
+        NetworkPacket np2 = NetworkPacket.unserialize(bytes, 0, bytes.length);
+        assertEquals(np.getId(), np2.getId());
+        assertEquals(np.getType(), np2.getType());
+        assertEquals(np.getString("url"), np2.getString("url"));
+        assertEquals(np.getString("text"), np2.getString("text"));
+        assertEquals(42, np2.getInt("number"));
+        assertEquals(2.5, np2.getDouble("decimal"));
+        assertTrue(np2.getBoolean("bool"));
+        assertEquals(3, np2.getPayloadSize());
+        assertEquals(1739, np2.getPayloadTransferInfo().getInt("port"));
+        JSONAssert.assertEquals(np.serialize(), np2.serialize(), true);
+
+        //A payload of unknown size, eg: shared from a content provider that doesn't tell it
+        byte[] unknownSize = "{\"id\":1,\"type\":\"com.test\",\"body\":{},\"payloadSize\":-1,\"payloadTransferInfo\":{\"port\":1739}}\n".getBytes("UTF-8");
+        NetworkPacket np3 = NetworkPacket.unserialize(unknownSize, 0, unknownSize.length);
+        assertTrue(np3.hasPayload());
+        assertEquals(-1, np3.getPayloadSize());
+        assertEquals(1739, np3.getPayloadTransferInfo().getInt("port"));
+    }
+
+    public void testLazyBody() throws Exception {
+        String json = "{\"id\":123,\"type\":\"kdeconnect.sms.messages\",\"body\":{\"messages\":[{\"body\":\"}\\\"{\",\"thread_id\":1}]},\"payloadSize\":10,\"payloadTransferInfo\":{\"port\":1739}}\n";
+        byte[] bytes = json.getBytes("UTF-8");
+
+        NetworkPacket np = NetworkPacket.unserializeLazily(bytes, 0, bytes.length);
+        assertEquals(123, np.getId());
+        assertEquals("kdeconnect.sms.messages", np.getType());
+        assertEquals(10, np.getPayloadSize());
+        assertEquals(1739, np.getPayloadTransferInfo().getInt("port"));
+
+        //Forwarding an undecoded packet writes the body back untouched
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        np.serialize(out);
+        JSONAssert.assertEquals(json, out.toString("UTF-8"), true);
+
+        assertEquals("}\"{", np.getJSONArray("messages").getJSONObject(0).getString("body"));
+        np.set("extra", true);
+        assertTrue(NetworkPacket.unserialize(np.serialize()).getBoolean("extra"));
+    }
+
+    //Device looks packet types up by identity, but only known types are interned
+    public void testTypeIsInterned() throws Exception {
+        String type = new StringBuilder("kdeconnect.").append("pair").toString();
+        byte[] bytes = ("{\"id\":1,\"type\":\"" + type + "\",\"body\":{}}\n").getBytes("UTF-8");
+
+        NetworkPacket first = NetworkPacket.unserialize(bytes, 0, bytes.length);
+        NetworkPacket second = NetworkPacket.unserializeLazily(bytes, 0, bytes.length);
+        assertSame(NetworkPacket.PACKET_TYPE_PAIR, first.getType());
+        assertSame(first.getType(), second.getType());
+
+        byte[] escaped = "{\"id\":1,\"type\":\"kdeconnect.p\\u0061ir\",\"body\":{}}\n".getBytes("UTF-8");
+        assertSame(NetworkPacket.PACKET_TYPE_PAIR, NetworkPacket.unserialize(escaped, 0, escaped.length).getType());
+
+        byte[] unknown = "{\"id\":1,\"type\":\"kdeconnect.madeup\",\"body\":{}}\n".getBytes("UTF-8");
+        NetworkPacket madeUp = NetworkPacket.unserialize(unknown, 0, unknown.length);
+        assertEquals("kdeconnect.madeup", madeUp.getType());
+        assertNotSame("kdeconnect.madeup", madeUp.getType());
+    }
+
     public void testIdentity() {
 
         NetworkPacket np = NetworkPacket.createIdentityPacket(getContext());
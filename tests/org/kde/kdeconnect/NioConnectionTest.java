@@ -0,0 +1,341 @@
+package org.kde.kdeconnect;
+
+import android.test.AndroidTestCase;
+
+import org.kde.kdeconnect.Backends.LanBackend.NioConnection;
+import org.kde.kdeconnect.Backends.LanBackend.NioEventLoop;
+import org.spongycastle.asn1.x500.X500NameBuilder;
+import org.spongycastle.asn1.x500.style.BCStyle;
+import org.spongycastle.cert.X509v3CertificateBuilder;
+import org.spongycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.spongycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.operator.ContentSigner;
+import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+class NioConnectionTest extends AndroidTestCase {
+
+    private static final int PEERS = 48;
+    private static final int PACKETS_PER_PEER = 200;
+
+    private abstract static class FrameListener implements NioConnection.Listener {
+        @Override
+        public void onConnected(NioConnection connection) {
+        }
+
+        @Override
+        public void onRawData(NioConnection connection, byte[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void onHandshakeCompleted(NioConnection connection) {
+            connection.resumeFrames();
+        }
+
+        @Override
+        public void onClosed(NioConnection connection, Exception reason) {
+        }
+    }
+
+    //Dozens of peers on a single event loop, each sending packets that the server echoes back
+    public void testManyPeersOverLoopback() throws Exception {
+        final NioEventLoop loop = new NioEventLoop();
+        loop.start();
+
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        final AtomicInteger serverFrames = new AtomicInteger();
+        final AtomicInteger badFrames = new AtomicInteger();
+        final FrameListener echo = new FrameListener() {
+            @Override
+            public void onFrame(NioConnection connection, byte[] buffer, int offset, int length) {
+                try {
+                    NetworkPacket np = NetworkPacket.unserialize(buffer, offset, length);
+                    if (!np.getType().equals("kdeconnect.test")) {
+                        badFrames.incrementAndGet();
+                    }
+                    serverFrames.incrementAndGet();
+                    OutputStream out = connection.getOutputStream();
+                    out.write(buffer, offset, length);
+                    out.write('\n');
+                    out.flush();
+                } catch (Exception e) {
+                    badFrames.incrementAndGet();
+                }
+            }
+        };
+        loop.register(server, SelectionKey.OP_ACCEPT, new NioEventLoop.Handler() {
+            @Override
+            public void onRegistered(SelectionKey key) {
+            }
+
+            @Override
+            public void onReady(SelectionKey key) throws IOException {
+                SocketChannel channel;
+                while ((channel = server.accept()) != null) {
+                    NioConnection.accepted(loop, channel, echo);
+                }
+            }
+
+            @Override
+            public void onClosed(Exception reason) {
+            }
+        });
+
+        final CountDownLatch echoes = new CountDownLatch(PEERS * PACKETS_PER_PEER);
+        final CountDownLatch connected = new CountDownLatch(PEERS);
+        final NioConnection[] peers = new NioConnection[PEERS];
+        for (int i = 0; i < PEERS; i++) {
+            final int peer = i;
+            final AtomicInteger expected = new AtomicInteger();
+            peers[i] = NioConnection.connect(loop, (InetSocketAddress) server.socket().getLocalSocketAddress(), new FrameListener() {
+                @Override
+                public void onConnected(NioConnection connection) {
+                    connected.countDown();
+                }
+
+                @Override
+                public void onFrame(NioConnection connection, byte[] buffer, int offset, int length) {
+                    try {
+                        NetworkPacket np = NetworkPacket.unserialize(buffer, offset, length);
+                        //Echoes have to come back in order
+                        if (np.getInt("peer") != peer || np.getInt("seq") != expected.getAndIncrement()) {
+                            badFrames.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        badFrames.incrementAndGet();
+                    }
+                    echoes.countDown();
+                }
+            });
+        }
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+
+        Thread[] senders = new Thread[PEERS];
+        for (int i = 0; i < PEERS; i++) {
+            final int peer = i;
+            senders[i] = new Thread(() -> {
+                try {
+                    OutputStream out = peers[peer].getOutputStream();
+                    for (int seq = 0; seq < PACKETS_PER_PEER; seq++) {
+                        NetworkPacket np = new NetworkPacket("kdeconnect.test");
+                        np.set("peer", peer);
+                        np.set("seq", seq);
+                        np.set("padding", "Some text to make packets span more than one read now and then");
+                        np.serialize(out);
+                        if (seq % 7 == 0) {
+                            out.flush(); //Mix of single packets and batches
+                        }
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    badFrames.incrementAndGet();
+                }
+            });
+            senders[i].start();
+        }
+
+        assertTrue(echoes.await(30, TimeUnit.SECONDS));
+        assertEquals(PEERS * PACKETS_PER_PEER, serverFrames.get());
+        assertEquals(0, badFrames.get());
+
+        for (NioConnection peer : peers) {
+            peer.close();
+        }
+        loop.stop();
+        server.close();
+    }
+
+    //Self-signed certificate, trusting anything, like an unpaired device does
+    private static SSLContext createSslContext() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        KeyPair keyPair = keyGen.genKeyPair();
+
+        BouncyCastleProvider BC = new BouncyCastleProvider();
+        X500NameBuilder nameBuilder = new X500NameBuilder(BCStyle.INSTANCE);
+        nameBuilder.addRDN(BCStyle.CN, "testDevice");
+        nameBuilder.addRDN(BCStyle.OU, "KDE Connect");
+        nameBuilder.addRDN(BCStyle.O, "KDE");
+        X509v3CertificateBuilder certificateBuilder = new JcaX509v3CertificateBuilder(
+                nameBuilder.build(),
+                BigInteger.ONE,
+                new Date(System.currentTimeMillis() - 60000),
+                new Date(System.currentTimeMillis() + 3600000),
+                nameBuilder.build(),
+                keyPair.getPublic()
+        );
+        ContentSigner contentSigner = new JcaContentSignerBuilder("SHA256WithRSAEncryption").setProvider(BC).build(keyPair.getPrivate());
+        X509Certificate certificate = new JcaX509CertificateConverter().setProvider(BC).getCertificate(certificateBuilder.build(contentSigner));
+
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("key", keyPair.getPrivate(), "".toCharArray(), new Certificate[]{certificate});
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, "".toCharArray());
+
+        TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager() {
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] certs, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] certs, String authType) {
+            }
+        }};
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustAllCerts, null);
+        return sslContext;
+    }
+
+    //Identity in plain text, then a TLS handshake on both ends and packets echoed over it, like a LAN link does
+    public void testTlsOverLoopback() throws Exception {
+        final SSLContext sslContext = createSslContext();
+        final NioEventLoop loop = new NioEventLoop();
+        loop.start();
+
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        final AtomicInteger badFrames = new AtomicInteger();
+        final CountDownLatch serverSecured = new CountDownLatch(1);
+        final FrameListener echo = new FrameListener() {
+            @Override
+            public void onFrame(NioConnection connection, byte[] buffer, int offset, int length) {
+                try {
+                    NetworkPacket np = NetworkPacket.unserialize(buffer, offset, length);
+                    if (!connection.isSecure()) {
+                        //The identity, everything after it is encrypted
+                        if (!np.getType().equals(NetworkPacket.PACKET_TYPE_IDENTITY)) {
+                            badFrames.incrementAndGet();
+                        }
+                        connection.pauseFrames();
+                        SSLEngine engine = sslContext.createSSLEngine();
+                        engine.setUseClientMode(false);
+                        connection.startTls(engine);
+                        return;
+                    }
+                    OutputStream out = connection.getOutputStream();
+                    out.write(buffer, offset, length);
+                    out.write('\n');
+                    out.flush();
+                } catch (Exception e) {
+                    badFrames.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onHandshakeCompleted(NioConnection connection) {
+                serverSecured.countDown();
+                connection.resumeFrames();
+            }
+        };
+        loop.register(server, SelectionKey.OP_ACCEPT, new NioEventLoop.Handler() {
+            @Override
+            public void onRegistered(SelectionKey key) {
+            }
+
+            @Override
+            public void onReady(SelectionKey key) throws IOException {
+                SocketChannel channel;
+                while ((channel = server.accept()) != null) {
+                    NioConnection.accepted(loop, channel, echo);
+                }
+            }
+
+            @Override
+            public void onClosed(Exception reason) {
+            }
+        });
+
+        final CountDownLatch clientSecured = new CountDownLatch(1);
+        final CountDownLatch echoes = new CountDownLatch(PACKETS_PER_PEER);
+        final AtomicInteger expected = new AtomicInteger();
+        final NioConnection client = NioConnection.connect(loop, (InetSocketAddress) server.socket().getLocalSocketAddress(), new FrameListener() {
+            @Override
+            public void onConnected(NioConnection connection) {
+                try {
+                    connection.sendPlain(new NetworkPacket(NetworkPacket.PACKET_TYPE_IDENTITY).serialize().getBytes());
+                } catch (Exception e) {
+                    badFrames.incrementAndGet();
+                }
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(true);
+                connection.startTls(engine);
+            }
+
+            @Override
+            public void onFrame(NioConnection connection, byte[] buffer, int offset, int length) {
+                try {
+                    NetworkPacket np = NetworkPacket.unserialize(buffer, offset, length);
+                    if (np.getInt("seq") != expected.getAndIncrement()) {
+                        badFrames.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    badFrames.incrementAndGet();
+                }
+                echoes.countDown();
+            }
+
+            @Override
+            public void onHandshakeCompleted(NioConnection connection) {
+                clientSecured.countDown();
+                connection.resumeFrames();
+            }
+        });
+
+        assertTrue(clientSecured.await(10, TimeUnit.SECONDS));
+        assertTrue(serverSecured.await(10, TimeUnit.SECONDS));
+        assertTrue(client.isSecure());
+
+        OutputStream out = client.getOutputStream();
+        for (int seq = 0; seq < PACKETS_PER_PEER; seq++) {
+            NetworkPacket np = new NetworkPacket("kdeconnect.test");
+            np.set("seq", seq);
+            np.set("padding", "Some text to make packets span more than one TLS record now and then");
+            np.serialize(out);
+            if (seq % 7 == 0) {
+                out.flush();
+            }
+        }
+        out.flush();
+
+        assertTrue(echoes.await(30, TimeUnit.SECONDS));
+        assertEquals(0, badFrames.get());
+
+        client.close();
+        loop.stop();
+        server.close();
+    }
+
+}
@@ -0,0 +1,184 @@
+package org.kde.kdeconnect;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONObject;
+import org.kde.kdeconnect.Backends.PayloadMultiplexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+class PayloadMultiplexerTest extends AndroidTestCase {
+
+    private static byte[] payloadData(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static byte[] readPayload(NetworkPacket np) throws Exception {
+        byte[] data = new byte[(int) np.getPayloadSize()];
+        InputStream stream = np.getPayload().getInputStream();
+        int read = 0;
+        while (read < data.length) {
+            read += stream.read(data, read, data.length - read);
+        }
+        return data;
+    }
+
+    //Two payloads sent at the same time have to arrive intact, even though their chunks get interleaved
+    public void testInterleavedPayloads() throws Exception {
+        PayloadMultiplexer sender = new PayloadMultiplexer();
+        sender.setSupportedByPeer(true);
+
+        byte[] small = payloadData(1000, 1);
+        byte[] big = payloadData(100 * 1000, 2);
+        final int[] succeeded = {0};
+        Device.SendPacketStatusCallback callback = new Device.SendPacketStatusCallback() {
+            @Override
+            public void onSuccess() {
+                succeeded[0]++;
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                fail("Payload failed: " + e);
+            }
+        };
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NetworkPacket np1 = new NetworkPacket("kdeconnect.test");
+        np1.setPayload(new NetworkPacket.Payload(big));
+        NetworkPacket np2 = new NetworkPacket("kdeconnect.test");
+        np2.setPayload(new NetworkPacket.Payload(small));
+        assertTrue(sender.shouldMultiplex(np1));
+        sender.addOutgoing(np1, callback);
+        np1.serialize(out);
+        sender.addOutgoing(np2, callback);
+        np2.serialize(out);
+        while (sender.hasOutgoing()) {
+            sender.writeNextChunk(out);
+        }
+        assertEquals(0, succeeded[0]);
+        sender.outgoingFlushed();
+        assertEquals(2, succeeded[0]);
+
+        PayloadMultiplexer.Receiver receiver = new PayloadMultiplexer.Receiver();
+        ArrayList<NetworkPacket> completed = new ArrayList<>();
+        byte[] stream = out.toByteArray();
+        int position = 0;
+        while (position < stream.length) {
+            int newline = position;
+            while (stream[newline] != '\n') {
+                newline++;
+            }
+            NetworkPacket np = NetworkPacket.unserialize(stream, position, newline - position);
+            position = newline + 1;
+            if (np.getType().equals(PayloadMultiplexer.PACKET_TYPE_PAYLOAD_CHUNK)) {
+                int length = receiver.chunkReceived(np);
+                NetworkPacket done = receiver.chunkDataReceived(stream, position, length);
+                if (done != null) {
+                    completed.add(done);
+                }
+                position += length;
+            } else {
+                assertTrue(receiver.isMultiplexed(np));
+                receiver.addIncoming(np, true);
+            }
+        }
+
+        //The small one finishes first, since it doesn't have to wait for the big one
+        assertEquals(2, completed.size());
+        assertTrue(Arrays.equals(small, readPayload(completed.get(0))));
+        assertTrue(Arrays.equals(big, readPayload(completed.get(1))));
+    }
+
+    private static NetworkPacket announced(long id, int size) throws Exception {
+        NetworkPacket np = new NetworkPacket("kdeconnect.test");
+        np.setPayload(new NetworkPacket.Payload(new byte[size]));
+        JSONObject payloadTransferInfo = new JSONObject();
+        payloadTransferInfo.put("multiplexId", id);
+        np.setPayloadTransferInfo(payloadTransferInfo);
+        return np;
+    }
+
+    private static NetworkPacket chunk(long id, int size) {
+        NetworkPacket chunk = new NetworkPacket(PayloadMultiplexer.PACKET_TYPE_PAYLOAD_CHUNK);
+        chunk.set("multiplexId", id);
+        chunk.set("size", size);
+        return chunk;
+    }
+
+    //Payloads from unpaired devices, chunks with negative sizes and payloads over the limits are dropped
+    public void testRejectedPayloads() throws Exception {
+        PayloadMultiplexer.Receiver receiver = new PayloadMultiplexer.Receiver();
+        byte[] data = payloadData(100, 3);
+
+        receiver.addIncoming(announced(1, 100), false);
+        assertEquals(100, receiver.chunkReceived(chunk(1, 100))); //Skipped
+        assertNull(receiver.chunkDataReceived(data, 0, 100));
+
+        receiver.addIncoming(announced(2, 100), true);
+        assertEquals(0, receiver.chunkReceived(chunk(2, -5)));
+        assertEquals(100, receiver.chunkReceived(chunk(2, 100)));
+        assertNull(receiver.chunkDataReceived(data, 0, 100)); //The payload was dropped with the bad chunk
+
+        //Announcing lots of payloads doesn't make us buffer them, and only so many are kept
+        for (long id = 10; id < 1000; id++) {
+            receiver.addIncoming(announced(id, (int) PayloadMultiplexer.MAX_MULTIPLEXED_PAYLOAD_SIZE), true);
+        }
+        assertEquals(100, receiver.chunkReceived(chunk(999, 100)));
+        assertNull(receiver.chunkDataReceived(data, 0, 100)); //Not kept
+
+        receiver = new PayloadMultiplexer.Receiver(); //A new connection starts from scratch
+        receiver.addIncoming(announced(5, 100), true);
+        assertEquals(100, receiver.chunkReceived(chunk(5, 100)));
+        NetworkPacket done = receiver.chunkDataReceived(data, 0, 100);
+        assertNotNull(done);
+        assertTrue(Arrays.equals(data, readPayload(done)));
+    }
+
+    //A payload whose chunk could not be written fails once, and isn't left half sent
+    public void testChunkWriteFailure() throws Exception {
+        PayloadMultiplexer sender = new PayloadMultiplexer();
+        sender.setSupportedByPeer(true);
+        final int[] failed = {0};
+        Device.SendPacketStatusCallback callback = new Device.SendPacketStatusCallback() {
+            @Override
+            public void onSuccess() {
+                fail("Payload can't have been sent");
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                failed[0]++;
+            }
+        };
+
+        NetworkPacket np = new NetworkPacket("kdeconnect.test");
+        np.setPayload(new NetworkPacket.Payload(payloadData(1000, 4)));
+        sender.addOutgoing(np, callback);
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        try {
+            sender.writeNextChunk(broken);
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, failed[0]);
+        assertFalse(sender.hasOutgoing());
+        sender.outgoingFailed(new IOException("Broken pipe"));
+        assertEquals(1, failed[0]);
+    }
+
+}